@@ -0,0 +1,171 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_ID_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_SERIALIZED_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_TYPE_KEY;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import dev.morphia.Morphia;
+import eu.europeana.batch.entity.ExecutionContextEntity;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Measures what a JSON execution context costs per commit, up to the BSON bytes exchanged with the
+ * driver, so no database is needed. Run with {@code -prof gc} to get the bytes allocated per
+ * operation ({@code gc.alloc.rate.norm}).
+ *
+ * <p>The repository serializes a JSON context into a pooled buffer, decodes it into the String it
+ * sets, and reads it from the document bytes. The {@code original} benchmarks reproduce how
+ * contexts were written and read before: serialized into a new buffer, copied into a String, set
+ * with a {@code $set} update, and read back through a String.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionContextAllocationBenchmark {
+
+  private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+  private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+  /** Approximate size of the serialized context, in bytes */
+  @Param({"1024", "65536", "1048576"})
+  private int contextSize;
+
+  private final ExecutionContextSerializer serializer =
+      new Jackson2ExecutionContextStringSerializer();
+
+  private final BsonDocumentCodec documentCodec = new BsonDocumentCodec();
+  private final RawBsonDocumentCodec rawDocumentCodec = new RawBsonDocumentCodec();
+
+  /** Stands for the pooled buffers the driver encodes commands into */
+  private final BasicOutputBuffer wire = new BasicOutputBuffer();
+
+  private MongoClient client;
+  private ExecutionContextRepository repository;
+  private ExecutionContext executionContext;
+
+  /** Stored context document as received from the server */
+  private byte[] storedDocument;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    // the client only connects when an operation is run, which never happens here
+    client = MongoClients.create("mongodb://localhost:1");
+    repository = new ExecutionContextRepository(Morphia.createDatastore(client, "benchmark"));
+
+    executionContext = new ExecutionContext();
+    Random random = new Random(42);
+    int entries = Math.max(1, contextSize / 128);
+    for (int i = 0; i < entries; i++) {
+      StringBuilder value = new StringBuilder();
+      for (int j = 0; j < 100; j++) {
+        value.append((char) ('a' + random.nextInt(26)));
+      }
+      executionContext.putString("key" + i, value.toString());
+    }
+
+    BsonDocument stored =
+        new BsonDocument(EXECUTION_CTX_ID_KEY, new BsonInt64(1))
+            .append(EXECUTION_CTX_TYPE_KEY, new BsonString("STEP"))
+            .append(EXECUTION_CTX_SERIALIZED_KEY, new BsonString(originalSerialize()));
+    storedDocument = new RawBsonDocument(stored, documentCodec).getByteBuffer().array();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.close();
+  }
+
+  @Benchmark
+  public int write() {
+    return encodeCommand(repository.encodeReplaceUpdate(executionContext));
+  }
+
+  @Benchmark
+  public int originalWrite() throws IOException {
+    return encodeCommand(
+        new BsonDocument(
+            "$set",
+            new BsonDocument(EXECUTION_CTX_SERIALIZED_KEY, new BsonString(originalSerialize()))));
+  }
+
+  @Benchmark
+  public ExecutionContext read() {
+    RawBsonDocument document =
+        rawDocumentCodec.decode(
+            new BsonBinaryReader(ByteBuffer.wrap(storedDocument)), DECODER_CONTEXT);
+    return ExecutionContextEntity.fromDocument(document, serializer);
+  }
+
+  @Benchmark
+  public ExecutionContext originalRead() throws IOException {
+    BsonDocument document =
+        documentCodec.decode(
+            new BsonBinaryReader(ByteBuffer.wrap(storedDocument)), DECODER_CONTEXT);
+    String serializedContext = document.getString(EXECUTION_CTX_SERIALIZED_KEY).getValue();
+
+    ExecutionContext result = new ExecutionContext();
+    Map<String, Object> map =
+        serializer.deserialize(
+            new ByteArrayInputStream(serializedContext.getBytes(StandardCharsets.UTF_8)));
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  private String originalSerialize() throws IOException {
+    Map<String, Object> m = new HashMap<>();
+    for (Map.Entry<String, Object> me : executionContext.entrySet()) {
+      m.put(me.getKey(), me.getValue());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer.serialize(m, out);
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private int encodeCommand(BsonDocument update) {
+    wire.truncateToPosition(0);
+    documentCodec.encode(new BsonBinaryWriter(wire), update, ENCODER_CONTEXT);
+    return wire.getPosition();
+  }
+}
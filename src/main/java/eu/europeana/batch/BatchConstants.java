@@ -30,6 +30,7 @@ public class BatchConstants {
   // Job Execution Constants
   public static final String JOB_EXECUTION_ID_KEY = "jobExecutionId";
   public static final String CREATE_TIME_KEY = "createTime";
+  public static final String RUNNING_KEY = "running";
 
   // Job Execution Contexts Constants
   public static final String STEP_EXECUTION_ID_KEY = "stepExecutionId";
@@ -37,6 +38,12 @@ public class BatchConstants {
   public static final String EXECUTION_CTX_ID_KEY = "executionId";
   public static final String EXECUTION_CTX_TYPE_KEY = "type";
   public static final String EXECUTION_CTX_SERIALIZED_KEY = "serializedContext";
+  public static final String EXECUTION_CTX_DOCUMENT_KEY = "context";
+  public static final String EXECUTION_CTX_COMPRESSED_KEY = "compressedContext";
+  public static final String EXECUTION_CTX_FILE_ID_KEY = "contextFileId";
+
+  /** GridFS bucket holding execution contexts that are too large to be stored inline */
+  public static final String EXECUTION_CTX_FILES_BUCKET = "ExecutionContextFiles";
 
   // Step Execution Constants
   public static final String STEP_NAME_KEY = "stepName";
@@ -49,10 +56,18 @@ public class BatchConstants {
   public static final String PROCESS_SKIP_COUNT_KEY = "processSkipCount";
   public static final String ROLLBACK_COUNT_KEY = "rollbackCount";
 
+  /**
+   * Token set by an update of a step execution written by a batched bulk write, and removed once
+   * the results of the batch are known
+   */
+  public static final String UPDATE_TOKEN_KEY = "updateToken";
+
   public static final JobKeyGenerator<JobParameters> JOB_KEY_GENERATOR =
       new DefaultJobKeyGenerator();
   public static final InsertManyOptions BATCH_INSERT_OPTIONS =
       new InsertManyOptions().ordered(true);
+  public static final InsertManyOptions UNORDERED_INSERT_OPTIONS =
+      new InsertManyOptions().ordered(false);
   public static final FindOptions DESCENDING_JOB_EXECUTION =
       new FindOptions().sort(descending(JOB_EXECUTION_ID_KEY));
 
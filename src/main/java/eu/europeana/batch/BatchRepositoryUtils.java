@@ -3,8 +3,10 @@ package eu.europeana.batch;
 import static eu.europeana.batch.BatchConstants.DOT_ESCAPE_STRING;
 import static eu.europeana.batch.BatchConstants.DOT_STRING;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import org.springframework.batch.core.JobParameter;
@@ -57,4 +59,21 @@ public class BatchRepositoryUtils {
 
     return new JobParameters(destParams);
   }
+
+  /**
+   * Creates a thread-safe map that evicts its least recently accessed entry once it holds more
+   * than the given number of entries
+   *
+   * @param maxEntries maximum number of entries
+   * @return synchronized LRU map
+   */
+  public static <K, V> Map<K, V> createLruMap(int maxEntries) {
+    return Collections.synchronizedMap(
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+          }
+        });
+  }
 }
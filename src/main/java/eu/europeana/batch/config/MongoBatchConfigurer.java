@@ -1,33 +1,46 @@
 package eu.europeana.batch.config;
 
 import dev.morphia.Datastore;
+import eu.europeana.batch.context.ExecutionContextCache;
+import eu.europeana.batch.explore.MongoJobExplorer;
+import eu.europeana.batch.id.IdGenerationStrategy;
+import eu.europeana.batch.id.IdGenerator;
+import eu.europeana.batch.id.PooledSequenceGenerator;
+import eu.europeana.batch.id.TimeBasedIdGenerator;
+import eu.europeana.batch.index.BatchIndexManager;
 import eu.europeana.batch.repository.ExecutionContextRepository;
 import eu.europeana.batch.repository.JobExecutionRepository;
+import eu.europeana.batch.repository.JobExecutionStatusWatcher;
 import eu.europeana.batch.repository.JobInstanceRepository;
 import eu.europeana.batch.repository.StepExecutionRepository;
+import eu.europeana.batch.repository.StepExecutionUpdateBatcher;
+import eu.europeana.batch.repository.StepExecutionWriteBehind;
 import org.springframework.batch.core.explore.JobExplorer;
-import org.springframework.batch.core.explore.support.SimpleJobExplorer;
 import org.springframework.batch.core.launch.JobLauncher;
 import org.springframework.batch.core.launch.support.TaskExecutorJobLauncher;
 import org.springframework.batch.core.repository.JobRepository;
-import org.springframework.batch.core.repository.dao.ExecutionContextDao;
 import org.springframework.batch.core.repository.dao.JobExecutionDao;
-import org.springframework.batch.core.repository.dao.JobInstanceDao;
-import org.springframework.batch.core.repository.dao.StepExecutionDao;
 import org.springframework.batch.core.repository.support.SimpleJobRepository;
 import org.springframework.batch.support.transaction.ResourcelessTransactionManager;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.transaction.PlatformTransactionManager;
 
 import javax.sql.DataSource;
 
-/** Configures Spring Batch to use Mongo DAO implementations */
-public class MongoBatchConfigurer {
+/**
+ * Configures Spring Batch to use Mongo DAO implementations. When declared as a bean, pending
+ * step execution updates are written and the status watcher is closed when the context closes.
+ */
+public class MongoBatchConfigurer implements DisposableBean {
 
-  private final ExecutionContextDao mongoExecutionContextDao;
+  private final ExecutionContextRepository mongoExecutionContextDao;
   private final JobExecutionDao mongoJobExecutionDao;
-  private final JobInstanceDao mongoJobInstanceDao;
-  private final StepExecutionDao mongoStepExecutionDao;
+  private final JobInstanceRepository mongoJobInstanceDao;
+  private final StepExecutionRepository mongoStepExecutionDao;
+  private final StepExecutionWriteBehind stepExecutionWriteBehind;
+  private final JobExecutionStatusWatcher jobExecutionStatusWatcher;
+  private final BatchIndexManager indexManager;
 
   private final TaskExecutor taskExecutor;
 
@@ -37,13 +50,173 @@ public class MongoBatchConfigurer {
    * @param datastore Morphia datastore to use
    */
   public MongoBatchConfigurer(Datastore datastore, TaskExecutor taskExecutor) {
-    this.mongoExecutionContextDao = new ExecutionContextRepository(datastore);
-    this.mongoJobExecutionDao = new JobExecutionRepository(datastore);
-    this.mongoJobInstanceDao = new JobInstanceRepository(datastore);
-    this.mongoStepExecutionDao = new StepExecutionRepository(datastore);
+    this(datastore, taskExecutor, new MongoBatchSettings());
+  }
+
+  /**
+   * Instantiates the Mongo DAO implementations with the provided datastore and settings
+   *
+   * @param datastore Morphia datastore to use
+   * @param settings tuning options for the DAO implementations
+   */
+  public MongoBatchConfigurer(
+      Datastore datastore, TaskExecutor taskExecutor, MongoBatchSettings settings) {
+    // all repositories share the same generator, so only one block or node id is held per JVM
+    IdGenerator idGenerator = createIdGenerator(datastore, settings);
+
+    ExecutionContextRepository executionContextRepository =
+        new ExecutionContextRepository(datastore);
+    JobExecutionRepository jobExecutionRepository = new JobExecutionRepository(datastore);
+    JobInstanceRepository jobInstanceRepository = new JobInstanceRepository(datastore);
+    StepExecutionRepository stepExecutionRepository = new StepExecutionRepository(datastore);
+
+    executionContextRepository.setFormat(settings.getExecutionContextFormat());
+    executionContextRepository.setCompressionThreshold(
+        settings.getExecutionContextCompressionThreshold());
+    executionContextRepository.setOffloadThreshold(
+        settings.getExecutionContextOffloadThreshold());
+    executionContextRepository.setSkipUnchangedWrites(
+        settings.isSkipUnchangedExecutionContextWrites());
+    executionContextRepository.setFieldLevelUpdates(
+        settings.isExecutionContextFieldLevelUpdates());
+    executionContextRepository.setParallelSerializationThreshold(
+        settings.getExecutionContextParallelSerializationThreshold());
+    if (settings.getExecutionContextSerializationExecutor() != null) {
+      executionContextRepository.setSerializationExecutor(
+          settings.getExecutionContextSerializationExecutor());
+    }
+    executionContextRepository.setInsertChunkSize(settings.getExecutionContextInsertChunkSize());
+    if (settings.getExecutionContextCacheMaxEntries() > 0) {
+      executionContextRepository.setCache(
+          new ExecutionContextCache(
+              settings.getExecutionContextCacheMaxEntries(),
+              settings.getExecutionContextCacheMaxWeight()));
+    }
+
+    jobExecutionRepository.setIdGenerator(idGenerator);
+    jobInstanceRepository.setIdGenerator(idGenerator);
+    stepExecutionRepository.setIdGenerator(idGenerator);
+    stepExecutionRepository.setDeltaUpdates(settings.isStepExecutionDeltaUpdates());
+    if (settings.isStepHistoryPrefetch()) {
+      stepExecutionRepository.setStepHistoryPrefetch(true);
+      jobExecutionRepository.setStepExecutionRepository(stepExecutionRepository);
+    }
+    if (settings.isStepExecutionUpdateBatching()) {
+      stepExecutionRepository.setUpdateBatcher(
+          new StepExecutionUpdateBatcher(
+              datastore, settings.getStepExecutionUpdateBatchWindow()));
+    }
+
+    if (settings.isStepWriteBehind()) {
+      this.stepExecutionWriteBehind =
+          new StepExecutionWriteBehind(
+              stepExecutionRepository,
+              executionContextRepository,
+              settings.getStepWriteBehindMaxCommits(),
+              settings.getStepWriteBehindMaxDelay());
+      stepExecutionRepository.setWriteBehind(stepExecutionWriteBehind);
+      executionContextRepository.setWriteBehind(stepExecutionWriteBehind);
+    } else {
+      this.stepExecutionWriteBehind = null;
+    }
+
+    if (settings.isJobExecutionStatusWatcher()) {
+      this.jobExecutionStatusWatcher = new JobExecutionStatusWatcher(datastore);
+      jobExecutionStatusWatcher.start();
+      jobExecutionRepository.setStatusWatcher(jobExecutionStatusWatcher);
+    } else {
+      this.jobExecutionStatusWatcher = null;
+    }
+
+    this.indexManager = new BatchIndexManager(datastore);
+    if (settings.isEnsureIndexesOnStartup()) {
+      taskExecutor.execute(
+          () -> {
+            indexManager.ensureIndexes();
+            jobInstanceRepository.checkUniqueJobKeyIndex();
+          });
+    }
+
+    // without backfills, whether the data of earlier versions is complete is checked on first use
+    if (settings.isBackfillStepExecutionJobInstanceIds()) {
+      taskExecutor.execute(stepExecutionRepository::backfillJobInstanceIds);
+    }
+    if (settings.isBackfillJobExecutionRunningFlags()) {
+      taskExecutor.execute(jobExecutionRepository::backfillRunningFlags);
+    }
+    if (settings.isJobNameRegistrySearch()) {
+      jobInstanceRepository.setJobNameRegistrySearch(true);
+      if (settings.isBackfillJobNameRegistry()) {
+        taskExecutor.execute(jobInstanceRepository::registerJobNames);
+      }
+    }
+
+    this.mongoExecutionContextDao = executionContextRepository;
+    this.mongoJobExecutionDao = jobExecutionRepository;
+    this.mongoJobInstanceDao = jobInstanceRepository;
+    this.mongoStepExecutionDao = stepExecutionRepository;
     this.taskExecutor = taskExecutor;
   }
 
+  private static IdGenerator createIdGenerator(Datastore datastore, MongoBatchSettings settings) {
+    if (settings.getIdGenerationStrategy() == IdGenerationStrategy.TIME_BASED) {
+      return new TimeBasedIdGenerator(datastore, settings.getNodeLeaseDuration());
+    }
+    return new PooledSequenceGenerator(datastore, settings.getSequenceBlockSize());
+  }
+
+  /**
+   * Gets the execution context DAO, which also exposes statistics such as the number of skipped
+   * writes and the cache hit count
+   */
+  public ExecutionContextRepository getExecutionContextRepository() {
+    return mongoExecutionContextDao;
+  }
+
+  /**
+   * Gets the write-behind buffer for step execution updates, which can be flushed before shutting
+   * down
+   *
+   * @return write-behind buffer, or null if write-behind is disabled
+   */
+  public StepExecutionWriteBehind getStepExecutionWriteBehind() {
+    return stepExecutionWriteBehind;
+  }
+
+  /**
+   * Gets the watcher following job execution statuses, which can be shut down with the
+   * application
+   *
+   * @return status watcher, or null if it is disabled
+   */
+  public JobExecutionStatusWatcher getJobExecutionStatusWatcher() {
+    return jobExecutionStatusWatcher;
+  }
+
+  /**
+   * Writes the pending updates of the write-behind buffer, then closes the change stream of the
+   * status watcher. Called by Spring when the context closes.
+   *
+   * @throws RuntimeException the first failure to write a pending update, once the watcher is
+   *     closed
+   */
+  @Override
+  public void destroy() {
+    try {
+      if (stepExecutionWriteBehind != null) {
+        stepExecutionWriteBehind.shutdown();
+      }
+    } finally {
+      if (jobExecutionStatusWatcher != null) {
+        jobExecutionStatusWatcher.shutdown();
+      }
+    }
+  }
+
+  /** Gets the index manager, which can check that the repository queries use indexes */
+  public BatchIndexManager getIndexManager() {
+    return indexManager;
+  }
 
   public JobRepository getJobRepository() throws Exception {
     return new SimpleJobRepository(
@@ -64,7 +237,17 @@ public class MongoBatchConfigurer {
 
 
   public JobExplorer getJobExplorer() throws Exception {
-    return new SimpleJobExplorer(
+    return getMongoJobExplorer();
+  }
+
+  /**
+   * Gets the job explorer, which loads the dependencies of many job executions with one query per
+   * call. {@link #getJobExplorer()} returns this explorer typed as a {@link JobExplorer}.
+   *
+   * @return job explorer backed by the Mongo DAO implementations
+   */
+  public MongoJobExplorer getMongoJobExplorer() {
+    return new MongoJobExplorer(
         mongoJobInstanceDao, mongoJobExecutionDao, mongoStepExecutionDao, mongoExecutionContextDao);
   }
 }
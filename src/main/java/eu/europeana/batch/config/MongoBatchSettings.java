@@ -0,0 +1,459 @@
+package eu.europeana.batch.config;
+
+import eu.europeana.batch.context.ExecutionContextCache;
+import eu.europeana.batch.context.ExecutionContextFormat;
+import eu.europeana.batch.id.IdGenerationStrategy;
+import eu.europeana.batch.id.PooledSequenceGenerator;
+import eu.europeana.batch.id.TimeBasedIdGenerator;
+import eu.europeana.batch.repository.StepExecutionWriteBehind;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning options for the Mongo DAO implementations. Defaults match the original behaviour: every
+ * option, including the backfills that rewrite data saved by earlier versions, is off until it is
+ * enabled.
+ */
+public class MongoBatchSettings {
+
+  private IdGenerationStrategy idGenerationStrategy = IdGenerationStrategy.SEQUENCE;
+
+  private int sequenceBlockSize = PooledSequenceGenerator.DEFAULT_BLOCK_SIZE;
+
+  private Duration nodeLeaseDuration = TimeBasedIdGenerator.DEFAULT_LEASE_DURATION;
+
+  private ExecutionContextFormat executionContextFormat = ExecutionContextFormat.JSON;
+
+  private int executionContextCompressionThreshold;
+
+  private int executionContextOffloadThreshold;
+
+  private boolean skipUnchangedExecutionContextWrites;
+
+  private boolean executionContextFieldLevelUpdates;
+
+  private int executionContextParallelSerializationThreshold;
+
+  private Executor executionContextSerializationExecutor;
+
+  private int executionContextInsertChunkSize;
+
+  private int executionContextCacheMaxEntries;
+
+  private long executionContextCacheMaxWeight = ExecutionContextCache.DEFAULT_MAX_WEIGHT;
+
+  private boolean stepExecutionDeltaUpdates;
+
+  private boolean backfillStepExecutionJobInstanceIds;
+
+  private boolean backfillJobExecutionRunningFlags;
+
+  private boolean backfillJobNameRegistry;
+
+  private boolean jobNameRegistrySearch;
+
+  private boolean stepHistoryPrefetch;
+
+  private boolean jobExecutionStatusWatcher;
+
+  private boolean ensureIndexesOnStartup;
+
+  private boolean stepExecutionUpdateBatching;
+
+  private Duration stepExecutionUpdateBatchWindow = Duration.ZERO;
+
+  private boolean stepWriteBehind;
+
+  private int stepWriteBehindMaxCommits = StepExecutionWriteBehind.DEFAULT_MAX_COMMITS;
+
+  private Duration stepWriteBehindMaxDelay = StepExecutionWriteBehind.DEFAULT_MAX_DELAY;
+
+  public IdGenerationStrategy getIdGenerationStrategy() {
+    return idGenerationStrategy;
+  }
+
+  /**
+   * Sets how IDs are generated for JobInstances, JobExecutions and StepExecutions.
+   *
+   * @param idGenerationStrategy strategy to use
+   */
+  public void setIdGenerationStrategy(IdGenerationStrategy idGenerationStrategy) {
+    this.idGenerationStrategy = idGenerationStrategy;
+  }
+
+  public int getSequenceBlockSize() {
+    return sequenceBlockSize;
+  }
+
+  /**
+   * Sets the number of IDs reserved per round-trip to the Sequence collection. Larger blocks mean
+   * fewer round-trips, at the cost of gaps in IDs and IDs from different JVMs being interleaved.
+   *
+   * @param sequenceBlockSize number of IDs to reserve at once
+   */
+  public void setSequenceBlockSize(int sequenceBlockSize) {
+    this.sequenceBlockSize = sequenceBlockSize;
+  }
+
+  public Duration getNodeLeaseDuration() {
+    return nodeLeaseDuration;
+  }
+
+  /**
+   * Sets how long a node id stays leased without being renewed, when using {@link
+   * IdGenerationStrategy#TIME_BASED}.
+   *
+   * @param nodeLeaseDuration lease duration
+   */
+  public void setNodeLeaseDuration(Duration nodeLeaseDuration) {
+    this.nodeLeaseDuration = nodeLeaseDuration;
+  }
+
+  public ExecutionContextFormat getExecutionContextFormat() {
+    return executionContextFormat;
+  }
+
+  /**
+   * Sets the format in which execution contexts are written. Existing contexts are read back in
+   * the format they were written in.
+   *
+   * @param executionContextFormat format to use
+   */
+  public void setExecutionContextFormat(ExecutionContextFormat executionContextFormat) {
+    this.executionContextFormat = executionContextFormat;
+  }
+
+  public int getExecutionContextCompressionThreshold() {
+    return executionContextCompressionThreshold;
+  }
+
+  /**
+   * Sets the serialized size above which execution contexts are stored deflate-compressed.
+   *
+   * @param executionContextCompressionThreshold size in bytes, or 0 (default) to never compress
+   */
+  public void setExecutionContextCompressionThreshold(int executionContextCompressionThreshold) {
+    this.executionContextCompressionThreshold = executionContextCompressionThreshold;
+  }
+
+  public int getExecutionContextOffloadThreshold() {
+    return executionContextOffloadThreshold;
+  }
+
+  /**
+   * Sets the serialized size above which execution contexts are stored in GridFS instead of
+   * inline. This allows contexts larger than the maximum document size.
+   *
+   * @param executionContextOffloadThreshold size in bytes, or 0 (default) to never offload
+   */
+  public void setExecutionContextOffloadThreshold(int executionContextOffloadThreshold) {
+    this.executionContextOffloadThreshold = executionContextOffloadThreshold;
+  }
+
+  public boolean isSkipUnchangedExecutionContextWrites() {
+    return skipUnchangedExecutionContextWrites;
+  }
+
+  /**
+   * Sets whether execution context updates are skipped when the context is unchanged since it was
+   * last written. The number of skipped writes is available from {@link
+   * eu.europeana.batch.repository.ExecutionContextRepository#getSkippedWriteCount()}.
+   *
+   * @param skipUnchangedExecutionContextWrites true to skip unchanged writes
+   */
+  public void setSkipUnchangedExecutionContextWrites(boolean skipUnchangedExecutionContextWrites) {
+    this.skipUnchangedExecutionContextWrites = skipUnchangedExecutionContextWrites;
+  }
+
+  public boolean isExecutionContextFieldLevelUpdates() {
+    return executionContextFieldLevelUpdates;
+  }
+
+  /**
+   * Sets whether execution context updates only write the keys that changed since the last write.
+   * Only applies to the {@link ExecutionContextFormat#BSON} format.
+   *
+   * @param executionContextFieldLevelUpdates true to enable field-level updates
+   */
+  public void setExecutionContextFieldLevelUpdates(boolean executionContextFieldLevelUpdates) {
+    this.executionContextFieldLevelUpdates = executionContextFieldLevelUpdates;
+  }
+
+  public int getExecutionContextParallelSerializationThreshold() {
+    return executionContextParallelSerializationThreshold;
+  }
+
+  /**
+   * Sets the number of step execution contexts saved at once (e.g. those of partitions) from which
+   * they are serialized in parallel.
+   *
+   * @param executionContextParallelSerializationThreshold number of contexts, or 0 (default) to
+   *     always serialize on the calling thread
+   */
+  public void setExecutionContextParallelSerializationThreshold(
+      int executionContextParallelSerializationThreshold) {
+    this.executionContextParallelSerializationThreshold =
+        executionContextParallelSerializationThreshold;
+  }
+
+  public Executor getExecutionContextSerializationExecutor() {
+    return executionContextSerializationExecutor;
+  }
+
+  /**
+   * Sets the executor used for parallel serialization of execution contexts.
+   *
+   * @param executionContextSerializationExecutor executor, or null (default) to use the common
+   *     fork-join pool
+   */
+  public void setExecutionContextSerializationExecutor(
+      Executor executionContextSerializationExecutor) {
+    this.executionContextSerializationExecutor = executionContextSerializationExecutor;
+  }
+
+  public int getExecutionContextInsertChunkSize() {
+    return executionContextInsertChunkSize;
+  }
+
+  /**
+   * Sets the number of step execution contexts saved at once that are inserted per unordered bulk
+   * insert.
+   *
+   * @param executionContextInsertChunkSize number of contexts, or 0 (default) to insert all of
+   *     them with a single ordered insert
+   */
+  public void setExecutionContextInsertChunkSize(int executionContextInsertChunkSize) {
+    this.executionContextInsertChunkSize = executionContextInsertChunkSize;
+  }
+
+  public int getExecutionContextCacheMaxEntries() {
+    return executionContextCacheMaxEntries;
+  }
+
+  /**
+   * Sets the maximum number of execution contexts of finished executions cached in memory.
+   *
+   * @param executionContextCacheMaxEntries number of contexts, or 0 (default) to disable caching
+   */
+  public void setExecutionContextCacheMaxEntries(int executionContextCacheMaxEntries) {
+    this.executionContextCacheMaxEntries = executionContextCacheMaxEntries;
+  }
+
+  public long getExecutionContextCacheMaxWeight() {
+    return executionContextCacheMaxWeight;
+  }
+
+  /**
+   * Sets the maximum estimated size of all cached execution contexts.
+   *
+   * @param executionContextCacheMaxWeight size in bytes
+   */
+  public void setExecutionContextCacheMaxWeight(long executionContextCacheMaxWeight) {
+    this.executionContextCacheMaxWeight = executionContextCacheMaxWeight;
+  }
+
+  public boolean isBackfillStepExecutionJobInstanceIds() {
+    return backfillStepExecutionJobInstanceIds;
+  }
+
+  /**
+   * Sets whether the job instance id is copied onto step executions saved by older versions, in
+   * the background on the task executor. Until this is done, step history lookups first look up
+   * the job executions of the instance. The backfill merges into the collection it reads from,
+   * which requires MongoDB 4.4 or later. Without the backfill, step executions are only looked up
+   * by job instance id if a check on first use finds that all of them already have it. Step
+   * executions saved afterwards by nodes still running an older version are only found once the
+   * check or backfill runs again, e.g. when this node restarts after the upgrade.
+   *
+   * @param backfillStepExecutionJobInstanceIds true to run the backfill at startup, false (default)
+   *     to only check whether all step executions have their job instance id
+   */
+  public void setBackfillStepExecutionJobInstanceIds(boolean backfillStepExecutionJobInstanceIds) {
+    this.backfillStepExecutionJobInstanceIds = backfillStepExecutionJobInstanceIds;
+  }
+
+  public boolean isBackfillJobExecutionRunningFlags() {
+    return backfillJobExecutionRunningFlags;
+  }
+
+  /**
+   * Sets whether the job name and running flag are set on running job executions saved by older
+   * versions, in the background on the task executor. Until this is done, running job executions
+   * are looked up through all job instances with the job name. The backfill merges into the
+   * collection it reads from, which requires MongoDB 4.4 or later. Without the backfill, running
+   * job executions are only looked up by job name if a check on first use finds that all of them
+   * already have the running flag. Job executions saved afterwards by nodes still running an
+   * older version are only found once the check or backfill runs again, e.g. when this node
+   * restarts after the upgrade.
+   *
+   * @param backfillJobExecutionRunningFlags true to run the backfill at startup, false (default)
+   *     to only check whether all running job executions have their running flag
+   */
+  public void setBackfillJobExecutionRunningFlags(boolean backfillJobExecutionRunningFlags) {
+    this.backfillJobExecutionRunningFlags = backfillJobExecutionRunningFlags;
+  }
+
+  public boolean isJobExecutionStatusWatcher() {
+    return jobExecutionStatusWatcher;
+  }
+
+  /**
+   * Sets whether the status of running job executions is followed through a change stream, so
+   * checking whether a job was stopped doesn't query the database on every chunk commit. Requires
+   * a replica set or sharded cluster; on a standalone server the status is still queried.
+   *
+   * @param jobExecutionStatusWatcher true to follow job execution statuses
+   */
+  public void setJobExecutionStatusWatcher(boolean jobExecutionStatusWatcher) {
+    this.jobExecutionStatusWatcher = jobExecutionStatusWatcher;
+  }
+
+  public boolean isEnsureIndexesOnStartup() {
+    return ensureIndexesOnStartup;
+  }
+
+  /**
+   * Sets whether missing indexes are created at startup, in the background on the task executor.
+   *
+   * @param ensureIndexesOnStartup true to create missing indexes at startup
+   */
+  public void setEnsureIndexesOnStartup(boolean ensureIndexesOnStartup) {
+    this.ensureIndexesOnStartup = ensureIndexesOnStartup;
+  }
+
+  public boolean isBackfillJobNameRegistry() {
+    return backfillJobNameRegistry;
+  }
+
+  /**
+   * Sets whether the names of job instances created by older versions are added to the job name
+   * registry, in the background on the task executor. Until this is done, searching job
+   * instances by name scans all job instances. Without the backfill, the registry is only used if
+   * a check on first use finds that it holds all job names. Has no effect without {@link
+   * #setJobNameRegistrySearch}.
+   *
+   * @param backfillJobNameRegistry true to run the backfill at startup, false (default) to only
+   *     check whether the registry holds all job names
+   */
+  public void setBackfillJobNameRegistry(boolean backfillJobNameRegistry) {
+    this.backfillJobNameRegistry = backfillJobNameRegistry;
+  }
+
+  public boolean isJobNameRegistrySearch() {
+    return jobNameRegistrySearch;
+  }
+
+  /**
+   * Sets whether searching job instances by name matches the name literally, with '*' as
+   * wildcard, and looks up the matching job names in the job name registry instead of scanning all
+   * job instances. This changes which job names a search matches: by default, the name is a
+   * regular expression as in earlier versions.
+   *
+   * @param jobNameRegistrySearch true to search literally with the job name registry, false
+   *     (default) to match a regular expression
+   */
+  public void setJobNameRegistrySearch(boolean jobNameRegistrySearch) {
+    this.jobNameRegistrySearch = jobNameRegistrySearch;
+  }
+
+  public boolean isStepHistoryPrefetch() {
+    return stepHistoryPrefetch;
+  }
+
+  /**
+   * Sets whether the step history of a job instance is read with one aggregation when the job is
+   * launched or restarted, and used to answer lookups of its last step executions and their count
+   * until the job execution of that launch finishes. Prefetching starts once the backfill enabled
+   * by {@link #setBackfillStepExecutionJobInstanceIds} is complete. Without the backfill, it
+   * starts at once if all step executions were saved by this version, and otherwise has no effect
+   * and a warning is logged on the first lookup.
+   *
+   * @param stepHistoryPrefetch true to prefetch the step history, false (default) to look up each
+   *     step on its own
+   */
+  public void setStepHistoryPrefetch(boolean stepHistoryPrefetch) {
+    this.stepHistoryPrefetch = stepHistoryPrefetch;
+  }
+
+  public boolean isStepExecutionDeltaUpdates() {
+    return stepExecutionDeltaUpdates;
+  }
+
+  /**
+   * Sets whether step execution updates only write the fields that changed since the last write,
+   * incrementing counts by their difference.
+   *
+   * @param stepExecutionDeltaUpdates true to enable delta updates
+   */
+  public void setStepExecutionDeltaUpdates(boolean stepExecutionDeltaUpdates) {
+    this.stepExecutionDeltaUpdates = stepExecutionDeltaUpdates;
+  }
+
+  public boolean isStepExecutionUpdateBatching() {
+    return stepExecutionUpdateBatching;
+  }
+
+  /**
+   * Sets whether step execution updates issued concurrently, e.g. by the workers of a partitioned
+   * step, are written together with unordered bulk writes.
+   *
+   * @param stepExecutionUpdateBatching true to batch updates
+   */
+  public void setStepExecutionUpdateBatching(boolean stepExecutionUpdateBatching) {
+    this.stepExecutionUpdateBatching = stepExecutionUpdateBatching;
+  }
+
+  public Duration getStepExecutionUpdateBatchWindow() {
+    return stepExecutionUpdateBatchWindow;
+  }
+
+  /**
+   * Sets how long a batch of step execution updates waits for more updates before it is written.
+   * By default, updates are written as soon as no other batch is being written.
+   *
+   * @param stepExecutionUpdateBatchWindow time to wait
+   */
+  public void setStepExecutionUpdateBatchWindow(Duration stepExecutionUpdateBatchWindow) {
+    this.stepExecutionUpdateBatchWindow = stepExecutionUpdateBatchWindow;
+  }
+
+  public boolean isStepWriteBehind() {
+    return stepWriteBehind;
+  }
+
+  /**
+   * Sets whether updates of running step executions and their execution contexts are coalesced
+   * in memory, instead of being written on every commit. See {@link StepExecutionWriteBehind}.
+   *
+   * @param stepWriteBehind true to enable write-behind
+   */
+  public void setStepWriteBehind(boolean stepWriteBehind) {
+    this.stepWriteBehind = stepWriteBehind;
+  }
+
+  public int getStepWriteBehindMaxCommits() {
+    return stepWriteBehindMaxCommits;
+  }
+
+  /**
+   * Sets the number of commits of a step after which its coalesced updates are written.
+   *
+   * @param stepWriteBehindMaxCommits number of commits
+   */
+  public void setStepWriteBehindMaxCommits(int stepWriteBehindMaxCommits) {
+    this.stepWriteBehindMaxCommits = stepWriteBehindMaxCommits;
+  }
+
+  public Duration getStepWriteBehindMaxDelay() {
+    return stepWriteBehindMaxDelay;
+  }
+
+  /**
+   * Sets how long coalesced updates of a step may stay unwritten.
+   *
+   * @param stepWriteBehindMaxDelay maximum delay
+   */
+  public void setStepWriteBehindMaxDelay(Duration stepWriteBehindMaxDelay) {
+    this.stepWriteBehindMaxDelay = stepWriteBehindMaxDelay;
+  }
+}
@@ -0,0 +1,97 @@
+package eu.europeana.batch.context;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.bson.RawBsonDocument;
+import org.springframework.util.Assert;
+
+/**
+ * Remembers the last persisted BSON document of execution contexts, so that the next update can
+ * be reduced to the keys that changed.
+ *
+ * <p>Only contexts of running executions need to be tracked. Least recently used documents are
+ * evicted when either their number or their total size exceeds its limit, so a few large contexts
+ * can't hold on to an unbounded amount of memory. Documents larger than the size limit are not
+ * kept. A context whose document is not kept is simply written in full on its next update.
+ */
+public class ContextDocuments {
+
+  public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+  private final int maxEntries;
+  private final long maxWeight;
+
+  private final LinkedHashMap<String, RawBsonDocument> documents =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  private long weight;
+
+  public ContextDocuments() {
+    this(ContextFingerprints.DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+  }
+
+  /**
+   * Creates an instance with the given limits
+   *
+   * @param maxEntries maximum number of documents
+   * @param maxWeight maximum total size of the documents, in bytes
+   */
+  public ContextDocuments(int maxEntries, long maxWeight) {
+    Assert.isTrue(maxEntries > 0, "maxEntries must be greater than 0");
+    Assert.isTrue(maxWeight > 0, "maxWeight must be greater than 0");
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Gets the document last persisted for the context
+   *
+   * @param key key of the context
+   * @return the document, or null if it is not kept
+   */
+  public synchronized RawBsonDocument get(String key) {
+    return documents.get(key);
+  }
+
+  /**
+   * Remembers the document persisted for the context. A document larger than the maximum weight
+   * replaces the one kept for the context without being kept itself.
+   *
+   * @param key key of the context
+   * @param document document as persisted
+   */
+  public synchronized void put(String key, RawBsonDocument document) {
+    long documentWeight = document.getByteBuffer().remaining();
+    if (documentWeight > maxWeight) {
+      remove(key);
+      return;
+    }
+
+    RawBsonDocument previous = documents.put(key, document);
+    if (previous != null) {
+      weight -= previous.getByteBuffer().remaining();
+    }
+    weight += documentWeight;
+
+    Iterator<RawBsonDocument> eldest = documents.values().iterator();
+    while (documents.size() > maxEntries || weight > maxWeight) {
+      weight -= eldest.next().getByteBuffer().remaining();
+      eldest.remove();
+    }
+  }
+
+  public synchronized void remove(String key) {
+    RawBsonDocument removed = documents.remove(key);
+    if (removed != null) {
+      weight -= removed.getByteBuffer().remaining();
+    }
+  }
+
+  public synchronized int size() {
+    return documents.size();
+  }
+
+  public synchronized long getWeight() {
+    return weight;
+  }
+}
@@ -0,0 +1,70 @@
+package eu.europeana.batch.context;
+
+import eu.europeana.batch.BatchRepositoryUtils;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Remembers a fingerprint of the last persisted serialized form of execution contexts, so that
+ * writes of unchanged contexts can be skipped.
+ *
+ * <p>Only contexts of running executions need to be tracked. The number of tracked contexts is
+ * bounded, so entries of executions that never finish on this JVM are eventually evicted. An
+ * evicted context is simply written again on its next update.
+ */
+public class ContextFingerprints {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private final Map<String, byte[]> fingerprints;
+
+  public ContextFingerprints() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public ContextFingerprints(int maxEntries) {
+    this.fingerprints = BatchRepositoryUtils.createLruMap(maxEntries);
+  }
+
+  /**
+   * Computes the fingerprint of a serialized context
+   *
+   * @param data buffer containing the serialized context
+   * @param offset position of the serialized context in the buffer
+   * @param length number of bytes of the serialized context
+   * @return fingerprint
+   */
+  public byte[] fingerprint(byte[] data, int offset, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      digest.update(data, offset, length);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks if the fingerprint matches the one last persisted for the context
+   *
+   * @param key key of the context
+   * @param fingerprint fingerprint of the context about to be persisted
+   * @return true if the context was persisted with the same fingerprint before
+   */
+  public boolean matches(String key, byte[] fingerprint) {
+    return Arrays.equals(fingerprints.get(key), fingerprint);
+  }
+
+  public void put(String key, byte[] fingerprint) {
+    fingerprints.put(key, fingerprint);
+  }
+
+  public void remove(String key) {
+    fingerprints.remove(key);
+  }
+}
@@ -0,0 +1,150 @@
+package eu.europeana.batch.context;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.util.Assert;
+
+/**
+ * Bounded cache of deserialized execution contexts. Least recently used contexts are evicted when
+ * either the number of contexts or their total weight exceeds its limit. The weight of a context
+ * is an estimate of its size in bytes.
+ *
+ * <p>Only contexts that don't change anymore, i.e. those of finished executions, should be
+ * cached. Contexts are copied when they are added and when they are returned, so callers can't
+ * modify the cached context. Values themselves are not copied.
+ */
+public class ExecutionContextCache {
+
+  public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+  /** Weight of an entry in addition to its key and value */
+  private static final int ENTRY_WEIGHT = 32;
+
+  /** Weight of a value whose size isn't estimated */
+  private static final int OBJECT_WEIGHT = 16;
+
+  private final int maxEntries;
+  private final long maxWeight;
+
+  private final LinkedHashMap<String, CachedContext> contexts =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  private long weight;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  public ExecutionContextCache(int maxEntries) {
+    this(maxEntries, DEFAULT_MAX_WEIGHT);
+  }
+
+  /**
+   * Creates a cache with the given limits
+   *
+   * @param maxEntries maximum number of cached contexts
+   * @param maxWeight maximum total weight of the cached contexts
+   */
+  public ExecutionContextCache(int maxEntries, long maxWeight) {
+    Assert.isTrue(maxEntries > 0, "maxEntries must be greater than 0");
+    Assert.isTrue(maxWeight > 0, "maxWeight must be greater than 0");
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+  }
+
+  /**
+   * Gets a copy of the cached context
+   *
+   * @param key key of the context
+   * @return copy of the context, or null if it is not cached
+   */
+  public synchronized ExecutionContext get(String key) {
+    CachedContext cached = contexts.get(key);
+    if (cached == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return new ExecutionContext(cached.executionContext());
+  }
+
+  /**
+   * Caches a copy of the context. Contexts weighing more than the maximum weight are not cached.
+   *
+   * @param key key of the context
+   * @param executionContext context to cache
+   */
+  public synchronized void put(String key, ExecutionContext executionContext) {
+    long contextWeight = weigh(executionContext);
+    if (contextWeight > maxWeight) {
+      return;
+    }
+
+    CachedContext previous =
+        contexts.put(
+            key, new CachedContext(new ExecutionContext(executionContext), contextWeight));
+    if (previous != null) {
+      weight -= previous.weight();
+    }
+    weight += contextWeight;
+
+    Iterator<CachedContext> eldest = contexts.values().iterator();
+    while (contexts.size() > maxEntries || weight > maxWeight) {
+      weight -= eldest.next().weight();
+      eldest.remove();
+      evictionCount++;
+    }
+  }
+
+  /**
+   * Removes the context from the cache
+   *
+   * @param key key of the context
+   */
+  public synchronized void invalidate(String key) {
+    CachedContext removed = contexts.remove(key);
+    if (removed != null) {
+      weight -= removed.weight();
+    }
+  }
+
+  public synchronized int size() {
+    return contexts.size();
+  }
+
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Estimates the size in bytes of a context */
+  private static long weigh(ExecutionContext executionContext) {
+    long contextWeight = ENTRY_WEIGHT;
+    for (Map.Entry<String, Object> entry : executionContext.entrySet()) {
+      contextWeight += ENTRY_WEIGHT + 2L * entry.getKey().length();
+      Object value = entry.getValue();
+      if (value instanceof String string) {
+        contextWeight += 2L * string.length();
+      } else if (value instanceof byte[] bytes) {
+        contextWeight += bytes.length;
+      } else {
+        contextWeight += OBJECT_WEIGHT;
+      }
+    }
+    return contextWeight;
+  }
+
+  private record CachedContext(ExecutionContext executionContext, long weight) {}
+}
@@ -0,0 +1,257 @@
+package eu.europeana.batch.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Encodes an {@link ExecutionContext} as a native BSON document, with one field per context key.
+ *
+ * <p>Values with a BSON equivalent (String, Integer, Long, Double, Boolean, Date and byte[]) are
+ * written as is. Other numeric and character types are written as a sub-document holding a type
+ * tag and the value, so they are read back with their original type. Any other value falls back
+ * to the {@link ExecutionContextSerializer}, and is stored as a tagged sub-document containing the
+ * serialized value.
+ *
+ * <p>Mongo field names can't contain "." or start with "$", so keys are escaped using
+ * percent-encoding of these characters.
+ */
+public class ExecutionContextCodec implements Codec<ExecutionContext> {
+
+  public static final String TYPE_KEY = "@t";
+  public static final String VALUE_KEY = "v";
+
+  private static final String FLOAT_TYPE = "float";
+  private static final String SHORT_TYPE = "short";
+  private static final String BYTE_TYPE = "byte";
+  private static final String CHAR_TYPE = "char";
+  private static final String BIG_DECIMAL_TYPE = "bigdecimal";
+  private static final String BIG_INTEGER_TYPE = "biginteger";
+  private static final String SERIALIZED_TYPE = "serialized";
+
+  private final ExecutionContextSerializer serializer;
+
+  /**
+   * Creates a codec
+   *
+   * @param serializer serializer used for values without a native BSON representation
+   */
+  public ExecutionContextCodec(ExecutionContextSerializer serializer) {
+    this.serializer = serializer;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, ExecutionContext value, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    for (Map.Entry<String, Object> entry : value.entrySet()) {
+      writer.writeName(escapeKey(entry.getKey()));
+      writeValue(writer, entry.getValue());
+    }
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public ExecutionContext decode(BsonReader reader, DecoderContext decoderContext) {
+    ExecutionContext executionContext = new ExecutionContext();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String key = unescapeKey(reader.readName());
+      executionContext.put(key, readValue(reader));
+    }
+    reader.readEndDocument();
+    return executionContext;
+  }
+
+  @Override
+  public Class<ExecutionContext> getEncoderClass() {
+    return ExecutionContext.class;
+  }
+
+  /**
+   * Encodes the execution context into a new BsonDocument
+   *
+   * @param executionContext context to encode
+   * @return BsonDocument with one field per context key
+   */
+  public BsonDocument toBsonDocument(ExecutionContext executionContext) {
+    BsonDocument document = new BsonDocument();
+    encode(new BsonDocumentWriter(document), executionContext, EncoderContext.builder().build());
+    return document;
+  }
+
+  /**
+   * Decodes an execution context from a BsonDocument created by {@link
+   * #toBsonDocument(ExecutionContext)}
+   *
+   * @param document document to decode
+   * @return decoded execution context
+   */
+  public ExecutionContext fromBsonDocument(BsonDocument document) {
+    return decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  /**
+   * Escapes a context key so it can be used as a Mongo field name
+   *
+   * @param key context key
+   * @return escaped key
+   */
+  public static String escapeKey(String key) {
+    if (key.indexOf('%') < 0 && key.indexOf('.') < 0 && key.indexOf('$') < 0) {
+      return key;
+    }
+    return key.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+  }
+
+  /**
+   * Reverses {@link #escapeKey(String)}
+   *
+   * @param key escaped key
+   * @return original context key
+   */
+  public static String unescapeKey(String key) {
+    if (key.indexOf('%') < 0) {
+      return key;
+    }
+    return key.replace("%2E", ".").replace("%24", "$").replace("%25", "%");
+  }
+
+  private void writeValue(BsonWriter writer, Object value) {
+    if (value == null) {
+      writer.writeNull();
+    } else if (value instanceof String s) {
+      writer.writeString(s);
+    } else if (value instanceof Integer i) {
+      writer.writeInt32(i);
+    } else if (value instanceof Long l) {
+      writer.writeInt64(l);
+    } else if (value instanceof Double d) {
+      writer.writeDouble(d);
+    } else if (value instanceof Boolean b) {
+      writer.writeBoolean(b);
+    } else if (value.getClass() == Date.class) {
+      // subclasses such as java.sql.Timestamp would lose their type, so they are serialized
+      writer.writeDateTime(((Date) value).getTime());
+    } else if (value instanceof byte[] bytes) {
+      writer.writeBinaryData(new BsonBinary(bytes));
+    } else {
+      writeTypedValue(writer, value);
+    }
+  }
+
+  private void writeTypedValue(BsonWriter writer, Object value) {
+    writer.writeStartDocument();
+    if (value instanceof Float f) {
+      writer.writeString(TYPE_KEY, FLOAT_TYPE);
+      writer.writeDouble(VALUE_KEY, f);
+    } else if (value instanceof Short s) {
+      writer.writeString(TYPE_KEY, SHORT_TYPE);
+      writer.writeInt32(VALUE_KEY, s);
+    } else if (value instanceof Byte b) {
+      writer.writeString(TYPE_KEY, BYTE_TYPE);
+      writer.writeInt32(VALUE_KEY, b);
+    } else if (value instanceof Character c) {
+      writer.writeString(TYPE_KEY, CHAR_TYPE);
+      writer.writeString(VALUE_KEY, c.toString());
+    } else if (value.getClass() == BigDecimal.class) {
+      writer.writeString(TYPE_KEY, BIG_DECIMAL_TYPE);
+      writer.writeString(VALUE_KEY, value.toString());
+    } else if (value.getClass() == BigInteger.class) {
+      writer.writeString(TYPE_KEY, BIG_INTEGER_TYPE);
+      writer.writeString(VALUE_KEY, value.toString());
+    } else {
+      writer.writeString(TYPE_KEY, SERIALIZED_TYPE);
+      writer.writeString(VALUE_KEY, serializeValue(value));
+    }
+    writer.writeEndDocument();
+  }
+
+  private Object readValue(BsonReader reader) {
+    BsonType type = reader.getCurrentBsonType();
+    switch (type) {
+      case NULL:
+        reader.readNull();
+        return null;
+      case STRING:
+        return reader.readString();
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      case DOUBLE:
+        return reader.readDouble();
+      case BOOLEAN:
+        return reader.readBoolean();
+      case DATE_TIME:
+        return new Date(reader.readDateTime());
+      case BINARY:
+        return reader.readBinaryData().getData();
+      case DOCUMENT:
+        return readTypedValue(reader);
+      default:
+        throw new IllegalArgumentException(
+            "Unable to decode execution context value of BSON type " + type);
+    }
+  }
+
+  private Object readTypedValue(BsonReader reader) {
+    reader.readStartDocument();
+    String type = reader.readString(TYPE_KEY);
+    reader.readName(VALUE_KEY);
+    Object value =
+        switch (type) {
+          case FLOAT_TYPE -> (float) reader.readDouble();
+          case SHORT_TYPE -> (short) reader.readInt32();
+          case BYTE_TYPE -> (byte) reader.readInt32();
+          case CHAR_TYPE -> reader.readString().charAt(0);
+          case BIG_DECIMAL_TYPE -> new BigDecimal(reader.readString());
+          case BIG_INTEGER_TYPE -> new BigInteger(reader.readString());
+          case SERIALIZED_TYPE -> deserializeValue(reader.readString());
+          default -> throw new IllegalArgumentException(
+              "Unknown execution context value type " + type);
+        };
+    reader.readEndDocument();
+    return value;
+  }
+
+  private String serializeValue(Object value) {
+    // the Jackson serializer tags the map with its type, and only reads back a HashMap
+    Map<String, Object> map = new HashMap<>();
+    map.put(VALUE_KEY, value);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      serializer.serialize(map, out);
+    } catch (IOException ioe) {
+      throw new IllegalArgumentException("Could not serialize the execution context", ioe);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private Object deserializeValue(String serializedValue) {
+    try {
+      return serializer
+          .deserialize(new ByteArrayInputStream(serializedValue.getBytes(StandardCharsets.UTF_8)))
+          .get(VALUE_KEY);
+    } catch (IOException ioe) {
+      throw new IllegalArgumentException("Unable to deserialize the execution context", ioe);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package eu.europeana.batch.context;
+
+import java.util.Map;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/** Computes field-level updates between two execution contexts encoded as BSON documents. */
+public final class ExecutionContextDiff {
+
+  private ExecutionContextDiff() {
+    // hide implicit public constructor
+  }
+
+  /**
+   * Creates an update document that turns the previously persisted context into the current one,
+   * using $set for added or changed keys and $unset for removed keys.
+   *
+   * @param previous context as last persisted
+   * @param current context to persist
+   * @param fieldName name of the field holding the context in the stored document
+   * @return update document, which is empty if nothing changed; or null if most keys changed, in
+   *     which case replacing the whole context is cheaper
+   */
+  public static BsonDocument createUpdate(
+      BsonDocument previous, BsonDocument current, String fieldName) {
+    BsonDocument set = new BsonDocument();
+    BsonDocument unset = new BsonDocument();
+
+    for (Map.Entry<String, BsonValue> entry : current.entrySet()) {
+      if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+        set.put(fieldName + "." + entry.getKey(), entry.getValue());
+      }
+    }
+    for (String key : previous.keySet()) {
+      if (!current.containsKey(key)) {
+        unset.put(fieldName + "." + key, new BsonString(""));
+      }
+    }
+
+    int changes = set.size() + unset.size();
+    if (changes > 0 && changes * 2 > current.size()) {
+      return null;
+    }
+
+    BsonDocument update = new BsonDocument();
+    if (!set.isEmpty()) {
+      update.put("$set", set);
+    }
+    if (!unset.isEmpty()) {
+      update.put("$unset", unset);
+    }
+    return update;
+  }
+}
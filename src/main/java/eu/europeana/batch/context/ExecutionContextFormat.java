@@ -0,0 +1,9 @@
+package eu.europeana.batch.context;
+
+/** Formats in which execution contexts can be stored */
+public enum ExecutionContextFormat {
+  /** Serialized to a JSON string, as done by the Spring Batch JDBC implementation */
+  JSON,
+  /** Stored as an embedded BSON document. See {@link ExecutionContextCodec} */
+  BSON
+}
@@ -0,0 +1,181 @@
+package eu.europeana.batch.context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.bson.BsonBinaryReader;
+import org.bson.codecs.DecoderContext;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * Binary representation of a serialized execution context, used when a context is too large to be
+ * stored inline.
+ *
+ * <p>The payload starts with a 4-byte header: two magic bytes, the {@link ExecutionContextFormat}
+ * of the serialized context, and the compression codec used for the rest of the payload.
+ */
+public final class ExecutionContextPayload {
+
+  private static final byte MAGIC_1 = 'E';
+  private static final byte MAGIC_2 = 'C';
+
+  private static final byte FORMAT_JSON = 0;
+  private static final byte FORMAT_BSON = 1;
+
+  private static final byte CODEC_NONE = 0;
+  private static final byte CODEC_DEFLATE = 1;
+
+  private static final int HEADER_LENGTH = 4;
+
+  private ExecutionContextPayload() {
+    // hide implicit public constructor
+  }
+
+  /**
+   * Creates a payload containing the deflate-compressed serialized context. If compression does
+   * not reduce the size, the context is stored uncompressed instead.
+   *
+   * @param format format the context was serialized in
+   * @param data buffer containing the serialized context
+   * @param offset position of the serialized context in the buffer
+   * @param length number of bytes of the serialized context
+   * @return payload bytes
+   */
+  public static byte[] compress(
+      ExecutionContextFormat format, byte[] data, int offset, int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + length / 2);
+    try {
+      write(out, format, data, offset, length, true);
+    } catch (IOException ioe) {
+      throw new IllegalArgumentException("Could not compress the execution context", ioe);
+    }
+
+    if (out.size() >= HEADER_LENGTH + length) {
+      return wrap(format, data, offset, length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates an uncompressed payload for the serialized context
+   *
+   * @param format format the context was serialized in
+   * @param data buffer containing the serialized context
+   * @param offset position of the serialized context in the buffer
+   * @param length number of bytes of the serialized context
+   * @return payload bytes
+   */
+  public static byte[] wrap(ExecutionContextFormat format, byte[] data, int offset, int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + length);
+    out.writeBytes(header(format, CODEC_NONE));
+    out.write(data, offset, length);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a payload for the serialized context to a stream, without buffering the whole payload.
+   * The stream is not closed.
+   *
+   * @param out stream to write to
+   * @param format format the context was serialized in
+   * @param data buffer containing the serialized context
+   * @param offset position of the serialized context in the buffer
+   * @param length number of bytes of the serialized context
+   * @param compress true to deflate-compress the context
+   * @throws IOException if writing to the stream fails
+   */
+  public static void write(
+      OutputStream out,
+      ExecutionContextFormat format,
+      byte[] data,
+      int offset,
+      int length,
+      boolean compress)
+      throws IOException {
+    if (!compress) {
+      out.write(header(format, CODEC_NONE));
+      out.write(data, offset, length);
+      return;
+    }
+
+    out.write(header(format, CODEC_DEFLATE));
+    // favour speed, as contexts are compressed on every commit
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+      deflaterOut.write(data, offset, length);
+      deflaterOut.finish();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decodes the execution context in the given payload
+   *
+   * @param payload payload bytes
+   * @param serializer serializer used for the context, or for values without a native BSON type
+   * @return decoded execution context
+   */
+  public static ExecutionContext decode(byte[] payload, ExecutionContextSerializer serializer) {
+    return decode(new ByteArrayInputStream(payload), serializer);
+  }
+
+  /**
+   * Decodes the execution context from a stream containing a payload. The stream is not closed.
+   *
+   * @param in stream positioned at the start of the payload
+   * @param serializer serializer used for the context, or for values without a native BSON type
+   * @return decoded execution context
+   */
+  public static ExecutionContext decode(InputStream in, ExecutionContextSerializer serializer) {
+    try {
+      byte[] header = in.readNBytes(HEADER_LENGTH);
+      if (header.length != HEADER_LENGTH || header[0] != MAGIC_1 || header[1] != MAGIC_2) {
+        throw new IllegalArgumentException("Invalid execution context payload header");
+      }
+
+      InputStream content =
+          switch (header[3]) {
+            case CODEC_NONE -> in;
+            case CODEC_DEFLATE -> new InflaterInputStream(in);
+            default -> throw new IllegalArgumentException(
+                "Unknown execution context compression codec " + header[3]);
+          };
+
+      return switch (header[2]) {
+        case FORMAT_JSON -> toExecutionContext(serializer.deserialize(content));
+        case FORMAT_BSON -> new ExecutionContextCodec(serializer)
+            .decode(
+                new BsonBinaryReader(ByteBuffer.wrap(content.readAllBytes())),
+                DecoderContext.builder().build());
+        default -> throw new IllegalArgumentException(
+            "Unknown execution context format " + header[2]);
+      };
+    } catch (IOException ioe) {
+      throw new IllegalArgumentException("Unable to deserialize the execution context", ioe);
+    }
+  }
+
+  private static ExecutionContext toExecutionContext(Map<String, Object> map) {
+    ExecutionContext executionContext = new ExecutionContext();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      executionContext.put(entry.getKey(), entry.getValue());
+    }
+    return executionContext;
+  }
+
+  private static byte[] header(ExecutionContextFormat format, byte codec) {
+    return new byte[] {
+      MAGIC_1, MAGIC_2, format == ExecutionContextFormat.BSON ? FORMAT_BSON : FORMAT_JSON, codec
+    };
+  }
+}
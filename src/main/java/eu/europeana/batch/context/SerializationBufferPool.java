@@ -0,0 +1,88 @@
+package eu.europeana.batch.context;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.util.Assert;
+
+/**
+ * Pool of the buffers contexts are serialized into, shared by all threads. A buffer is taken for
+ * one context and given back once the context was written, so the capacity grown by a large
+ * context is reused by the next ones instead of being allocated again. The pool is bounded by the
+ * total capacity of the buffers it holds: a buffer given back beyond it is dropped, so a burst of
+ * large contexts doesn't keep its memory.
+ */
+public class SerializationBufferPool {
+
+  public static final long DEFAULT_MAX_CAPACITY = 16L * 1024 * 1024;
+
+  private final long maxCapacity;
+
+  /** Buffers given back, the most recently used first */
+  private final Deque<Buffer> buffers = new ConcurrentLinkedDeque<>();
+
+  /** Total capacity of the pooled buffers */
+  private final AtomicLong capacity = new AtomicLong();
+
+  public SerializationBufferPool() {
+    this(DEFAULT_MAX_CAPACITY);
+  }
+
+  /**
+   * Creates a pool with the given limit
+   *
+   * @param maxCapacity maximum total capacity in bytes of the pooled buffers
+   */
+  public SerializationBufferPool(long maxCapacity) {
+    Assert.isTrue(maxCapacity >= 0, "maxCapacity must not be negative");
+    this.maxCapacity = maxCapacity;
+  }
+
+  /**
+   * Takes an empty buffer out of the pool, or creates one if none is pooled
+   *
+   * @return buffer owned by the caller until it is given back
+   */
+  public Buffer take() {
+    Buffer buffer = buffers.pollFirst();
+    if (buffer == null) {
+      return new Buffer();
+    }
+    capacity.addAndGet(-buffer.getCapacity());
+    buffer.reset();
+    return buffer;
+  }
+
+  /**
+   * Gives back a buffer taken from the pool. It must not be used anymore afterwards.
+   *
+   * @param buffer buffer to pool, which is dropped if the pool is full
+   */
+  public void giveBack(Buffer buffer) {
+    int bufferCapacity = buffer.getCapacity();
+    if (capacity.addAndGet(bufferCapacity) > maxCapacity) {
+      capacity.addAndGet(-bufferCapacity);
+      return;
+    }
+    buffers.offerFirst(buffer);
+  }
+
+  /** Gets the total capacity in bytes of the pooled buffers */
+  public long getPooledCapacity() {
+    return capacity.get();
+  }
+
+  /** Buffer whose bytes can be read without copying them */
+  public static class Buffer extends ByteArrayOutputStream {
+
+    /** Gets the bytes written so far, in the first {@link #size()} bytes of the returned array */
+    public byte[] getData() {
+      return buf;
+    }
+
+    public int getCapacity() {
+      return buf.length;
+    }
+  }
+}
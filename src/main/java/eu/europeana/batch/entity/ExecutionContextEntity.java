@@ -1,6 +1,10 @@
 package eu.europeana.batch.entity;
 
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_COMPRESSED_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_DOCUMENT_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_FILE_ID_KEY;
 import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_ID_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_SERIALIZED_KEY;
 import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_TYPE_KEY;
 
 import dev.morphia.annotations.Entity;
@@ -8,10 +12,22 @@ import dev.morphia.annotations.Field;
 import dev.morphia.annotations.Id;
 import dev.morphia.annotations.Index;
 import dev.morphia.annotations.Indexes;
+import eu.europeana.batch.context.ExecutionContextCodec;
+import eu.europeana.batch.context.ExecutionContextPayload;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.BsonInput;
+import org.bson.io.ByteBufferBsonInput;
 import org.bson.types.ObjectId;
 import org.springframework.batch.core.repository.ExecutionContextSerializer;
 import org.springframework.batch.item.ExecutionContext;
@@ -25,6 +41,14 @@ public class ExecutionContextEntity {
 
   private String serializedContext;
 
+  private BsonDocument context;
+
+  /** Context stored as an {@link ExecutionContextPayload}, used for large contexts */
+  private byte[] compressedContext;
+
+  /** Id of the GridFS file holding the context as an {@link ExecutionContextPayload} */
+  private ObjectId contextFileId;
+
   private ExecutionContextEntityType type;
 
   public long getExecutionId() {
@@ -35,6 +59,18 @@ public class ExecutionContextEntity {
     return serializedContext;
   }
 
+  public BsonDocument getContext() {
+    return context;
+  }
+
+  public byte[] getCompressedContext() {
+    return compressedContext;
+  }
+
+  public ObjectId getContextFileId() {
+    return contextFileId;
+  }
+
   public ExecutionContextEntityType getType() {
     return type;
   }
@@ -43,6 +79,13 @@ public class ExecutionContextEntity {
     // default empty constructor
   }
 
+  /**
+   * Creates an entity holding a context serialized as a string.
+   *
+   * @deprecated contexts are written by {@code ExecutionContextRepository} in the format it is
+   *     configured with; this will be removed in the next minor version
+   */
+  @Deprecated(forRemoval = true)
   public ExecutionContextEntity(
       ExecutionContextEntityType type, long executionId, String serializedContext) {
     this.type = type;
@@ -50,30 +93,121 @@ public class ExecutionContextEntity {
     this.serializedContext = serializedContext;
   }
 
+  /**
+   * Creates an entity holding a context serialized as a string.
+   *
+   * @deprecated contexts are written by {@code ExecutionContextRepository} in the format it is
+   *     configured with; this will be removed in the next minor version
+   */
+  @Deprecated(forRemoval = true)
   public static ExecutionContextEntity toEntity(
       ExecutionContextEntityType type, Long executionId, String serializedContext) {
     return new ExecutionContextEntity(type, executionId, serializedContext);
   }
 
+  /**
+   * Decodes the context stored in the entity, in any of the formats it can be stored in except in
+   * a GridFS file.
+   *
+   * @param entity entity, or null if no context is stored
+   * @param serializer serializer used for the context, or for values without a native BSON type
+   * @return decoded execution context, which is empty if no context is stored
+   * @deprecated use {@link #fromDocument}, which decodes the context without mapping the entity
+   *     first; this will be removed in the next minor version
+   */
+  @Deprecated(forRemoval = true)
   public static ExecutionContext fromEntity(
       ExecutionContextEntity entity, ExecutionContextSerializer serializer) {
-    ExecutionContext executionContext = new ExecutionContext();
-
     if (entity == null) {
-      return executionContext;
+      return new ExecutionContext();
+    }
+    if (entity.getContext() != null) {
+      return new ExecutionContextCodec(serializer).fromBsonDocument(entity.getContext());
     }
+    if (entity.getCompressedContext() != null) {
+      return ExecutionContextPayload.decode(entity.getCompressedContext(), serializer);
+    }
+    if (entity.getContextFileId() != null) {
+      throw new IllegalArgumentException(
+          "Execution context is stored in GridFS file " + entity.getContextFileId());
+    }
+    if (entity.getSerializedContext() == null) {
+      return new ExecutionContext();
+    }
+    byte[] bytes = entity.getSerializedContext().getBytes(StandardCharsets.UTF_8);
+    return deserialize(new ByteArrayInputStream(bytes), serializer);
+  }
 
-    String serializedContext = entity.getSerializedContext();
+  /**
+   * Decodes the context stored in a document of this entity, read as raw BSON. A serialized
+   * context is deserialized straight from the bytes of the document, and a context stored as a
+   * BSON document is decoded without first being copied into a {@link BsonDocument}.
+   *
+   * @param document document, or null if no context is stored
+   * @param serializer serializer used for the context, or for values without a native BSON type
+   * @return decoded execution context, which is empty if no context is stored
+   */
+  public static ExecutionContext fromDocument(
+      RawBsonDocument document, ExecutionContextSerializer serializer) {
+    if (document == null) {
+      return new ExecutionContext();
+    }
 
+    ByteBuf buffer = document.getByteBuffer();
+    try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(buffer))) {
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        String name = reader.readName();
+        BsonType type = reader.getCurrentBsonType();
+        if (type == BsonType.STRING && name.equals(EXECUTION_CTX_SERIALIZED_KEY)) {
+          return deserialize(reader, buffer.asNIO(), serializer);
+        }
+        // contexts stored as BSON documents don't need the serializer, unless they contain values
+        // without a native BSON representation
+        if (type == BsonType.DOCUMENT && name.equals(EXECUTION_CTX_DOCUMENT_KEY)) {
+          return new ExecutionContextCodec(serializer)
+              .decode(reader, DecoderContext.builder().build());
+        }
+        if (type == BsonType.BINARY && name.equals(EXECUTION_CTX_COMPRESSED_KEY)) {
+          return ExecutionContextPayload.decode(reader.readBinaryData().getData(), serializer);
+        }
+        if (type == BsonType.OBJECT_ID && name.equals(EXECUTION_CTX_FILE_ID_KEY)) {
+          throw new IllegalArgumentException(
+              "Execution context is stored in GridFS file " + reader.readObjectId());
+        }
+        reader.skipValue();
+      }
+    }
+    return new ExecutionContext();
+  }
+
+  /**
+   * Deserializes the string value the reader is positioned at, without decoding it into a String
+   *
+   * @param bytes buffer the reader reads from
+   */
+  private static ExecutionContext deserialize(
+      BsonBinaryReader reader, ByteBuffer bytes, ExecutionContextSerializer serializer) {
+    // a BSON string is its size, including the trailing null byte, followed by its UTF-8 bytes
+    BsonInput input = reader.getBsonInput();
+    int size = input.readInt32();
+
+    return deserialize(
+        new ByteArrayInputStream(
+            bytes.array(), bytes.arrayOffset() + input.getPosition(), size - 1),
+        serializer);
+  }
+
+  private static ExecutionContext deserialize(
+      InputStream in, ExecutionContextSerializer serializer) {
     // reproduced from JdbcExecutionContextDao (in Spring batch core)
     Map<String, Object> map;
     try {
-      ByteArrayInputStream in =
-          new ByteArrayInputStream(serializedContext.getBytes(StandardCharsets.UTF_8));
       map = serializer.deserialize(in);
     } catch (IOException ioe) {
       throw new IllegalArgumentException("Unable to deserialize the execution context", ioe);
     }
+    ExecutionContext executionContext = new ExecutionContext();
     for (Map.Entry<String, Object> entry : map.entrySet()) {
       executionContext.put(entry.getKey(), entry.getValue());
     }
@@ -1,8 +1,20 @@
 package eu.europeana.batch.entity;
 
+import static eu.europeana.batch.BatchConstants.CREATE_TIME_KEY;
+import static eu.europeana.batch.BatchConstants.END_TIME_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
+import static eu.europeana.batch.BatchConstants.RUNNING_KEY;
+
 import dev.morphia.annotations.Entity;
+import dev.morphia.annotations.Field;
 import dev.morphia.annotations.Id;
+import dev.morphia.annotations.Index;
+import dev.morphia.annotations.IndexOptions;
 import dev.morphia.annotations.Indexed;
+import dev.morphia.annotations.Indexes;
+import dev.morphia.utils.IndexType;
 import eu.europeana.batch.BatchRepositoryUtils;
 
 import java.time.LocalDateTime;
@@ -15,6 +27,25 @@ import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobParameters;
 
 @Entity("JobExecution")
+@Indexes({
+  // job executions of an instance, most recent first
+  @Index(
+      fields = {
+        @Field(JOB_INSTANCE_ID_KEY),
+        @Field(value = JOB_EXECUTION_ID_KEY, type = IndexType.DESC)
+      }),
+  @Index(
+      fields = {
+        @Field(JOB_INSTANCE_ID_KEY),
+        @Field(value = CREATE_TIME_KEY, type = IndexType.DESC)
+      }),
+  // only holds running executions, so its size doesn't grow with the job history
+  @Index(
+      fields = {@Field(JOB_NAME_KEY), @Field(value = JOB_EXECUTION_ID_KEY, type = IndexType.DESC)},
+      options = @IndexOptions(partialFilter = "{" + RUNNING_KEY + ": true}")),
+  // running executions saved by older versions have neither, so they are found by index seeks
+  @Index(fields = {@Field(END_TIME_KEY), @Field(RUNNING_KEY)}),
+})
 public class JobExecutionEntity {
 
   @Id private ObjectId _id;
@@ -23,7 +54,13 @@ public class JobExecutionEntity {
 
   @Indexed private long jobExecutionId;
 
-  @Indexed private long jobInstanceId;
+  private long jobInstanceId;
+
+  /** Null for job executions saved by older versions, until they are backfilled */
+  private String jobName;
+
+  /** True while the execution has no end time, absent otherwise */
+  private Boolean running;
 
   private LocalDateTime startTime;
 
@@ -53,6 +90,10 @@ public class JobExecutionEntity {
     return jobInstanceId;
   }
 
+  public String getJobName() {
+    return jobName;
+  }
+
   public LocalDateTime getStartTime() {
     return startTime;
   }
@@ -97,8 +138,13 @@ public class JobExecutionEntity {
 
     jobExecutionEntity.version = jobExecution.getVersion();
     jobExecutionEntity.jobExecutionId = jobExecution.getId();
+    if (jobExecution.getJobInstance() != null) {
+      jobExecutionEntity.jobInstanceId = jobExecution.getJobInstance().getInstanceId();
+      jobExecutionEntity.jobName = jobExecution.getJobInstance().getJobName();
+    }
     jobExecutionEntity.startTime = jobExecution.getStartTime();
     jobExecutionEntity.endTime = jobExecution.getEndTime();
+    jobExecutionEntity.running = isRunning(jobExecution);
     jobExecutionEntity.status = jobExecution.getStatus().toString();
     jobExecutionEntity.exitCode = jobExecution.getExitStatus().getExitCode();
     jobExecutionEntity.exitMessage = jobExecution.getExitStatus().getExitDescription();
@@ -109,6 +155,16 @@ public class JobExecutionEntity {
     return jobExecutionEntity;
   }
 
+  /**
+   * Gets the value of the running flag of a job execution
+   *
+   * @param jobExecution job execution
+   * @return true if the job execution has no end time, otherwise null so the flag is not stored
+   */
+  public static Boolean isRunning(JobExecution jobExecution) {
+    return jobExecution.getEndTime() == null ? Boolean.TRUE : null;
+  }
+
   public static JobExecution fromEntity(JobExecutionEntity jobExecutionEntity) {
     if (jobExecutionEntity == null) {
       return null;
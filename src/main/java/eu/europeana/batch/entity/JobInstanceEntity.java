@@ -1,10 +1,18 @@
 package eu.europeana.batch.entity;
 
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
 import static eu.europeana.batch.BatchConstants.JOB_KEY_GENERATOR;
+import static eu.europeana.batch.BatchConstants.JOB_KEY_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
 
 import dev.morphia.annotations.Entity;
+import dev.morphia.annotations.Field;
 import dev.morphia.annotations.Id;
+import dev.morphia.annotations.Index;
+import dev.morphia.annotations.IndexOptions;
 import dev.morphia.annotations.Indexed;
+import dev.morphia.annotations.Indexes;
+import dev.morphia.utils.IndexType;
 import eu.europeana.batch.BatchRepositoryUtils;
 import java.util.HashMap;
 import java.util.Map;
@@ -13,16 +21,26 @@ import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
 
 @Entity("JobInstance")
+@Indexes({
+  // job instances of a job, most recent first, and their count
+  @Index(
+      fields = {@Field(JOB_NAME_KEY), @Field(value = JOB_INSTANCE_ID_KEY, type = IndexType.DESC)}),
+  // a job instance is identified by its job name and key, even when created by different nodes
+  @Index(
+      fields = {@Field(JOB_NAME_KEY), @Field(JOB_KEY_KEY)},
+      options =
+          @IndexOptions(unique = true, partialFilter = "{" + JOB_KEY_KEY + ": {$exists: true}}")),
+})
 public class JobInstanceEntity {
   @Id private ObjectId _id;
 
   private String jobName;
 
-  private long jobInstanceId;
+  @Indexed private long jobInstanceId;
 
   private int version;
 
-  @Indexed private String jobKey;
+  private String jobKey;
 
   private Map<String, Object> jobParameters = new HashMap<>();
 
@@ -0,0 +1,52 @@
+package eu.europeana.batch.entity;
+
+import dev.morphia.annotations.Entity;
+import dev.morphia.annotations.Id;
+import dev.morphia.annotations.Indexed;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Name of a job that has job instances, with the trigrams (substrings of 3 characters) of the
+ * name. The multikey index on the trigrams lets a substring search find the matching job names
+ * without scanning all job instances.
+ */
+@Entity(useDiscriminator = false, value = "JobName")
+public class JobNameEntity {
+
+  public static final String TRIGRAMS_KEY = "trigrams";
+
+  private static final int GRAM_LENGTH = 3;
+
+  @Id private String jobName;
+
+  @Indexed private List<String> trigrams;
+
+  protected JobNameEntity() {
+    super();
+  }
+
+  public String getJobName() {
+    return jobName;
+  }
+
+  public List<String> getTrigrams() {
+    return trigrams;
+  }
+
+  /**
+   * Gets the distinct trigrams of a text. Texts shorter than 3 characters have none.
+   *
+   * @param text text
+   * @return trigrams, in order of first occurrence
+   */
+  public static List<String> toTrigrams(String text) {
+    Set<String> grams = new LinkedHashSet<>();
+    for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+      grams.add(text.substring(i, i + GRAM_LENGTH));
+    }
+    return new ArrayList<>(grams);
+  }
+}
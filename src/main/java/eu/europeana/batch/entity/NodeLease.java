@@ -0,0 +1,32 @@
+package eu.europeana.batch.entity;
+
+import dev.morphia.annotations.Entity;
+import dev.morphia.annotations.Id;
+
+/** Lease on a node id, used by the time-based ID generator to keep node ids unique */
+@Entity(useDiscriminator = false, value = "NodeLease")
+public class NodeLease {
+
+  @Id private int nodeId;
+
+  private String owner;
+
+  /** Expiry time, in epoch millis as measured by the owning node */
+  private long expiresAt;
+
+  protected NodeLease() {
+    super();
+  }
+
+  public int getNodeId() {
+    return nodeId;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+}
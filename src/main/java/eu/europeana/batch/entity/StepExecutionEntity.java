@@ -1,6 +1,10 @@
 package eu.europeana.batch.entity;
 
 import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
+import static eu.europeana.batch.BatchConstants.START_TIME_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_NAME_KEY;
 import static eu.europeana.batch.BatchConstants.VERSION_KEY;
 
 import dev.morphia.annotations.Entity;
@@ -9,6 +13,7 @@ import dev.morphia.annotations.Id;
 import dev.morphia.annotations.Index;
 import dev.morphia.annotations.Indexed;
 import dev.morphia.annotations.Indexes;
+import dev.morphia.utils.IndexType;
 
 import java.time.LocalDateTime;
 import org.bson.types.ObjectId;
@@ -20,6 +25,24 @@ import org.springframework.batch.core.StepExecution;
 @Entity("StepExecution")
 @Indexes({
   @Index(fields = {@Field(JOB_EXECUTION_ID_KEY), @Field(VERSION_KEY)}),
+  // step executions of a job execution, in order
+  @Index(fields = {@Field(JOB_EXECUTION_ID_KEY), @Field(STEP_EXECUTION_ID_KEY)}),
+  // step history of a job instance, used by getLastStepExecution and countStepExecutions
+  @Index(
+      fields = {
+        @Field(JOB_INSTANCE_ID_KEY),
+        @Field(STEP_NAME_KEY),
+        @Field(value = START_TIME_KEY, type = IndexType.DESC),
+        @Field(value = STEP_EXECUTION_ID_KEY, type = IndexType.DESC)
+      }),
+  // same lookup for step executions saved without their job instance id, until they're backfilled
+  @Index(
+      fields = {
+        @Field(STEP_NAME_KEY),
+        @Field(JOB_EXECUTION_ID_KEY),
+        @Field(value = START_TIME_KEY, type = IndexType.DESC),
+        @Field(value = STEP_EXECUTION_ID_KEY, type = IndexType.DESC)
+      }),
 })
 public class StepExecutionEntity {
   @Id private ObjectId _id;
@@ -28,6 +51,9 @@ public class StepExecutionEntity {
 
   private long jobExecutionId;
 
+  /** Null for step executions saved by older versions, until they are backfilled */
+  private Long jobInstanceId;
+
   private String stepName;
 
   private LocalDateTime startTime;
@@ -119,12 +145,17 @@ public class StepExecutionEntity {
     return jobExecutionId;
   }
 
+  public Long getJobInstanceId() {
+    return jobInstanceId;
+  }
+
   public static StepExecutionEntity toEntity(final StepExecution stepExecution) {
     StepExecutionEntity entity = new StepExecutionEntity();
 
     entity.stepExecutionId = stepExecution.getId();
     entity.stepName = stepExecution.getStepName();
     entity.jobExecutionId = stepExecution.getJobExecutionId();
+    entity.jobInstanceId = stepExecution.getJobExecution().getJobId();
     entity.startTime = stepExecution.getStartTime();
     entity.endTime = stepExecution.getEndTime();
     entity.status = stepExecution.getStatus().toString();
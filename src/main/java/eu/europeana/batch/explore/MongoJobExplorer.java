@@ -0,0 +1,123 @@
+package eu.europeana.batch.explore;
+
+import eu.europeana.batch.repository.ExecutionContextRepository;
+import eu.europeana.batch.repository.JobInstanceRepository;
+import eu.europeana.batch.repository.StepExecutionRepository;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.support.SimpleJobExplorer;
+import org.springframework.batch.core.repository.dao.JobExecutionDao;
+import org.springframework.batch.item.ExecutionContext;
+
+/**
+ * {@link SimpleJobExplorer} that loads the job instances and step executions of job executions,
+ * and the execution contexts of both, with one query per call instead of one query per execution.
+ * This matters when listing many job executions, or job executions with many step executions, e.g.
+ * partitioned steps.
+ */
+public class MongoJobExplorer extends SimpleJobExplorer {
+
+  private final JobInstanceRepository jobInstanceRepository;
+  private final StepExecutionRepository stepExecutionRepository;
+  private final ExecutionContextRepository executionContextRepository;
+
+  public MongoJobExplorer(
+      JobInstanceRepository jobInstanceRepository,
+      JobExecutionDao jobExecutionDao,
+      StepExecutionRepository stepExecutionRepository,
+      ExecutionContextRepository executionContextRepository) {
+    super(
+        jobInstanceRepository,
+        jobExecutionDao,
+        stepExecutionRepository,
+        executionContextRepository);
+    this.jobInstanceRepository = jobInstanceRepository;
+    this.stepExecutionRepository = stepExecutionRepository;
+    this.executionContextRepository = executionContextRepository;
+  }
+
+  @Override
+  public List<JobExecution> getJobExecutions(JobInstance jobInstance) {
+    List<JobExecution> jobExecutions = getJobExecutionDao().findJobExecutions(jobInstance);
+    addDependencies(jobExecutions, jobInstance);
+    return jobExecutions;
+  }
+
+  @Override
+  public JobExecution getLastJobExecution(JobInstance jobInstance) {
+    JobExecution lastJobExecution = getJobExecutionDao().getLastJobExecution(jobInstance);
+    if (lastJobExecution != null) {
+      addDependencies(List.of(lastJobExecution), jobInstance);
+    }
+    return lastJobExecution;
+  }
+
+  @Override
+  public Set<JobExecution> findRunningJobExecutions(String jobName) {
+    Set<JobExecution> jobExecutions = getJobExecutionDao().findRunningJobExecutions(jobName);
+    addDependencies(jobExecutions, null);
+    return jobExecutions;
+  }
+
+  @Override
+  public JobExecution getJobExecution(Long executionId) {
+    if (executionId == null) {
+      return null;
+    }
+    JobExecution jobExecution = getJobExecutionDao().getJobExecution(executionId);
+    if (jobExecution == null) {
+      return null;
+    }
+    addDependencies(List.of(jobExecution), null);
+    return jobExecution;
+  }
+
+  /**
+   * Adds the job instance, step executions and execution contexts to the job executions, as done
+   * by {@link SimpleJobExplorer}
+   *
+   * @param jobInstance job instance of all the job executions if known, otherwise null
+   */
+  private void addDependencies(Collection<JobExecution> jobExecutions, JobInstance jobInstance) {
+    if (jobExecutions.isEmpty()) {
+      return;
+    }
+
+    if (jobInstance != null) {
+      for (JobExecution jobExecution : jobExecutions) {
+        jobExecution.setJobInstance(jobInstance);
+      }
+    } else {
+      Map<Long, JobInstance> jobInstances = jobInstanceRepository.getJobInstances(jobExecutions);
+      for (JobExecution jobExecution : jobExecutions) {
+        jobExecution.setJobInstance(jobInstances.get(jobExecution.getId()));
+      }
+    }
+    stepExecutionRepository.addStepExecutions(jobExecutions);
+
+    List<StepExecution> stepExecutions = new ArrayList<>();
+    for (JobExecution jobExecution : jobExecutions) {
+      stepExecutions.addAll(jobExecution.getStepExecutions());
+    }
+
+    Map<Long, ExecutionContext> jobExecutionContexts =
+        executionContextRepository.getJobExecutionContexts(jobExecutions);
+    for (JobExecution jobExecution : jobExecutions) {
+      jobExecution.setExecutionContext(jobExecutionContexts.get(jobExecution.getId()));
+    }
+
+    if (!stepExecutions.isEmpty()) {
+      Map<Long, ExecutionContext> stepExecutionContexts =
+          executionContextRepository.getStepExecutionContexts(stepExecutions);
+      for (StepExecution stepExecution : stepExecutions) {
+        stepExecution.setExecutionContext(stepExecutionContexts.get(stepExecution.getId()));
+      }
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package eu.europeana.batch.id;
+
+/** Strategies available for generating entity IDs */
+public enum IdGenerationStrategy {
+  /** IDs are reserved on the shared Sequence collection. See {@link PooledSequenceGenerator} */
+  SEQUENCE,
+  /** IDs are derived from the clock and a leased node id. See {@link TimeBasedIdGenerator} */
+  TIME_BASED
+}
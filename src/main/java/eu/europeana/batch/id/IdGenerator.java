@@ -0,0 +1,22 @@
+package eu.europeana.batch.id;
+
+/** Generates unique IDs for JobInstance, JobExecution and StepExecution entities. */
+public interface IdGenerator {
+
+  /**
+   * Gets the next ID for the given entity type
+   *
+   * @param internalType internal type for Entity
+   * @return unique ID
+   */
+  long nextId(String internalType);
+
+  /**
+   * Gets several IDs for the given entity type at once, in increasing order
+   *
+   * @param internalType internal type for Entity
+   * @param count number of IDs needed
+   * @return array containing the generated IDs
+   */
+  long[] nextIds(String internalType, int count);
+}
@@ -0,0 +1,128 @@
+package eu.europeana.batch.id;
+
+import static dev.morphia.query.filters.Filters.eq;
+
+import com.mongodb.client.model.ReturnDocument;
+import dev.morphia.Datastore;
+import dev.morphia.ModifyOptions;
+import dev.morphia.query.updates.UpdateOperators;
+import eu.europeana.batch.entity.SequenceGenerator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.springframework.util.Assert;
+
+/**
+ * Hands out entity IDs from blocks that are reserved on the Sequence collection.
+ *
+ * <p>A block of IDs is reserved per entity type with a single atomic $inc, after which IDs are
+ * handed out locally. As the increment is atomic, several JVMs can share the same Sequence
+ * documents without ever handing out the same ID twice. IDs are unique but not gap-free: unused
+ * IDs of a block are lost when the JVM stops, and with a block size larger than 1 IDs from
+ * different JVMs are interleaved.
+ */
+public class PooledSequenceGenerator implements IdGenerator {
+
+  /** Reserving a single ID per round-trip behaves exactly like a plain sequence */
+  public static final int DEFAULT_BLOCK_SIZE = 1;
+
+  private final Datastore datastore;
+
+  private final int blockSize;
+
+  private final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<>();
+
+  public PooledSequenceGenerator(Datastore datastore) {
+    this(datastore, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Creates a generator that reserves IDs in blocks of the given size
+   *
+   * @param datastore Morphia datastore to use
+   * @param blockSize number of IDs to reserve per round-trip
+   */
+  public PooledSequenceGenerator(Datastore datastore, int blockSize) {
+    Assert.isTrue(blockSize > 0, "Block size must be greater than 0");
+    this.datastore = datastore;
+    this.blockSize = blockSize;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Gets the next ID for the given entity type. Only callers requesting an ID for the same type
+   * contend with each other, and only for as long as a new block is being reserved.
+   *
+   * @param internalType internal type for Entity
+   * @return unique ID
+   */
+  @Override
+  public long nextId(String internalType) {
+    Block block = blocks.computeIfAbsent(internalType, type -> new Block());
+    synchronized (block) {
+      if (block.next > block.last) {
+        block.last = reserve(internalType, blockSize);
+        block.next = block.last - blockSize + 1;
+      }
+      return block.next++;
+    }
+  }
+
+  /**
+   * Gets a contiguous range of IDs for the given entity type. The range is taken from the current
+   * block if it has enough IDs left, otherwise it is reserved with a single round-trip.
+   *
+   * @param internalType internal type for Entity
+   * @param count number of IDs needed
+   * @return array containing the IDs of the range
+   */
+  @Override
+  public long[] nextIds(String internalType, int count) {
+    Assert.isTrue(count > 0, "Count must be greater than 0");
+    long first = -1;
+    Block block = blocks.computeIfAbsent(internalType, type -> new Block());
+    synchronized (block) {
+      if (block.last - block.next + 1 >= count) {
+        first = block.next;
+        block.next += count;
+      }
+    }
+    if (first < 0) {
+      // the current block is kept as is, so its IDs can still be handed out individually
+      first = reserve(internalType, count) - count + 1;
+    }
+
+    long[] ids = new long[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = first + i;
+    }
+    return ids;
+  }
+
+  /**
+   * Atomically reserves a contiguous range of IDs on the Sequence collection. The Sequence
+   * document is created on first use.
+   *
+   * @param internalType internal type for Entity
+   * @param count number of IDs to reserve
+   * @return the highest ID in the reserved range
+   */
+  protected long reserve(String internalType, int count) {
+    SequenceGenerator sequence =
+        datastore
+            .find(SequenceGenerator.class)
+            .filter(eq("_id", internalType))
+            .modify(
+                new ModifyOptions().upsert(true).returnDocument(ReturnDocument.AFTER),
+                UpdateOperators.inc("value", count));
+    return sequence.getValue();
+  }
+
+  /** Range of reserved IDs for a single entity type. Guarded by its own monitor. */
+  private static class Block {
+    private long next = 1;
+    private long last = 0;
+  }
+}
@@ -0,0 +1,248 @@
+package eu.europeana.batch.id;
+
+import static dev.morphia.query.filters.Filters.eq;
+import static dev.morphia.query.filters.Filters.lt;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.ReturnDocument;
+import dev.morphia.Datastore;
+import dev.morphia.ModifyOptions;
+import dev.morphia.query.updates.UpdateOperators;
+import eu.europeana.batch.entity.NodeLease;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import org.springframework.util.Assert;
+
+/**
+ * Generates IDs from the clock, a node id and a counter, without a database round-trip per ID.
+ *
+ * <p>IDs are laid out as 41 bits of milliseconds since 2020-01-01, 10 bits of node id and 12 bits
+ * of counter, so each node can generate 4096 IDs per millisecond. IDs are unique across nodes and
+ * increase monotonically on each node. If the clock moves backwards, IDs are refused until it is
+ * back at the time it was at before, since an ID with a timestamp beyond the lease of its node id
+ * could be generated again by the next node leasing it.
+ *
+ * <p>Node ids are leased on the NodeLease collection when the generator is created. The lease is
+ * renewed once half of it has elapsed, which is the only round-trip made while generating IDs. A
+ * node whose lease was taken over by another node after expiring leases a new node id before
+ * generating more IDs.
+ *
+ * <p>Generated IDs are much larger than sequence-based IDs, so an existing database can switch to
+ * this generator, but not back. They are also above 2^53, so they lose precision when read as
+ * numbers by JavaScript clients, e.g. from JSON, which should read them as strings.
+ */
+public class TimeBasedIdGenerator implements IdGenerator {
+
+  public static final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes(10);
+
+  /** 2020-01-01T00:00:00Z */
+  private static final long EPOCH_MILLIS = 1577836800000L;
+
+  private static final int NODE_ID_BITS = 10;
+  private static final int COUNTER_BITS = 12;
+
+  private static final int MAX_NODE_ID = (1 << NODE_ID_BITS) - 1;
+  private static final long MAX_COUNTER = (1L << COUNTER_BITS) - 1;
+
+  private static final String EXPIRES_AT_KEY = "expiresAt";
+  private static final String OWNER_KEY = "owner";
+
+  private final Datastore datastore;
+
+  private final long leaseMillis;
+
+  private final String owner;
+
+  private final LongSupplier clock;
+
+  private int nodeId;
+
+  private long leaseExpiresAt;
+
+  private long lastTimestamp = -1;
+
+  /** Highest clock reading so far, in milliseconds since the epoch of the IDs */
+  private long lastClock = -1;
+
+  private long counter;
+
+  public TimeBasedIdGenerator(Datastore datastore) {
+    this(datastore, DEFAULT_LEASE_DURATION);
+  }
+
+  /**
+   * Creates a generator and leases a node id for it. This blocks on database round-trips: one to
+   * read all leases, then one per node id claimed until a claim succeeds. It is meant to be
+   * created once at startup.
+   *
+   * @param datastore Morphia datastore to use
+   * @param leaseDuration time after which the node id can be taken over by another node, unless
+   *     renewed. Should be well above the expected clock skew between nodes.
+   */
+  public TimeBasedIdGenerator(Datastore datastore, Duration leaseDuration) {
+    this(datastore, leaseDuration, System::currentTimeMillis);
+  }
+
+  /**
+   * Creates a generator reading the given clock, so clock changes can be simulated
+   *
+   * @param clock current time in milliseconds since 1970-01-01T00:00:00Z
+   */
+  TimeBasedIdGenerator(Datastore datastore, Duration leaseDuration, LongSupplier clock) {
+    Assert.isTrue(
+        leaseDuration != null && !leaseDuration.isNegative() && !leaseDuration.isZero(),
+        "Lease duration must be positive");
+    this.datastore = datastore;
+    this.leaseMillis = leaseDuration.toMillis();
+    this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    this.clock = clock;
+    acquireLease();
+  }
+
+  public synchronized int getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Gets the next ID. The entity type is not used, as IDs are unique across all types.
+   *
+   * @param internalType internal type for Entity
+   * @return unique ID
+   */
+  @Override
+  public synchronized long nextId(String internalType) {
+    ensureLease();
+    return next();
+  }
+
+  @Override
+  public synchronized long[] nextIds(String internalType, int count) {
+    Assert.isTrue(count > 0, "Count must be greater than 0");
+    ensureLease();
+    long[] ids = new long[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = next();
+    }
+    return ids;
+  }
+
+  private long next() {
+    long now = clock.getAsLong() - EPOCH_MILLIS;
+    if (now < lastClock) {
+      throw new IllegalStateException(
+          "Clock moved backwards by "
+              + (lastClock - now)
+              + " ms. Refusing to generate IDs until it is back at the time it was at before");
+    }
+    lastClock = now;
+
+    // a timestamp borrowed from the next millisecond may be ahead of the clock
+    long timestamp = Math.max(now, lastTimestamp);
+    if (timestamp == lastTimestamp) {
+      counter = (counter + 1) & MAX_COUNTER;
+      if (counter == 0) {
+        // counter exhausted for this millisecond, borrow the next one
+        timestamp++;
+      }
+    } else {
+      counter = 0;
+    }
+    lastTimestamp = timestamp;
+
+    return (timestamp << (NODE_ID_BITS + COUNTER_BITS))
+        | ((long) nodeId << COUNTER_BITS)
+        | counter;
+  }
+
+  /** Renews the lease once half of it has elapsed, or leases a new node id if it was lost. */
+  private void ensureLease() {
+    long now = clock.getAsLong();
+    if (now < leaseExpiresAt - leaseMillis / 2) {
+      return;
+    }
+
+    NodeLease renewed =
+        datastore
+            .find(NodeLease.class)
+            .filter(eq("_id", nodeId), eq(OWNER_KEY, owner))
+            .modify(
+                new ModifyOptions().returnDocument(ReturnDocument.AFTER),
+                UpdateOperators.set(EXPIRES_AT_KEY, now + leaseMillis));
+
+    if (renewed != null) {
+      leaseExpiresAt = now + leaseMillis;
+      return;
+    }
+
+    // lease expired and was taken over by another node
+    acquireLease();
+    // force a new millisecond, so IDs with the new node id are higher than the previous ones
+    counter = MAX_COUNTER;
+  }
+
+  /**
+   * Leases a node id that is either unused or whose lease has expired. All existing leases are
+   * read at once, so only the claims themselves need a round-trip each.
+   */
+  private void acquireLease() {
+    long now = clock.getAsLong();
+
+    Map<Integer, Long> leases = new HashMap<>();
+    for (NodeLease lease : datastore.find(NodeLease.class).iterator().toList()) {
+      leases.put(lease.getNodeId(), lease.getExpiresAt());
+    }
+
+    List<Integer> candidates = new ArrayList<>();
+    for (int id = 0; id <= MAX_NODE_ID; id++) {
+      Long expiresAt = leases.get(id);
+      if (expiresAt == null || expiresAt < now) {
+        candidates.add(id);
+      }
+    }
+    // avoid all nodes starting at the same time competing for the same id
+    Collections.shuffle(candidates);
+
+    for (int candidate : candidates) {
+      if (claim(candidate, now)) {
+        nodeId = candidate;
+        leaseExpiresAt = now + leaseMillis;
+        return;
+      }
+    }
+
+    throw new IllegalStateException(
+        "Unable to lease a node id for ID generation. All "
+            + (MAX_NODE_ID + 1)
+            + " node ids are in use");
+  }
+
+  /**
+   * Claims a node id, if it is unused or its lease has expired. The upsert fails with a duplicate
+   * key error if another node holds a valid lease.
+   */
+  private boolean claim(int candidate, long now) {
+    try {
+      datastore
+          .find(NodeLease.class)
+          .filter(eq("_id", candidate), lt(EXPIRES_AT_KEY, now))
+          .modify(
+              new ModifyOptions().upsert(true).returnDocument(ReturnDocument.AFTER),
+              UpdateOperators.set(OWNER_KEY, owner),
+              UpdateOperators.set(EXPIRES_AT_KEY, now + leaseMillis));
+      return true;
+    } catch (MongoException e) {
+      if (ErrorCategory.fromErrorCode(e.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+        return false;
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package eu.europeana.batch.index;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import dev.morphia.Datastore;
+import dev.morphia.annotations.Field;
+import dev.morphia.annotations.Index;
+import dev.morphia.annotations.Indexed;
+import dev.morphia.annotations.Indexes;
+import dev.morphia.mapping.codec.pojo.EntityModel;
+import dev.morphia.mapping.codec.pojo.PropertyModel;
+import eu.europeana.batch.entity.ExecutionContextEntity;
+import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.entity.JobNameEntity;
+import eu.europeana.batch.entity.StepExecutionEntity;
+import eu.europeana.batch.repository.RepositoryQueries;
+import eu.europeana.batch.repository.RepositoryQueries.RepositoryQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.Document;
+
+/**
+ * Creates the indexes needed by the repository queries, and checks that the queries use them.
+ *
+ * <p>The indexes are declared with Morphia annotations on the entities. {@link RepositoryQueries}
+ * lists the shape of every find, count and aggregation {@code $match}/{@code $sort} the
+ * repositories run, so {@link #checkQueryPlans()} can explain each one against the current
+ * database.
+ */
+public class BatchIndexManager {
+
+  private static final List<Class<?>> ENTITIES =
+      List.of(
+          JobInstanceEntity.class,
+          JobExecutionEntity.class,
+          StepExecutionEntity.class,
+          ExecutionContextEntity.class,
+          JobNameEntity.class);
+
+  /** Plan stages that mean a query doesn't use an index for its filter or its sort */
+  private static final List<String> UNINDEXED_STAGES = List.of("COLLSCAN", "SORT");
+
+  private static final Log logger = LogFactory.getLog(BatchIndexManager.class);
+
+  private final Datastore datastore;
+
+  public BatchIndexManager(Datastore datastore) {
+    this.datastore = datastore;
+  }
+
+  /**
+   * Creates the indexes declared on the entities that don't exist yet. Existing indexes are left
+   * as they are. The entities are mapped first, in case the package wasn't mapped.
+   *
+   * <p>Each index is created on its own. An index that can't be created, e.g. because an index
+   * with the same keys but other options exists, is logged and the other indexes are still
+   * created, as this usually runs in the background where an exception would go unnoticed.
+   *
+   * @return true if all indexes were created or already existed
+   */
+  public boolean ensureIndexes() {
+    boolean created = true;
+    for (Class<?> entity : ENTITIES) {
+      MongoCollection<?> collection = datastore.getCollection(entity);
+      for (IndexModel index : getIndexModels(datastore.getMapper().getEntityModel(entity))) {
+        try {
+          collection.createIndexes(List.of(index));
+        } catch (MongoException e) {
+          logger.error(
+              "Can't create index "
+                  + index.getKeys()
+                  + " on collection "
+                  + collection.getNamespace().getCollectionName(),
+              e);
+          created = false;
+        }
+      }
+    }
+    return created;
+  }
+
+  /**
+   * Builds the indexes declared with {@link Indexes} on the entity and with {@link Indexed} on its
+   * properties. Index options other than the name, uniqueness, sparseness, expiry and partial
+   * filter are not used by the batch entities, and are ignored.
+   */
+  static List<IndexModel> getIndexModels(EntityModel entityModel) {
+    List<IndexModel> indexes = new ArrayList<>();
+    Indexes declared = entityModel.getAnnotation(Indexes.class);
+    if (declared != null) {
+      for (Index index : declared.value()) {
+        Document keys = new Document();
+        for (Field field : index.fields()) {
+          keys.append(getMappedName(entityModel, field.value()), field.type().toIndexValue());
+        }
+        indexes.add(new IndexModel(keys, toIndexOptions(index.options())));
+      }
+    }
+    for (PropertyModel property : entityModel.getProperties(Indexed.class)) {
+      Indexed indexed = property.getAnnotation(Indexed.class);
+      indexes.add(
+          new IndexModel(
+              new Document(property.getMappedName(), indexed.value().toIndexValue()),
+              toIndexOptions(indexed.options())));
+    }
+    return indexes;
+  }
+
+  private static String getMappedName(EntityModel entityModel, String name) {
+    PropertyModel property = entityModel.getProperty(name);
+    return property == null ? name : property.getMappedName();
+  }
+
+  private static IndexOptions toIndexOptions(dev.morphia.annotations.IndexOptions options) {
+    IndexOptions indexOptions =
+        new IndexOptions()
+            .unique(options.unique())
+            .sparse(options.sparse())
+            .background(options.background());
+    if (!options.name().isEmpty()) {
+      indexOptions.name(options.name());
+    }
+    if (options.expireAfterSeconds() >= 0) {
+      indexOptions.expireAfter((long) options.expireAfterSeconds(), TimeUnit.SECONDS);
+    }
+    if (!options.partialFilter().isEmpty()) {
+      indexOptions.partialFilterExpression(Document.parse(options.partialFilter()));
+    }
+    return indexOptions;
+  }
+
+  /**
+   * Explains every repository query, and reports those that scan the whole collection or sort in
+   * memory, e.g. because an index is missing.
+   *
+   * @return one issue per query that doesn't fully use an index, or an empty list
+   */
+  public List<QueryPlanIssue> checkQueryPlans() {
+    List<QueryPlanIssue> issues = new ArrayList<>();
+    for (RepositoryQuery query : RepositoryQueries.create(datastore)) {
+      Document winningPlan =
+          new Document(query.query().explain(query.options(), ExplainVerbosity.QUERY_PLANNER))
+              .get("queryPlanner", Document.class)
+              .get("winningPlan", Document.class);
+
+      List<String> stages = new ArrayList<>();
+      collectUnindexedStages(winningPlan, stages);
+      if (!stages.isEmpty()) {
+        issues.add(new QueryPlanIssue(query.description(), stages, winningPlan));
+      }
+    }
+    return issues;
+  }
+
+  /**
+   * Walks the plan, whose layout depends on the server version and topology, e.g. with one plan
+   * per shard, and collects the stages that don't use an index
+   */
+  private static void collectUnindexedStages(Object plan, List<String> stages) {
+    if (plan instanceof Map<?, ?> map) {
+      Object stage = map.get("stage");
+      if (stage instanceof String name && UNINDEXED_STAGES.contains(name)) {
+        stages.add(name);
+      }
+      for (Object value : map.values()) {
+        collectUnindexedStages(value, stages);
+      }
+    } else if (plan instanceof List<?> list) {
+      for (Object value : list) {
+        collectUnindexedStages(value, stages);
+      }
+    }
+  }
+
+  /**
+   * Query whose plan doesn't fully use an index
+   *
+   * @param query description of the query
+   * @param stages unindexed stages of the plan, COLLSCAN or SORT
+   * @param winningPlan plan chosen by the server
+   */
+  public record QueryPlanIssue(String query, List<String> stages, Document winningPlan) {}
+}
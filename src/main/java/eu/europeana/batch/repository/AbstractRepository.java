@@ -1,37 +1,52 @@
 package eu.europeana.batch.repository;
 
-import static dev.morphia.query.filters.Filters.eq;
+import static dev.morphia.query.filters.Filters.in;
 import static eu.europeana.batch.BatchConstants.DESCENDING_JOB_EXECUTION;
 import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
 import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
-import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import com.mongodb.client.DistinctIterable;
 import com.mongodb.client.MongoCursor;
-import com.mongodb.client.model.ReturnDocument;
 import dev.morphia.Datastore;
-import dev.morphia.ModifyOptions;
 import dev.morphia.query.FindOptions;
 import dev.morphia.query.MorphiaCursor;
 import dev.morphia.query.updates.UpdateOperator;
 import dev.morphia.query.updates.UpdateOperators;
 import eu.europeana.batch.entity.JobExecutionEntity;
 import eu.europeana.batch.entity.JobInstanceEntity;
-import eu.europeana.batch.entity.SequenceGenerator;
+import eu.europeana.batch.id.IdGenerator;
+import eu.europeana.batch.id.PooledSequenceGenerator;
 
 public abstract class AbstractRepository {
 
   public AbstractRepository(Datastore datastore) {
     this.datastore = datastore;
+    this.idGenerator = new PooledSequenceGenerator(datastore);
   }
 
   private Datastore datastore;
 
+  private IdGenerator idGenerator;
+
   protected Datastore getDataStore() {
     return this.datastore;
   }
 
+  /**
+   * Sets the generator used for entity IDs. Repositories sharing a datastore should also share
+   * the generator, so that reserved blocks or leased node ids are not spread over several
+   * instances.
+   *
+   * @param idGenerator generator to use
+   */
+  public void setIdGenerator(IdGenerator idGenerator) {
+    this.idGenerator = idGenerator;
+  }
+
   /**
    * Generates an autoincrement value for entities, based on the Entity type
    *
@@ -39,20 +54,18 @@ public abstract class AbstractRepository {
    * @return autoincrement value
    */
   protected long generateSequence(String internalType) {
-    // Get the given key from the auto increment entity and try to increment it.
-    SequenceGenerator nextId =
-        getDataStore()
-            .find(SequenceGenerator.class)
-            .filter(eq("_id", internalType))
-            .modify(UpdateOperators.inc("value"))
-            .execute(new ModifyOptions().returnDocument(ReturnDocument.AFTER));
-
-    // If none is found, we need to create one for the given key.
-    if (nextId == null) {
-      nextId = new SequenceGenerator(internalType, 1L);
-      getDataStore().save(nextId);
-    }
-    return nextId.getValue();
+    return idGenerator.nextId(internalType);
+  }
+
+  /**
+   * Generates several autoincrement values for entities of the given type at once
+   *
+   * @param internalType internal type for Entity
+   * @param count number of values needed
+   * @return array containing the values, in increasing order
+   */
+  protected long[] generateSequences(String internalType, int count) {
+    return idGenerator.nextIds(internalType, count);
   }
 
   /**
@@ -66,7 +79,7 @@ public abstract class AbstractRepository {
     MorphiaCursor<JobInstanceEntity> cursor =
         getDataStore()
             .find(JobInstanceEntity.class)
-            .filter(eq(JOB_NAME_KEY, jobName))
+            .filter(JobInstanceRepository.createJobNameFilter(jobName))
             .iterator(new FindOptions().projection().include(JOB_INSTANCE_ID_KEY));
 
     while (cursor.hasNext()) {
@@ -89,8 +102,8 @@ public abstract class AbstractRepository {
     MorphiaCursor<JobExecutionEntity> cursor =
         getDataStore()
             .find(JobExecutionEntity.class)
-            .filter(eq(JOB_INSTANCE_ID_KEY, jobInstanceId))
-            .iterator(new FindOptions().projection().include(JOB_EXECUTION_ID_KEY).limit(1));
+            .filter(JobExecutionRepository.createJobInstanceFilter(jobInstanceId))
+            .iterator(new FindOptions().projection().include(JOB_EXECUTION_ID_KEY));
 
     while (cursor.hasNext()) {
       results.add(cursor.next().getJobExecutionId());
@@ -108,7 +121,7 @@ public abstract class AbstractRepository {
   protected List<JobExecutionEntity> queryGetJobExecutions(long jobInstanceId) {
     return getDataStore()
         .find(JobExecutionEntity.class)
-        .filter(eq(JOB_INSTANCE_ID_KEY, jobInstanceId))
+        .filter(JobExecutionRepository.createJobInstanceFilter(jobInstanceId))
         .iterator(DESCENDING_JOB_EXECUTION)
         .toList();
   }
@@ -116,19 +129,40 @@ public abstract class AbstractRepository {
   protected JobExecutionEntity getJobExecutionWithId(long jobExecutionId) {
     return getDataStore()
         .find(JobExecutionEntity.class)
-        .filter(eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
+        .filter(JobExecutionRepository.createJobExecutionIdFilter(jobExecutionId))
         .first();
   }
 
   protected long getJobExecutionInstanceId(long jobExecutionId) {
     return getDataStore()
         .find(JobExecutionEntity.class)
-        .filter(eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
+        .filter(JobExecutionRepository.createJobExecutionIdFilter(jobExecutionId))
         .iterator(new FindOptions().projection().include(JOB_INSTANCE_ID_KEY).limit(1))
         .next()
         .getJobInstanceId();
   }
 
+  /**
+   * Gets the job instance ids of several job executions with a single query
+   *
+   * @param jobExecutionIds ids of the job executions
+   * @return job instance ids by job execution id
+   */
+  protected Map<Long, Long> getJobExecutionInstanceIds(Collection<Long> jobExecutionIds) {
+    List<JobExecutionEntity> entities =
+        getDataStore()
+            .find(JobExecutionEntity.class)
+            .filter(in(JOB_EXECUTION_ID_KEY, jobExecutionIds))
+            .iterator(
+                new FindOptions().projection().include(JOB_EXECUTION_ID_KEY, JOB_INSTANCE_ID_KEY))
+            .toList();
+    Map<Long, Long> instanceIds = new HashMap<>();
+    for (JobExecutionEntity entity : entities) {
+      instanceIds.put(entity.getJobExecutionId(), entity.getJobInstanceId());
+    }
+    return instanceIds;
+  }
+
   /**
    * Gets distinct values for a collection property
    *
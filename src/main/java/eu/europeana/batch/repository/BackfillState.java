@@ -0,0 +1,86 @@
+package eu.europeana.batch.repository;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Whether all documents of a collection have a field that this version always writes but earlier
+ * versions didn't, so that the indexed lookups relying on it find all of them. Until this is
+ * known, repositories keep using the lookups of earlier versions.
+ *
+ * <p>The state is set by a read-only check or by a backfill adding the field, and then kept, so
+ * lookups don't query the database to verify it again. If neither ran yet, the first lookup runs
+ * the check. The state is only changed again by an explicit event: the check or backfill running
+ * again, or this JVM writing a document without the field.
+ *
+ * <p>During a rolling upgrade, nodes still running an earlier version keep writing documents
+ * without the field, which this JVM doesn't notice. If the state was found complete meanwhile,
+ * the indexed lookups miss these documents until the check or backfill runs again, e.g. when the
+ * nodes of this version are restarted once all nodes are upgraded.
+ */
+final class BackfillState {
+
+  /** Read-only check run on first use, returning true if all documents have the field */
+  private final BooleanSupplier check;
+
+  /** Whether all documents have the field, or null if it wasn't checked yet */
+  private volatile Boolean complete;
+
+  /** Number of checks and backfills started, guarded by this */
+  private long started;
+
+  /** Number of the latest check or backfill whose result was kept, guarded by this */
+  private long applied;
+
+  /**
+   * Creates the state, which is unknown until it is first used
+   *
+   * @param check read-only check returning true if all documents have the field
+   */
+  BackfillState(BooleanSupplier check) {
+    this.check = check;
+  }
+
+  /** Whether the indexed lookups find all documents. Runs the check if the state is unknown. */
+  boolean isComplete() {
+    Boolean state = complete;
+    return state != null ? state : update(check);
+  }
+
+  /**
+   * Runs the check, and keeps its result
+   *
+   * @return the new state
+   */
+  boolean check() {
+    return update(check);
+  }
+
+  /**
+   * Runs a check or backfill, and keeps its result unless it is outdated: a check or backfill
+   * started later already finished, or this JVM wrote a document without the field meanwhile,
+   * which it may not have seen.
+   *
+   * @param checkOrBackfill returns true if all documents have the field
+   * @return the new state
+   */
+  boolean update(BooleanSupplier checkOrBackfill) {
+    long number;
+    synchronized (this) {
+      number = ++started;
+    }
+    boolean result = checkOrBackfill.getAsBoolean();
+    synchronized (this) {
+      if (number > applied) {
+        applied = number;
+        complete = result;
+      }
+      return Boolean.TRUE.equals(complete);
+    }
+  }
+
+  /** Marks the state incomplete, before this JVM writes a document without the field */
+  synchronized void reset() {
+    applied = started;
+    complete = false;
+  }
+}
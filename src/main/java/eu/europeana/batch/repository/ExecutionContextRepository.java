@@ -1,24 +1,67 @@
 package eu.europeana.batch.repository;
 
 import static dev.morphia.query.filters.Filters.eq;
+import static dev.morphia.query.filters.Filters.in;
 import static eu.europeana.batch.BatchConstants.BATCH_INSERT_OPTIONS;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_COMPRESSED_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_DOCUMENT_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_FILES_BUCKET;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_FILE_ID_KEY;
 import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_ID_KEY;
 import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_SERIALIZED_KEY;
 import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_TYPE_KEY;
+import static eu.europeana.batch.BatchConstants.UNORDERED_INSERT_OPTIONS;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import dev.morphia.Datastore;
-import dev.morphia.query.updates.UpdateOperators;
+import dev.morphia.mapping.codec.pojo.EntityModel;
+import dev.morphia.query.FindOptions;
 
+import eu.europeana.batch.context.ContextDocuments;
+import eu.europeana.batch.context.ContextFingerprints;
+import eu.europeana.batch.context.ExecutionContextCache;
+import eu.europeana.batch.context.ExecutionContextCodec;
+import eu.europeana.batch.context.ExecutionContextDiff;
+import eu.europeana.batch.context.ExecutionContextFormat;
+import eu.europeana.batch.context.ExecutionContextPayload;
+import eu.europeana.batch.context.SerializationBufferPool;
 import eu.europeana.batch.entity.ExecutionContextEntity;
 import eu.europeana.batch.entity.ExecutionContextEntityType;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.StepExecution;
 import org.springframework.batch.core.repository.ExecutionContextSerializer;
@@ -29,21 +72,205 @@ import org.springframework.util.Assert;
 
 public class ExecutionContextRepository extends AbstractRepository implements ExecutionContextDao {
 
+  /** Number of contexts from which a bulk read deserializes them in parallel */
+  private static final int PARALLEL_DESERIALIZATION_THRESHOLD = 16;
+
+  /**
+   * Serializer maps with more entries than this are dropped after use, so that pooled threads
+   * don't hold on to the memory of an occasional large context
+   */
+  private static final int MAX_REUSED_MAP_SIZE = 1024;
+
+  /** Buffers JSON contexts are serialized into, reused by the following contexts */
+  private static final SerializationBufferPool JSON_BUFFERS = new SerializationBufferPool();
+
+  /** Map handed to the serializer, reused by the following contexts of the thread */
+  private static final ThreadLocal<HashMap<String, Object>> JSON_MAP =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /** Fields that can hold the context, only one of which is set */
+  private static final List<String> CONTEXT_FIELDS =
+      List.of(
+          EXECUTION_CTX_SERIALIZED_KEY,
+          EXECUTION_CTX_DOCUMENT_KEY,
+          EXECUTION_CTX_COMPRESSED_KEY,
+          EXECUTION_CTX_FILE_ID_KEY);
+
+  /** $unset of the fields not holding the context, by the field holding it */
+  private static final Map<String, BsonDocument> UNSET_OTHER_CONTEXT_FIELDS =
+      createUnsetOtherContextFields();
+
+  /** Mapping of the entity, whose discriminator is written with inserted contexts */
+  private final EntityModel entityModel;
+
   public ExecutionContextRepository(Datastore datastore) {
     super(datastore);
+    this.entityModel = datastore.getMapper().getEntityModel(ExecutionContextEntity.class);
   }
 
   private final ExecutionContextSerializer serializer =
       new Jackson2ExecutionContextStringSerializer();
 
+  private final ExecutionContextCodec codec = new ExecutionContextCodec(serializer);
+
+  private ExecutionContextFormat format = ExecutionContextFormat.JSON;
+
+  private int compressionThreshold;
+
+  private int offloadThreshold;
+
+  private GridFSBucket contextFiles;
+
+  private ContextFingerprints fingerprints;
+
+  private ContextDocuments persistedDocuments;
+
+  private final LongAdder skippedWrites = new LongAdder();
+
+  private StepExecutionWriteBehind writeBehind;
+
+  private ExecutionContextCache cache;
+
+  private Executor serializationExecutor = ForkJoinPool.commonPool();
+
+  private int parallelSerializationThreshold;
+
+  private int insertChunkSize;
+
+  /**
+   * Sets the format in which contexts are written. Contexts are always read back in the format
+   * they were written in, so the format can be changed on an existing database.
+   *
+   * @param format format to use
+   */
+  public void setFormat(ExecutionContextFormat format) {
+    this.format = format;
+  }
+
+  /**
+   * Sets the serialized size above which contexts are stored compressed. Smaller contexts are
+   * stored as is, to avoid the CPU overhead of compressing them.
+   *
+   * @param compressionThreshold size in bytes, or 0 to never compress
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Sets the serialized size above which contexts are stored in a GridFS file instead of inline,
+   * which allows contexts to exceed the maximum document size. The file is compressed if
+   * compression is enabled. Files of contexts written before offloading was disabled are not
+   * deleted when these contexts are updated.
+   *
+   * @param offloadThreshold size in bytes, or 0 to never offload
+   */
+  public void setOffloadThreshold(int offloadThreshold) {
+    this.offloadThreshold = offloadThreshold;
+  }
+
+  /**
+   * Enables skipping of context updates when the serialized context is identical to the one last
+   * persisted by this repository. Only contexts of running executions are tracked.
+   *
+   * @param skipUnchangedWrites true to skip unchanged writes
+   */
+  public void setSkipUnchangedWrites(boolean skipUnchangedWrites) {
+    this.fingerprints = skipUnchangedWrites ? new ContextFingerprints() : null;
+  }
+
+  /**
+   * Enables field-level updates of contexts stored in the {@link ExecutionContextFormat#BSON}
+   * format. Only keys that were added, changed or removed since the context was last persisted by
+   * this repository are written. Contexts that are stored compressed are always written in full.
+   * The last persisted documents are kept for at most {@link ContextDocuments#DEFAULT_MAX_WEIGHT}
+   * bytes in total, and contexts whose document was evicted are written in full.
+   *
+   * @param fieldLevelUpdates true to enable field-level updates
+   */
+  public void setFieldLevelUpdates(boolean fieldLevelUpdates) {
+    this.persistedDocuments = fieldLevelUpdates ? new ContextDocuments() : null;
+  }
+
+  /**
+   * Enables coalescing of context updates of running step executions. See {@link
+   * StepExecutionWriteBehind}.
+   *
+   * @param writeBehind write-behind buffer, or null to write every update immediately
+   */
+  public void setWriteBehind(StepExecutionWriteBehind writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * Enables caching of the contexts of finished executions, which are not updated anymore.
+   * Contexts of running executions are always read from the database.
+   *
+   * @param cache cache to use, or null to disable caching
+   */
+  public void setCache(ExecutionContextCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the number of contexts from which {@link #saveExecutionContexts(Collection)} serializes
+   * them in parallel. Smaller batches are serialized on the calling thread.
+   *
+   * @param parallelSerializationThreshold number of contexts, or 0 to always serialize on the
+   *     calling thread
+   */
+  public void setParallelSerializationThreshold(int parallelSerializationThreshold) {
+    this.parallelSerializationThreshold = parallelSerializationThreshold;
+  }
+
+  /**
+   * Sets the executor used for parallel serialization, and for the deserialization of large bulk
+   * reads. Defaults to the common fork-join pool.
+   *
+   * @param serializationExecutor executor to use
+   */
+  public void setSerializationExecutor(Executor serializationExecutor) {
+    Assert.notNull(serializationExecutor, "serializationExecutor must not be null");
+    this.serializationExecutor = serializationExecutor;
+  }
+
+  /**
+   * Sets the number of contexts inserted per unordered bulk insert by {@link
+   * #saveExecutionContexts(Collection)}.
+   *
+   * @param insertChunkSize number of contexts per insert, or 0 to insert all contexts with a
+   *     single ordered insert
+   */
+  public void setInsertChunkSize(int insertChunkSize) {
+    this.insertChunkSize = insertChunkSize;
+  }
+
+  /**
+   * Gets the context cache, which exposes hit, miss and eviction counts
+   *
+   * @return the cache, or null if caching is disabled
+   */
+  public ExecutionContextCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Gets the number of context updates that were skipped because the serialized context was
+   * identical to the one last persisted. See {@link #setSkipUnchangedWrites(boolean)}.
+   *
+   * @return number of skipped writes since this repository was created
+   */
+  public long getSkippedWriteCount() {
+    return skippedWrites.sum();
+  }
+
   @Override
   public ExecutionContext getExecutionContext(JobExecution jobExecution) {
     Long executionId = jobExecution.getId();
     Assert.notNull(executionId, "ExecutionId must not be null.");
 
-    ExecutionContextEntity ctxEntity =
-        queryFindExecutionContext(ExecutionContextEntityType.JOB, executionId);
-    return ExecutionContextEntity.fromEntity(ctxEntity, serializer);
+    return findExecutionContext(
+        ExecutionContextEntityType.JOB, executionId, jobExecution.getStatus());
   }
 
   @Override
@@ -51,9 +278,101 @@ public class ExecutionContextRepository extends AbstractRepository implements Ex
     Long executionId = stepExecution.getId();
     Assert.notNull(executionId, "ExecutionId must not be null.");
 
-    ExecutionContextEntity ctxEntity =
-        queryFindExecutionContext(ExecutionContextEntityType.STEP, executionId);
-    return ExecutionContextEntity.fromEntity(ctxEntity, serializer);
+    return findExecutionContext(
+        ExecutionContextEntityType.STEP, executionId, stepExecution.getStatus());
+  }
+
+  private ExecutionContext findExecutionContext(
+      ExecutionContextEntityType type, Long executionId, BatchStatus status) {
+    boolean cacheable = isCacheable(status);
+    String contextKey = type + ":" + executionId;
+    if (cacheable) {
+      ExecutionContext cached = cache.get(contextKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    RawBsonDocument document = queryFindExecutionContext(type, executionId);
+    ExecutionContext executionContext = toExecutionContext(document);
+    if (cacheable && document != null) {
+      cache.put(contextKey, executionContext);
+    }
+    return executionContext;
+  }
+
+  /**
+   * Gets the contexts of several job executions with a single query
+   *
+   * @param jobExecutions job executions whose contexts to get
+   * @return contexts by job execution id. Executions without a stored context get an empty one.
+   */
+  public Map<Long, ExecutionContext> getJobExecutionContexts(
+      Collection<JobExecution> jobExecutions) {
+    Map<Long, BatchStatus> statuses = new LinkedHashMap<>();
+    for (JobExecution jobExecution : jobExecutions) {
+      Assert.notNull(jobExecution.getId(), "ExecutionId must not be null.");
+      statuses.put(jobExecution.getId(), jobExecution.getStatus());
+    }
+    return findExecutionContexts(ExecutionContextEntityType.JOB, statuses);
+  }
+
+  /**
+   * Gets the contexts of several step executions with a single query, e.g. those of all
+   * partitions of a job execution. Large result sets are deserialized in parallel.
+   *
+   * @param stepExecutions step executions whose contexts to get
+   * @return contexts by step execution id. Executions without a stored context get an empty one.
+   */
+  public Map<Long, ExecutionContext> getStepExecutionContexts(
+      Collection<StepExecution> stepExecutions) {
+    Map<Long, BatchStatus> statuses = new LinkedHashMap<>();
+    for (StepExecution stepExecution : stepExecutions) {
+      Assert.notNull(stepExecution.getId(), "ExecutionId must not be null.");
+      statuses.put(stepExecution.getId(), stepExecution.getStatus());
+    }
+    return findExecutionContexts(ExecutionContextEntityType.STEP, statuses);
+  }
+
+  private Map<Long, ExecutionContext> findExecutionContexts(
+      ExecutionContextEntityType type, Map<Long, BatchStatus> statuses) {
+    Map<Long, ExecutionContext> contexts = new HashMap<>();
+    List<Long> uncachedIds = new ArrayList<>();
+    for (Map.Entry<Long, BatchStatus> entry : statuses.entrySet()) {
+      ExecutionContext cached =
+          isCacheable(entry.getValue()) ? cache.get(type + ":" + entry.getKey()) : null;
+      if (cached != null) {
+        contexts.put(entry.getKey(), cached);
+      } else {
+        uncachedIds.add(entry.getKey());
+      }
+    }
+    if (uncachedIds.isEmpty()) {
+      return contexts;
+    }
+
+    List<RawBsonDocument> documents = queryFindExecutionContexts(type, uncachedIds);
+    List<ExecutionContext> decoded =
+        documents.size() >= PARALLEL_DESERIALIZATION_THRESHOLD
+            ? callInParallel(documents, this::toExecutionContext)
+            : documents.stream().map(this::toExecutionContext).toList();
+    Map<Long, ExecutionContext> found = new HashMap<>();
+    for (int i = 0; i < documents.size(); i++) {
+      found.putIfAbsent(documents.get(i).getInt64(EXECUTION_CTX_ID_KEY).getValue(), decoded.get(i));
+    }
+
+    for (Long executionId : uncachedIds) {
+      ExecutionContext executionContext = found.get(executionId);
+      if (executionContext == null) {
+        contexts.put(executionId, new ExecutionContext());
+        continue;
+      }
+      if (isCacheable(statuses.get(executionId))) {
+        cache.put(type + ":" + executionId, executionContext);
+      }
+      contexts.put(executionId, executionContext);
+    }
+    return contexts;
   }
 
   @Override
@@ -73,19 +392,82 @@ public class ExecutionContextRepository extends AbstractRepository implements Ex
   @Override
   public void saveExecutionContexts(Collection<StepExecution> stepExecutions) {
     Assert.notNull(stepExecutions, "Attempt to save an null collection of step executions");
-    List<ExecutionContextEntity> ctxEntities = new ArrayList<>(stepExecutions.size());
+    if (stepExecutions.isEmpty()) {
+      return;
+    }
     for (StepExecution stepExecution : stepExecutions) {
-      Long executionId = stepExecution.getId();
-      ExecutionContext executionContext = stepExecution.getExecutionContext();
-      Assert.notNull(executionId, "ExecutionId must not be null.");
-      Assert.notNull(executionContext, "The ExecutionContext must not be null.");
+      Assert.notNull(stepExecution.getId(), "ExecutionId must not be null.");
+      Assert.notNull(
+          stepExecution.getExecutionContext(), "The ExecutionContext must not be null.");
+    }
+
+    List<ContextWrite> inserts;
+    if (parallelSerializationThreshold > 0
+        && stepExecutions.size() >= parallelSerializationThreshold) {
+      inserts = callInParallel(stepExecutions, this::toSavedInsert);
+    } else {
+      inserts = new ArrayList<>(stepExecutions.size());
+      for (StepExecution stepExecution : stepExecutions) {
+        inserts.add(toSavedInsert(stepExecution));
+      }
+    }
+
+    List<BsonDocument> documents = inserts.stream().map(ContextWrite::document).toList();
+    try {
+      if (insertChunkSize <= 0) {
+        getContextWriteCollection().insertMany(documents, BATCH_INSERT_OPTIONS.options());
+        return;
+      }
+      for (int from = 0; from < documents.size(); from += insertChunkSize) {
+        getContextWriteCollection()
+            .insertMany(
+                documents.subList(from, Math.min(documents.size(), from + insertChunkSize)),
+                UNORDERED_INSERT_OPTIONS.options());
+      }
+    } catch (RuntimeException e) {
+      deleteUnreferencedContextFiles(ExecutionContextEntityType.STEP, inserts, e);
+      throw e;
+    }
+  }
 
-      ctxEntities.add(
-          new ExecutionContextEntity(
-              ExecutionContextEntityType.STEP, executionId, serializeContext(executionContext)));
+  /**
+   * Applies the function to each element on the serialization executor
+   *
+   * @return results, in the order of the elements
+   */
+  private <T, R> List<R> callInParallel(Collection<T> elements, Function<T, R> function) {
+    List<CompletableFuture<R>> futures = new ArrayList<>(elements.size());
+    for (T element : elements) {
+      futures.add(
+          CompletableFuture.supplyAsync(() -> function.apply(element), serializationExecutor));
     }
 
-    getDataStore().save(ctxEntities, BATCH_INSERT_OPTIONS);
+    List<R> results = new ArrayList<>(futures.size());
+    try {
+      for (CompletableFuture<R> future : futures) {
+        results.add(future.join());
+      }
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  /** Creates the document for inserting the context of the step execution */
+  private ContextWrite toSavedInsert(StepExecution stepExecution) {
+    Long executionId = stepExecution.getId();
+    try (EncodedContext encoded = encode(stepExecution.getExecutionContext())) {
+      RawBsonDocument document = toInlineDocument(encoded);
+      ContextWrite insert =
+          toInsert(
+              ExecutionContextEntityType.STEP,
+              toContextWrite(ExecutionContextEntityType.STEP, executionId, encoded));
+      rememberSaved(ExecutionContextEntityType.STEP, executionId, encoded, document);
+      return insert;
+    }
   }
 
   @Override
@@ -95,8 +477,8 @@ public class ExecutionContextRepository extends AbstractRepository implements Ex
     Assert.notNull(executionId, "ExecutionId must not be null.");
     Assert.notNull(executionContext, "The ExecutionContext must not be null.");
 
-    String serializedContext = serializeContext(executionContext);
-    queryUpdateExecutionContext(ExecutionContextEntityType.JOB, executionId, serializedContext);
+    queryUpdateExecutionContext(
+        ExecutionContextEntityType.JOB, executionId, executionContext, jobExecution.getStatus());
   }
 
   @Override
@@ -107,56 +489,536 @@ public class ExecutionContextRepository extends AbstractRepository implements Ex
       Assert.notNull(executionId, "ExecutionId must not be null.");
       Assert.notNull(executionContext, "The ExecutionContext must not be null.");
 
-      String serializedContext = serializeContext(executionContext);
-      queryUpdateExecutionContext(ExecutionContextEntityType.STEP, executionId, serializedContext);
+      if (writeBehind != null) {
+        if (stepExecution.getStatus().isRunning()) {
+          writeBehind.deferExecutionContext(stepExecution);
+          return;
+        }
+        // a pending update is superseded by this one
+        writeBehind.discardExecutionContext(stepExecution);
+      }
+
+      queryUpdateExecutionContext(
+          ExecutionContextEntityType.STEP,
+          executionId,
+          executionContext,
+          stepExecution.getStatus());
     }
   }
 
+  /**
+   * Writes a context update of a running step execution that was deferred by the write-behind
+   * buffer
+   *
+   * @param executionId id of the step execution
+   * @param executionContext context to write
+   */
+  void writeStepExecutionContext(Long executionId, ExecutionContext executionContext) {
+    queryUpdateExecutionContext(
+        ExecutionContextEntityType.STEP, executionId, executionContext, BatchStatus.STARTED);
+  }
+
   private void queryUpdateExecutionContext(
-      ExecutionContextEntityType type, Long executionId, String serializedContext) {
-    getDataStore()
-        .find(ExecutionContextEntity.class)
-        .filter(eq(EXECUTION_CTX_ID_KEY, executionId), eq(EXECUTION_CTX_TYPE_KEY, type.toString()))
-        .update(UpdateOperators.set(EXECUTION_CTX_SERIALIZED_KEY, serializedContext))
-        .execute();
+      ExecutionContextEntityType type,
+      Long executionId,
+      ExecutionContext executionContext,
+      BatchStatus status) {
+    try (EncodedContext encoded = encode(executionContext)) {
+      String contextKey = type + ":" + executionId;
+      // contexts of finished executions are not updated anymore, so there's no need to track them
+      boolean running = status.isRunning();
+      if (cache != null) {
+        cache.invalidate(contextKey);
+      }
+
+      byte[] fingerprint = null;
+      if (fingerprints != null) {
+        fingerprint = fingerprints.fingerprint(encoded.data(), encoded.offset(), encoded.length());
+        if (fingerprints.matches(contextKey, fingerprint)) {
+          skippedWrites.increment();
+          if (!running) {
+            forgetPersisted(contextKey);
+          }
+          return;
+        }
+      }
+
+      RawBsonDocument document = toInlineDocument(encoded);
+      if (!queryUpdateChangedFields(type, executionId, contextKey, document)) {
+        queryReplaceContext(type, toContextWrite(type, executionId, encoded));
+      }
+
+      rememberPersisted(contextKey, fingerprint, document, running);
+    }
   }
 
-  private ExecutionContextEntity queryFindExecutionContext(
+  /**
+   * Replaces the stored context with the one of the write. When offloading is enabled, the GridFS
+   * file of the replaced context is deleted afterwards.
+   */
+  private void queryReplaceContext(ExecutionContextEntityType type, ContextWrite write) {
+    BsonDocument filter = createContextFilter(type, write.executionId());
+    BsonDocument update = createReplaceUpdate(write.document());
+
+    if (offloadThreshold <= 0) {
+      getContextWriteCollection().updateOne(filter, update);
+      return;
+    }
+
+    // the file of the replaced context is only known once it's replaced, so it's returned by the
+    // update itself
+    BsonDocument previous;
+    try {
+      previous =
+          getContextWriteCollection()
+              .findOneAndUpdate(
+                  filter,
+                  update,
+                  new FindOneAndUpdateOptions()
+                      .returnDocument(ReturnDocument.BEFORE)
+                      .projection(Projections.include(EXECUTION_CTX_FILE_ID_KEY)));
+    } catch (RuntimeException e) {
+      deleteUnreferencedContextFiles(type, List.of(write), e);
+      throw e;
+    }
+
+    BsonValue previousFileId = previous == null ? null : previous.get(EXECUTION_CTX_FILE_ID_KEY);
+    if (previousFileId != null
+        && previousFileId.isObjectId()
+        && !Objects.equals(previousFileId.asObjectId().getValue(), write.fileId())) {
+      deleteContextFile(previousFileId.asObjectId().getValue());
+    }
+  }
+
+  /**
+   * Encodes the context and creates the update replacing an inline stored context with it, as
+   * {@link #updateExecutionContext} sends it. This lets the write path be measured without a
+   * database.
+   */
+  BsonDocument encodeReplaceUpdate(ExecutionContext executionContext) {
+    try (EncodedContext encoded = encode(executionContext)) {
+      return createReplaceUpdate(toContextWrite(null, null, encoded).document());
+    }
+  }
+
+  /**
+   * Creates the update replacing the stored context with the given context fields. The context is
+   * only held in one of the fields, so the others are unset. This ensures a context written in
+   * another format or size class before is not read back.
+   */
+  private static BsonDocument createReplaceUpdate(BsonDocument fields) {
+    return new BsonDocument("$set", fields)
+        .append("$unset", UNSET_OTHER_CONTEXT_FIELDS.get(fields.getFirstKey()));
+  }
+
+  private static Map<String, BsonDocument> createUnsetOtherContextFields() {
+    Map<String, BsonDocument> unsets = new HashMap<>();
+    for (String field : CONTEXT_FIELDS) {
+      BsonDocument unset = new BsonDocument();
+      for (String contextField : CONTEXT_FIELDS) {
+        if (!contextField.equals(field)) {
+          unset.append(contextField, new BsonString(""));
+        }
+      }
+      unsets.put(field, unset);
+    }
+    return unsets;
+  }
+
+  private static BsonDocument createContextFilter(
       ExecutionContextEntityType type, long executionId) {
+    return new BsonDocument(EXECUTION_CTX_ID_KEY, new BsonInt64(executionId))
+        .append(EXECUTION_CTX_TYPE_KEY, new BsonString(type.toString()));
+  }
+
+  /**
+   * Only updates the keys of the context that changed since it was last persisted. This requires
+   * field-level updates to be enabled, and both the previous and the current context to be stored
+   * inline as BSON documents.
+   *
+   * @return false if a full update is needed instead
+   */
+  private boolean queryUpdateChangedFields(
+      ExecutionContextEntityType type,
+      Long executionId,
+      String contextKey,
+      RawBsonDocument document) {
+    if (document == null) {
+      return false;
+    }
+    RawBsonDocument previous = persistedDocuments.get(contextKey);
+    if (previous == null) {
+      return false;
+    }
+
+    BsonDocument update =
+        ExecutionContextDiff.createUpdate(previous, document, EXECUTION_CTX_DOCUMENT_KEY);
+    if (update == null) {
+      return false;
+    }
+    if (update.isEmpty()) {
+      return true;
+    }
+
+    // Morphia validates update paths against the entity, which doesn't know the context keys
+    getContextWriteCollection().updateOne(createContextFilter(type, executionId), update);
+    return true;
+  }
+
+  /**
+   * Gets the context as a BSON document if field-level updates are enabled and the context is
+   * stored inline
+   */
+  private RawBsonDocument toInlineDocument(EncodedContext encoded) {
+    if (persistedDocuments == null
+        || format != ExecutionContextFormat.BSON
+        || shouldCompress(encoded.length())
+        || shouldOffload(encoded.length())) {
+      return null;
+    }
+    // trimmed, as the encoder buffer has room to spare and the document is kept
+    if (encoded.offset() == 0 && encoded.data().length == encoded.length()) {
+      return encoded.document();
+    }
+    return new RawBsonDocument(
+        Arrays.copyOfRange(encoded.data(), encoded.offset(), encoded.offset() + encoded.length()));
+  }
+
+  /**
+   * Remembers what was persisted for the context, so the next update can be skipped or reduced to
+   * the changed keys. A null fingerprint or document means that it is not tracked, e.g. because
+   * the context was stored compressed.
+   */
+  private void rememberPersisted(
+      String contextKey, byte[] fingerprint, RawBsonDocument document, boolean running) {
+    if (!running) {
+      forgetPersisted(contextKey);
+      return;
+    }
+    if (fingerprints != null) {
+      if (fingerprint != null) {
+        fingerprints.put(contextKey, fingerprint);
+      } else {
+        fingerprints.remove(contextKey);
+      }
+    }
+    if (persistedDocuments != null) {
+      if (document != null) {
+        persistedDocuments.put(contextKey, document);
+      } else {
+        persistedDocuments.remove(contextKey);
+      }
+    }
+  }
+
+  private void forgetPersisted(String contextKey) {
+    if (fingerprints != null) {
+      fingerprints.remove(contextKey);
+    }
+    if (persistedDocuments != null) {
+      persistedDocuments.remove(contextKey);
+    }
+  }
+
+  /** Contexts of finished executions are not updated anymore, so they can be cached */
+  private boolean isCacheable(BatchStatus status) {
+    return cache != null && status != null && !status.isRunning();
+  }
+
+  private ExecutionContext toExecutionContext(RawBsonDocument document) {
+    BsonValue fileId = document == null ? null : document.get(EXECUTION_CTX_FILE_ID_KEY);
+    if (fileId != null && fileId.isObjectId()) {
+      return downloadContext(fileId.asObjectId().getValue());
+    }
+    return ExecutionContextEntity.fromDocument(document, serializer);
+  }
+
+  /**
+   * Gets the collection of the contexts, read as raw documents. This lets serialized contexts be
+   * deserialized straight from the bytes of the documents.
+   */
+  private MongoCollection<RawBsonDocument> getContextCollection() {
     return getDataStore()
-        .find(ExecutionContextEntity.class)
-        .filter(eq(EXECUTION_CTX_TYPE_KEY, type.toString()), eq(EXECUTION_CTX_ID_KEY, executionId))
-        .first();
+        .getCollection(ExecutionContextEntity.class)
+        .withDocumentClass(RawBsonDocument.class);
+  }
+
+  /**
+   * Gets the collection of the contexts, written as BSON documents. Contexts are encoded by the
+   * driver codecs, so they don't go through Morphia's entity mapping.
+   */
+  private MongoCollection<BsonDocument> getContextWriteCollection() {
+    return getDataStore()
+        .getCollection(ExecutionContextEntity.class)
+        .withDocumentClass(BsonDocument.class);
+  }
+
+  private List<RawBsonDocument> queryFindExecutionContexts(
+      ExecutionContextEntityType type, List<Long> executionIds) {
+    BsonArray ids = new BsonArray(executionIds.size());
+    for (Long executionId : executionIds) {
+      ids.add(new BsonInt64(executionId));
+    }
+    return getContextCollection()
+        .find(
+            new BsonDocument(EXECUTION_CTX_ID_KEY, new BsonDocument("$in", ids))
+                .append(EXECUTION_CTX_TYPE_KEY, new BsonString(type.toString())))
+        .into(new ArrayList<>());
+  }
+
+  private RawBsonDocument queryFindExecutionContext(
+      ExecutionContextEntityType type, long executionId) {
+    return getContextCollection().find(createContextFilter(type, executionId)).first();
   }
 
   private void querySaveExecutionContext(
       ExecutionContextEntityType type, Long executionId, ExecutionContext executionContext) {
     Assert.notNull(executionId, "ExecutionId must not be null.");
     Assert.notNull(executionContext, "The ExecutionContext must not be null.");
-    String serializedContext = serializeContext(executionContext);
-    getDataStore().save(ExecutionContextEntity.toEntity(type, executionId, serializedContext));
+    try (EncodedContext encoded = encode(executionContext)) {
+      RawBsonDocument document = toInlineDocument(encoded);
+      ContextWrite insert = toInsert(type, toContextWrite(type, executionId, encoded));
+      try {
+        getContextWriteCollection().insertOne(insert.document());
+      } catch (RuntimeException e) {
+        deleteUnreferencedContextFiles(type, List.of(insert), e);
+        throw e;
+      }
+      rememberSaved(type, executionId, encoded, document);
+    }
+  }
+
+  private void rememberSaved(
+      ExecutionContextEntityType type,
+      Long executionId,
+      EncodedContext encoded,
+      RawBsonDocument document) {
+    byte[] fingerprint =
+        fingerprints == null
+            ? null
+            : fingerprints.fingerprint(encoded.data(), encoded.offset(), encoded.length());
+    rememberPersisted(type + ":" + executionId, fingerprint, document, true);
   }
 
   /**
-   * Serializes the ExecutionContext Reproduced from {@link
-   * org.springframework.batch.core.repository.dao.JdbcExecutionContextDao}
+   * Encodes the context in the configured format. BSON contexts are encoded by the context codec
+   * into a raw document. JSON contexts are serialized into a pooled buffer, which is given back
+   * when the returned context is closed.
+   */
+  private EncodedContext encode(ExecutionContext executionContext) {
+    if (format == ExecutionContextFormat.BSON) {
+      RawBsonDocument document = new RawBsonDocument(executionContext, codec);
+      ByteBuffer bytes = document.getByteBuffer().asNIO();
+      return new EncodedContext(
+          bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), document, null);
+    }
+
+    SerializationBufferPool.Buffer buffer = JSON_BUFFERS.take();
+    try {
+      serializeContext(executionContext, buffer);
+    } catch (RuntimeException e) {
+      JSON_BUFFERS.giveBack(buffer);
+      throw e;
+    }
+    return new EncodedContext(buffer.getData(), 0, buffer.size(), null, buffer);
+  }
+
+  /** Creates the write of the context */
+  private ContextWrite toContextWrite(
+      ExecutionContextEntityType type, Long executionId, EncodedContext encoded) {
+    if (shouldOffload(encoded.length())) {
+      ObjectId fileId = uploadContext(type, executionId, encoded);
+      BsonDocument fields = new BsonDocument(EXECUTION_CTX_FILE_ID_KEY, new BsonObjectId(fileId));
+      return new ContextWrite(executionId, fields, fileId);
+    }
+    if (shouldCompress(encoded.length())) {
+      byte[] payload =
+          ExecutionContextPayload.compress(
+              format, encoded.data(), encoded.offset(), encoded.length());
+      BsonDocument fields = new BsonDocument(EXECUTION_CTX_COMPRESSED_KEY, new BsonBinary(payload));
+      return new ContextWrite(executionId, fields, null);
+    }
+    if (encoded.document() != null) {
+      return new ContextWrite(
+          executionId, new BsonDocument(EXECUTION_CTX_DOCUMENT_KEY, encoded.document()), null);
+    }
+    String serializedContext =
+        new String(encoded.data(), encoded.offset(), encoded.length(), StandardCharsets.UTF_8);
+    return new ContextWrite(
+        executionId,
+        new BsonDocument(EXECUTION_CTX_SERIALIZED_KEY, new BsonString(serializedContext)),
+        null);
+  }
+
+  /**
+   * Creates the insert of a context: the fields Morphia writes for the entity, followed by the
+   * context fields
+   */
+  private ContextWrite toInsert(ExecutionContextEntityType type, ContextWrite write) {
+    BsonDocument document = new BsonDocument();
+    if (entityModel.useDiscriminator()) {
+      document.append(
+          entityModel.getDiscriminatorKey(), new BsonString(entityModel.getDiscriminator()));
+    }
+    document
+        .append(EXECUTION_CTX_ID_KEY, new BsonInt64(write.executionId()))
+        .append(EXECUTION_CTX_TYPE_KEY, new BsonString(type.toString()));
+    document.putAll(write.document());
+    return new ContextWrite(write.executionId(), document, write.fileId());
+  }
+
+  private boolean shouldCompress(int serializedLength) {
+    return compressionThreshold > 0 && serializedLength > compressionThreshold;
+  }
+
+  private boolean shouldOffload(int serializedLength) {
+    return offloadThreshold > 0 && serializedLength > offloadThreshold;
+  }
+
+  private synchronized GridFSBucket getContextFiles() {
+    if (contextFiles == null) {
+      contextFiles = GridFSBuckets.create(getDataStore().getDatabase(), EXECUTION_CTX_FILES_BUCKET);
+    }
+    return contextFiles;
+  }
+
+  /**
+   * Streams the serialized context into a new GridFS file, as an {@link ExecutionContextPayload}
+   *
+   * @return id of the file
    */
-  private String serializeContext(ExecutionContext ctx) {
-    Map<String, Object> m = new HashMap<>();
-    for (Map.Entry<String, Object> me : ctx.entrySet()) {
-      m.put(me.getKey(), me.getValue());
+  private ObjectId uploadContext(
+      ExecutionContextEntityType type, Long executionId, EncodedContext encoded) {
+    GridFSUploadStream out = getContextFiles().openUploadStream(type + ":" + executionId);
+    try {
+      ExecutionContextPayload.write(
+          out,
+          format,
+          encoded.data(),
+          encoded.offset(),
+          encoded.length(),
+          shouldCompress(encoded.length()));
+    } catch (IOException | RuntimeException e) {
+      // closing would store the partially written file
+      out.abort();
+      throw new IllegalArgumentException("Could not upload the execution context", e);
+    }
+    out.close();
+    return out.getObjectId();
+  }
+
+  /** Streams a context back from its GridFS file */
+  private ExecutionContext downloadContext(ObjectId fileId) {
+    try (GridFSDownloadStream in = getContextFiles().openDownloadStream(fileId)) {
+      return ExecutionContextPayload.decode(in, serializer);
+    }
+  }
+
+  private void deleteContextFile(ObjectId fileId) {
+    if (fileId != null) {
+      getContextFiles().delete(fileId);
     }
+  }
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    String results;
+  /**
+   * Deletes the files uploaded for contexts whose write failed. The write may still have been
+   * applied, e.g. if only its response was lost, so files that a stored context refers to are
+   * kept. If this can't be checked, all files are kept rather than risking a dangling reference.
+   *
+   * @param type type of the contexts
+   * @param writes writes that failed
+   * @param failure error of the write, to which errors of the cleanup are added
+   */
+  private void deleteUnreferencedContextFiles(
+      ExecutionContextEntityType type, List<ContextWrite> writes, RuntimeException failure) {
+    List<Long> executionIds = new ArrayList<>();
+    List<ObjectId> fileIds = new ArrayList<>();
+    for (ContextWrite write : writes) {
+      if (write.fileId() != null) {
+        executionIds.add(write.executionId());
+        fileIds.add(write.fileId());
+      }
+    }
+    if (fileIds.isEmpty()) {
+      return;
+    }
 
     try {
+      List<ExecutionContextEntity> stored =
+          getDataStore()
+              .find(ExecutionContextEntity.class)
+              .filter(
+                  in(EXECUTION_CTX_ID_KEY, executionIds),
+                  eq(EXECUTION_CTX_TYPE_KEY, type.toString()),
+                  in(EXECUTION_CTX_FILE_ID_KEY, fileIds))
+              .iterator(new FindOptions().projection().include(EXECUTION_CTX_FILE_ID_KEY))
+              .toList();
+      for (ExecutionContextEntity entity : stored) {
+        fileIds.remove(entity.getContextFileId());
+      }
+      for (ObjectId fileId : fileIds) {
+        deleteContextFile(fileId);
+      }
+    } catch (RuntimeException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Serializes the ExecutionContext Reproduced from {@link
+   * org.springframework.batch.core.repository.dao.JdbcExecutionContextDao}. The serializer needs a
+   * HashMap, as the type of the map is part of the output, so the map of the calling thread is
+   * reused. It is cleared afterwards, so it doesn't keep the values of the context.
+   */
+  private void serializeContext(ExecutionContext ctx, OutputStream out) {
+    HashMap<String, Object> m = JSON_MAP.get();
+    try {
+      for (Map.Entry<String, Object> me : ctx.entrySet()) {
+        m.put(me.getKey(), me.getValue());
+      }
       serializer.serialize(m, out);
-      results = out.toString(StandardCharsets.UTF_8);
     } catch (IOException ioe) {
       throw new IllegalArgumentException("Could not serialize the execution context", ioe);
+    } finally {
+      if (m.size() > MAX_REUSED_MAP_SIZE) {
+        JSON_MAP.remove();
+      } else {
+        m.clear();
+      }
     }
+  }
 
-    return results;
+  /**
+   * Context serialized in the configured format, taking {@code length} bytes of {@code data} from
+   * {@code offset}
+   *
+   * @param document the context as a BSON document, or null if it was serialized as JSON
+   * @param buffer pooled buffer holding a JSON context, or null if it was encoded as a BSON
+   *     document
+   */
+  private record EncodedContext(
+      byte[] data,
+      int offset,
+      int length,
+      RawBsonDocument document,
+      SerializationBufferPool.Buffer buffer)
+      implements AutoCloseable {
+
+    /** Gives back the buffer of a JSON context, whose data must not be used anymore afterwards */
+    @Override
+    public void close() {
+      if (buffer != null) {
+        JSON_BUFFERS.giveBack(buffer);
+      }
+    }
   }
+
+  /**
+   * Context about to be written
+   *
+   * @param executionId id of the execution of the context
+   * @param document fields holding the context for an update, or the whole document for an insert
+   * @param fileId id of the GridFS file the context was uploaded to, or null
+   */
+  private record ContextWrite(Long executionId, BsonDocument document, ObjectId fileId) {}
 }
@@ -5,14 +5,26 @@ import static dev.morphia.query.filters.Filters.eq;
 import static dev.morphia.query.filters.Filters.in;
 import static eu.europeana.batch.BatchConstants.*;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.UpdateResult;
 import dev.morphia.Datastore;
+import dev.morphia.UpdateOptions;
+import dev.morphia.query.CountOptions;
 import dev.morphia.query.FindOptions;
+import dev.morphia.query.Sort;
+import dev.morphia.query.filters.Filter;
+import dev.morphia.query.updates.UpdateOperator;
 import dev.morphia.query.updates.UpdateOperators;
 import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.repository.JobExecutionStatusWatcher.ExecutionStatus;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import org.bson.Document;
 import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
@@ -26,25 +38,60 @@ import org.springframework.util.Assert;
 @Repository
 public class JobExecutionRepository extends AbstractRepository implements JobExecutionDao {
 
+  /** Field holding the job instance of a job execution looked up by an aggregation */
+  private static final String JOB_INSTANCE_FIELD = "jobInstance";
+
   public JobExecutionRepository(Datastore datastore) {
     super(datastore);
   }
 
+  /**
+   * Whether all running job executions store their job name and running flag. Job executions
+   * saved by this version always have a job instance, so none of them resets it.
+   */
+  private final BackfillState runningFlags =
+      new BackfillState(() -> queryCountJobExecutionsWithoutRunningFlag() == 0);
+
+  private JobExecutionStatusWatcher statusWatcher;
+
+  private StepExecutionRepository stepExecutionRepository;
+
+  /**
+   * Enables answering {@link #synchronizeStatus} from the statuses received through a change
+   * stream. See {@link JobExecutionStatusWatcher}.
+   *
+   * @param statusWatcher status watcher, or null to read the status from the database every time
+   */
+  public void setStatusWatcher(JobExecutionStatusWatcher statusWatcher) {
+    this.statusWatcher = statusWatcher;
+  }
+
+  /**
+   * Scopes the step history snapshots of the step execution repository to launches: a snapshot is
+   * started when a job execution is created and dropped when it finishes.
+   *
+   * @param stepExecutionRepository step execution repository prefetching step histories, or null
+   */
+  public void setStepExecutionRepository(StepExecutionRepository stepExecutionRepository) {
+    this.stepExecutionRepository = stepExecutionRepository;
+  }
+
   @Override
   public void saveJobExecution(JobExecution jobExecution) {
     validateJobExecution(jobExecution);
     jobExecution.incrementVersion();
-    synchronized (this) {
-      jobExecution.setId(generateSequence(JobExecutionEntity.class.getSimpleName()));
-    }
+    jobExecution.setId(generateSequence(JobExecutionEntity.class.getSimpleName()));
     JobExecutionEntity jobExecutionEntity = JobExecutionEntity.toEntity(jobExecution);
     getDataStore().save(jobExecutionEntity);
+    if (stepExecutionRepository != null) {
+      stepExecutionRepository.createStepHistorySnapshot(jobExecution);
+    }
   }
 
   /**
    * Update given JobExecution. The JobExecution is first checked to ensure all fields are not null,
-   * and that it has an ID. The database is then queried to ensure that the ID exists, which ensures
-   * that it is valid.
+   * and that it has an ID. The update only applies if the version in the database matches. If it
+   * doesn't, a single query tells whether the JobExecution doesn't exist or has a newer version.
    *
    * @see JobExecutionDao#updateJobExecution(JobExecution)
    */
@@ -63,19 +110,15 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
     synchronized (jobExecution) {
       int nextVersion = jobExecution.getVersion() + 1;
 
-      // Check if given JobExecution's Id already exists, if none is found
-      // it is invalid and
-      // an exception should be thrown.
-      if (getJobExecutionWithId(jobExecutionId) == null) {
-        throw new NoSuchObjectException(
-            "Invalid JobExecution, ID " + jobExecution.getId() + " not found.");
-      }
-
       UpdateResult result = queryUpdateJobExecution(jobExecution, jobExecutionId, nextVersion);
 
       // Avoid concurrent modifications
-      if (result.getModifiedCount() == 0) {
-        int currentVersion = queryGetJobExecutionVersion(jobExecutionId);
+      if (result.getMatchedCount() == 0) {
+        Integer currentVersion = queryGetJobExecutionVersion(jobExecutionId);
+        if (currentVersion == null) {
+          throw new NoSuchObjectException(
+              "Invalid JobExecution, ID " + jobExecution.getId() + " not found.");
+        }
         throw new OptimisticLockingFailureException(
             "Attempt to update job execution id="
                 + jobExecution.getId()
@@ -84,6 +127,12 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
                 + "), where current version is "
                 + currentVersion);
       }
+
+      jobExecution.incrementVersion();
+    }
+
+    if (stepExecutionRepository != null && jobExecution.getEndTime() != null) {
+      stepExecutionRepository.dropStepHistorySnapshot(jobExecution);
     }
   }
 
@@ -112,8 +161,13 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
 
   @Override
   public Set<JobExecution> findRunningJobExecutions(String jobName) {
-    List<Long> ids = getJobInstanceIdsWithName(jobName);
-    List<JobExecutionEntity> jobExecutions = queryGetRunningJobExecutions(ids);
+    List<JobExecutionEntity> jobExecutions;
+    if (runningFlags.isComplete()) {
+      jobExecutions = queryGetRunningJobExecutions(jobName);
+    } else {
+      List<Long> ids = getJobInstanceIdsWithName(jobName);
+      jobExecutions = queryGetRunningJobExecutions(ids);
+    }
 
     return jobExecutions.stream().map(JobExecutionEntity::fromEntity).collect(Collectors.toSet());
   }
@@ -126,15 +180,68 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
 
   @Override
   public void synchronizeStatus(JobExecution jobExecution) {
-    int currentVersion = queryGetJobExecutionVersion(jobExecution.getId());
+    long jobExecutionId = jobExecution.getId();
+    ExecutionStatus current;
+    if (statusWatcher == null) {
+      current = queryGetJobExecutionStatus(jobExecutionId);
+    } else {
+      current = statusWatcher.getStatus(jobExecutionId, this::queryGetJobExecutionStatus);
+      // the event of an update made by this JVM may not have been received yet
+      if (current != null && current.version() < jobExecution.getVersion()) {
+        current = queryGetJobExecutionStatus(jobExecutionId);
+      }
+    }
+
+    if (current == null) {
+      throw new NoSuchObjectException(
+          "Invalid JobExecution, ID " + jobExecution.getId() + " not found.");
+    }
 
-    if (currentVersion != jobExecution.getVersion()) {
-      String status = queryGetJobExecutionStatus(jobExecution.getId());
-      jobExecution.upgradeStatus(BatchStatus.valueOf(status));
-      jobExecution.setVersion(currentVersion);
+    if (current.version() != jobExecution.getVersion()) {
+      jobExecution.upgradeStatus(BatchStatus.valueOf(current.status()));
+      jobExecution.setVersion(current.version());
     }
   }
 
+  /**
+   * Stores the job name and running flag on running job executions saved by older versions, which
+   * don't have them. Until this completes, {@link #findRunningJobExecutions} first looks up all
+   * job instances with the job name. The values are copied from the job instances by a single
+   * aggregation that runs on the server, so this can be called in the background while jobs are
+   * running. The aggregation merges into the collection it reads from, which requires MongoDB 4.4
+   * or later. Job executions saved by this version always have them. Running job executions
+   * without job instance can't get the job name, and are left as they are. See {@link
+   * BackfillState} for job executions saved by older versions afterwards.
+   *
+   * @return true if all running job executions with a job instance now have their job name and
+   *     running flag
+   */
+  public boolean backfillRunningFlags() {
+    if (runningFlags.isComplete()) {
+      return true;
+    }
+    return runningFlags.update(
+        () -> {
+          if (queryCountJobExecutionsToBackfill() == 0) {
+            return true;
+          }
+          queryMergeRunningFlags();
+          return queryCountJobExecutionsToBackfill() == 0;
+        });
+  }
+
+  /**
+   * Enables the lookup of running job executions by job name without backfill if no running job
+   * execution lacks the running flag, e.g. because all of them were saved by this version, or
+   * disables it otherwise. This is a single indexed query and doesn't write anything, unlike
+   * {@link #backfillRunningFlags}. It runs on the first lookup if neither ran before.
+   *
+   * @return true if all running job executions have their job name and running flag
+   */
+  public boolean checkRunningFlags() {
+    return runningFlags.check();
+  }
+
   /**
    * Validate JobExecution. At a minimum, JobId, Status, CreateTime cannot be null.
    *
@@ -152,55 +259,74 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
    * Gets the JobExecution version saved in the database.
    *
    * @param jobExecutionId
-   * @return
+   * @return the version, or null if the JobExecution doesn't exist
    */
-  private int queryGetJobExecutionVersion(long jobExecutionId) {
-    return getDataStore()
-        .find(JobExecutionEntity.class)
-        .filter(eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
-        .iterator(new FindOptions().projection().include(VERSION_KEY).limit(1))
-        .next()
-        .getVersion();
+  private Integer queryGetJobExecutionVersion(long jobExecutionId) {
+    JobExecutionEntity entity =
+        getDataStore()
+            .find(JobExecutionEntity.class)
+            .filter(createJobExecutionIdFilter(jobExecutionId))
+            .iterator(new FindOptions().projection().include(VERSION_KEY).limit(1))
+            .tryNext();
+    return entity == null ? null : entity.getVersion();
   }
 
   private UpdateResult queryUpdateJobExecution(
       JobExecution jobExecution, Long jobExecutionId, int nextVersion) {
+    List<UpdateOperator> updates =
+        new ArrayList<>(
+            List.of(
+                UpdateOperators.set(JOB_EXECUTION_ID_KEY, jobExecutionId),
+                UpdateOperators.set(VERSION_KEY, nextVersion),
+                UpdateOperators.set(JOB_INSTANCE_ID_KEY, jobExecution.getJobId()),
+                handleNullField(RUNNING_KEY, JobExecutionEntity.isRunning(jobExecution)),
+                handleNullField(START_TIME_KEY, jobExecution.getStartTime()),
+                handleNullField(END_TIME_KEY, jobExecution.getEndTime()),
+                UpdateOperators.set(STATUS_KEY, jobExecution.getStatus().toString()),
+                UpdateOperators.set(EXIT_CODE_KEY, jobExecution.getExitStatus().getExitCode()),
+                UpdateOperators.set(
+                    EXIT_MESSAGE_KEY, jobExecution.getExitStatus().getExitDescription()),
+                handleNullField(CREATE_TIME_KEY, jobExecution.getCreateTime()),
+                handleNullField(LAST_UPDATED_KEY, jobExecution.getLastUpdated())));
+    // as in JobExecutionEntity.toEntity, the job name is only stored along with a job instance
+    JobInstance jobInstance = jobExecution.getJobInstance();
+    if (jobInstance != null) {
+      updates.add(handleNullField(JOB_NAME_KEY, jobInstance.getJobName()));
+    }
+
     return getDataStore()
         .find(JobExecutionEntity.class)
         .filter(
             eq(JOB_EXECUTION_ID_KEY, jobExecutionId), eq(VERSION_KEY, jobExecution.getVersion()))
-        .update(
-            UpdateOperators.set(JOB_EXECUTION_ID_KEY, jobExecutionId),
-            UpdateOperators.set(VERSION_KEY, nextVersion),
-            UpdateOperators.set(JOB_INSTANCE_ID_KEY, jobExecution.getJobId()),
-            handleNullField(START_TIME_KEY, jobExecution.getStartTime()),
-            handleNullField(END_TIME_KEY, jobExecution.getEndTime()),
-            UpdateOperators.set(STATUS_KEY, jobExecution.getStatus().toString()),
-            UpdateOperators.set(EXIT_CODE_KEY, jobExecution.getExitStatus().getExitCode()),
-            UpdateOperators.set(
-                EXIT_MESSAGE_KEY, jobExecution.getExitStatus().getExitDescription()),
-            handleNullField(CREATE_TIME_KEY, jobExecution.getCreateTime()),
-            handleNullField(LAST_UPDATED_KEY, jobExecution.getLastUpdated()))
-        .execute();
-  }
-
-  private String queryGetJobExecutionStatus(long jobExecutionId) {
-    return getDataStore()
-        .find(JobExecutionEntity.class)
-        .filter(eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
-        .iterator(new FindOptions().projection().include(STATUS_KEY).limit(1))
-        .next()
-        .getStatus();
+        .update(new UpdateOptions(), updates.toArray(UpdateOperator[]::new));
+  }
+
+  private ExecutionStatus queryGetJobExecutionStatus(long jobExecutionId) {
+    JobExecutionEntity entity =
+        getDataStore()
+            .find(JobExecutionEntity.class)
+            .filter(createJobExecutionIdFilter(jobExecutionId))
+            .iterator(new FindOptions().projection().include(VERSION_KEY, STATUS_KEY).limit(1))
+            .tryNext();
+    return entity == null ? null : new ExecutionStatus(entity.getVersion(), entity.getStatus());
   }
 
   private JobExecutionEntity queryGetLastJobExecutionForInstance(long jobInstanceId) {
     return getDataStore()
         .find(JobExecutionEntity.class)
-        .filter(eq(JOB_INSTANCE_ID_KEY, jobInstanceId))
-        .iterator(new FindOptions().sort(descending(CREATE_TIME_KEY)).limit(1))
+        .filter(createJobInstanceFilter(jobInstanceId))
+        .iterator(new FindOptions().sort(createLastCreatedSort()).limit(1))
         .tryNext();
   }
 
+  private List<JobExecutionEntity> queryGetRunningJobExecutions(String jobName) {
+    return getDataStore()
+        .find(JobExecutionEntity.class)
+        .filter(createRunningFilters(jobName))
+        .iterator(DESCENDING_JOB_EXECUTION)
+        .toList();
+  }
+
   private List<JobExecutionEntity> queryGetRunningJobExecutions(final List<Long> jobInstanceIds) {
     return getDataStore()
         .find(JobExecutionEntity.class)
@@ -208,4 +334,113 @@ public class JobExecutionRepository extends AbstractRepository implements JobExe
         .iterator(DESCENDING_JOB_EXECUTION)
         .toList();
   }
+
+  /** Counts up to one job execution without end time and running flag, with the index on both */
+  private long queryCountJobExecutionsWithoutRunningFlag() {
+    return getDataStore()
+        .find(JobExecutionEntity.class)
+        .filter(createWithoutRunningFlagFilters())
+        .count(new CountOptions().limit(1));
+  }
+
+  /**
+   * Counts the job executions without end time and running flag that belong to an existing job
+   * instance
+   */
+  private long queryCountJobExecutionsToBackfill() {
+    List<Document> pipeline = new ArrayList<>(runningFlagBackfillStages());
+    pipeline.add(new Document("$count", "count"));
+
+    Document result =
+        getDataStore()
+            .getCollection(JobExecutionEntity.class)
+            .aggregate(pipeline, Document.class)
+            .first();
+    return result == null ? 0 : result.get("count", Number.class).longValue();
+  }
+
+  /**
+   * Copies the job name of their job instance onto job executions without end time and running
+   * flag, and sets their running flag
+   */
+  private void queryMergeRunningFlags() {
+    MongoCollection<JobExecutionEntity> jobExecutions =
+        getDataStore().getCollection(JobExecutionEntity.class);
+
+    List<Document> pipeline = new ArrayList<>(runningFlagBackfillStages());
+    pipeline.add(
+        new Document(
+            "$project",
+            new Document(JOB_NAME_KEY, "$" + JOB_INSTANCE_FIELD + "." + JOB_NAME_KEY)
+                .append(RUNNING_KEY, new Document("$literal", true))));
+    pipeline.add(
+        new Document(
+            "$merge",
+            new Document("into", jobExecutions.getNamespace().getCollectionName())
+                .append("on", "_id")
+                .append("whenMatched", "merge")
+                .append("whenNotMatched", "discard")));
+    jobExecutions.aggregate(pipeline).toCollection();
+
+    // executions that ended while the aggregation ran may have been flagged after their update
+    jobExecutions.updateMany(
+        Filters.and(Filters.eq(RUNNING_KEY, true), Filters.exists(END_TIME_KEY)),
+        Updates.unset(RUNNING_KEY));
+  }
+
+  /**
+   * Stages selecting the job executions without end time and running flag, with their job
+   * instance. Job executions whose job instance doesn't exist can't be found by job name anyway,
+   * so they are left out.
+   */
+  private List<Document> runningFlagBackfillStages() {
+    return List.of(
+        new Document(
+            "$match",
+            new Document(RUNNING_KEY, new Document("$exists", false))
+                .append(END_TIME_KEY, new Document("$exists", false))),
+        new Document(
+            "$lookup",
+            new Document(
+                    "from",
+                    getDataStore()
+                        .getCollection(JobInstanceEntity.class)
+                        .getNamespace()
+                        .getCollectionName())
+                .append("localField", JOB_INSTANCE_ID_KEY)
+                .append("foreignField", JOB_INSTANCE_ID_KEY)
+                .append("as", JOB_INSTANCE_FIELD)),
+        new Document("$unwind", "$" + JOB_INSTANCE_FIELD));
+  }
+
+  // Filters and sorts of the queries whose plans BatchIndexManager checks, see RepositoryQueries
+
+  static Filter createJobExecutionIdFilter(long jobExecutionId) {
+    return eq(JOB_EXECUTION_ID_KEY, jobExecutionId);
+  }
+
+  /** Matches the job executions of the job instance */
+  static Filter createJobInstanceFilter(long jobInstanceId) {
+    return eq(JOB_INSTANCE_ID_KEY, jobInstanceId);
+  }
+
+  /**
+   * Matches the running job executions of the job, using the partial index on running ones. Nodes
+   * running an older version may end a job execution without clearing its running flag, so the
+   * end time is checked as well.
+   */
+  static Filter[] createRunningFilters(String jobName) {
+    return new Filter[] {
+      eq(JOB_NAME_KEY, jobName), eq(RUNNING_KEY, true), eq(END_TIME_KEY, null)
+    };
+  }
+
+  /** Matches the running job executions saved by older versions, which have no running flag */
+  static Filter[] createWithoutRunningFlagFilters() {
+    return new Filter[] {eq(END_TIME_KEY, null), eq(RUNNING_KEY, null)};
+  }
+
+  static Sort createLastCreatedSort() {
+    return descending(CREATE_TIME_KEY);
+  }
 }
@@ -0,0 +1,263 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.STATUS_KEY;
+import static eu.europeana.batch.BatchConstants.VERSION_KEY;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import dev.morphia.Datastore;
+import eu.europeana.batch.BatchRepositoryUtils;
+import eu.europeana.batch.entity.JobExecutionEntity;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import org.bson.Document;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.util.Assert;
+
+/**
+ * Keeps the version and status of running job executions up to date in memory, by following a
+ * change stream on the JobExecution collection. {@link JobExecutionRepository#synchronizeStatus}
+ * is called on every chunk commit, to find out whether the job was stopped. With a watcher, it
+ * is answered without a query.
+ *
+ * <p>A job execution is read from the database the first time it is synchronized, then kept up to
+ * date by the change stream. The statuses of the most recently used job executions are kept.
+ * While the stream is not open, e.g. before {@link #start} or after a network error, all lookups
+ * read the database. The stream is reopened after a delay. If the server doesn't support change
+ * streams, e.g. on a standalone server, the watcher stops and lookups keep reading the database.
+ */
+public class JobExecutionStatusWatcher {
+
+  public static final Duration DEFAULT_RETRY_DELAY = Duration.ofSeconds(10);
+
+  /** Error code of a server that doesn't support change streams */
+  private static final int CHANGE_STREAMS_NOT_SUPPORTED = 40573;
+
+  private static final String FULL_DOCUMENT = "fullDocument";
+
+  /** Maximum number of job executions whose status is kept */
+  private static final int MAX_TRACKED_JOB_EXECUTIONS = 10_000;
+
+  private final ChangeStream changeStream;
+  private final long retryDelayMillis;
+
+  private final Map<Long, ExecutionStatus> statuses =
+      BatchRepositoryUtils.createLruMap(MAX_TRACKED_JOB_EXECUTIONS);
+
+  /** Guards opening and closing the stream, and adding statuses read from the database */
+  private final Object lock = new Object();
+
+  /** Incremented every time the stream is opened or closed */
+  private long generation;
+
+  private volatile boolean streamOpen;
+  private volatile boolean stopped;
+
+  private Thread watcherThread;
+
+  public JobExecutionStatusWatcher(Datastore datastore) {
+    this(datastore, DEFAULT_RETRY_DELAY);
+  }
+
+  /**
+   * Creates a watcher. Its change stream is only opened by {@link #start}, and it still needs to
+   * be set on the job execution repository.
+   *
+   * @param datastore Morphia datastore to use
+   * @param retryDelay time after which the stream is reopened after an error
+   */
+  public JobExecutionStatusWatcher(Datastore datastore, Duration retryDelay) {
+    this(
+        createChangeStream(
+            datastore.getCollection(JobExecutionEntity.class).withDocumentClass(Document.class)),
+        retryDelay);
+  }
+
+  /**
+   * Creates a watcher reading events from the given change stream, so they can be simulated
+   *
+   * @param changeStream opens the change stream
+   * @param retryDelay time after which the stream is reopened after an error
+   */
+  JobExecutionStatusWatcher(ChangeStream changeStream, Duration retryDelay) {
+    this.changeStream = changeStream;
+    this.retryDelayMillis = retryDelay.toMillis();
+  }
+
+  /** Opens the change stream in the background. A watcher can only be started once. */
+  public synchronized void start() {
+    Assert.state(watcherThread == null, "Watcher was already started");
+    watcherThread = new Thread(this::watch, "job-execution-status-watcher");
+    watcherThread.setDaemon(true);
+    watcherThread.start();
+  }
+
+  /**
+   * Whether lookups are currently answered from memory
+   *
+   * @return true if the change stream is open
+   */
+  public boolean isStreamOpen() {
+    return streamOpen;
+  }
+
+  /** Closes the change stream. Later lookups read the database. */
+  public synchronized void shutdown() {
+    stopped = true;
+    if (watcherThread != null) {
+      watcherThread.interrupt();
+    }
+  }
+
+  /**
+   * Gets the version and status of a job execution
+   *
+   * @param jobExecutionId job execution id
+   * @param loader reads the version and status from the database, returning null if the job
+   *     execution doesn't exist
+   * @return version and status, or null if the job execution doesn't exist
+   */
+  ExecutionStatus getStatus(long jobExecutionId, LongFunction<ExecutionStatus> loader) {
+    long loadGeneration;
+    synchronized (lock) {
+      if (!streamOpen) {
+        return loader.apply(jobExecutionId);
+      }
+      loadGeneration = generation;
+    }
+
+    ExecutionStatus status = statuses.get(jobExecutionId);
+    if (status != null) {
+      return status;
+    }
+
+    // the stream was open before the read, so later changes are received as events
+    status = loader.apply(jobExecutionId);
+    if (status != null) {
+      synchronized (lock) {
+        if (generation == loadGeneration) {
+          update(jobExecutionId, status);
+        }
+      }
+    }
+    return status;
+  }
+
+  /** Follows the change stream until the watcher is shut down, reopening it after errors */
+  void watch() {
+    // inserts, replacements and updates that change the version, which every update of a job
+    // execution does. Backfills and other updates are left out.
+    List<Document> pipeline =
+        List.of(
+            new Document(
+                "$match",
+                new Document(
+                    "$or",
+                    List.of(
+                        new Document(
+                            "operationType", new Document("$in", List.of("insert", "replace"))),
+                        new Document(
+                            "updateDescription.updatedFields." + VERSION_KEY,
+                            new Document("$exists", true))))),
+            new Document(
+                "$project",
+                new Document(FULL_DOCUMENT + "." + JOB_EXECUTION_ID_KEY, 1)
+                    .append(FULL_DOCUMENT + "." + VERSION_KEY, 1)
+                    .append(FULL_DOCUMENT + "." + STATUS_KEY, 1)));
+
+    while (!stopped) {
+      try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor =
+          changeStream.open(pipeline)) {
+        setStreamOpen(true);
+        while (!stopped) {
+          ChangeStreamDocument<Document> event = cursor.tryNext();
+          if (event != null && event.getFullDocument() != null) {
+            Document jobExecution = event.getFullDocument();
+            update(
+                jobExecution.getLong(JOB_EXECUTION_ID_KEY),
+                new ExecutionStatus(
+                    jobExecution.getInteger(VERSION_KEY), jobExecution.getString(STATUS_KEY)));
+          }
+        }
+      } catch (MongoCommandException e) {
+        if (e.getErrorCode() == CHANGE_STREAMS_NOT_SUPPORTED) {
+          stopped = true;
+        }
+      } catch (MongoException e) {
+        // reopened below
+      } finally {
+        setStreamOpen(false);
+      }
+
+      if (!stopped) {
+        try {
+          Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens change streams on the collection. Updates carry the current job execution, looked up
+   * when the event is read, which is missing if it was deleted since.
+   */
+  private static ChangeStream createChangeStream(MongoCollection<Document> jobExecutions) {
+    return pipeline ->
+        jobExecutions
+            .watch(pipeline)
+            .fullDocument(FullDocument.UPDATE_LOOKUP)
+            .maxAwaitTime(1, TimeUnit.SECONDS)
+            .cursor();
+  }
+
+  /**
+   * Opens or closes the stream. Statuses are dropped both ways: while the stream is closed,
+   * changes are missed, and statuses read before it was opened may already be outdated.
+   */
+  final void setStreamOpen(boolean open) {
+    synchronized (lock) {
+      statuses.clear();
+      generation++;
+      streamOpen = open;
+    }
+  }
+
+  /** Keeps the status with the highest version */
+  final void update(long jobExecutionId, ExecutionStatus status) {
+    statuses.merge(
+        jobExecutionId,
+        status,
+        (known, received) -> received.version() > known.version() ? received : known);
+  }
+
+  /**
+   * Version and status of a job execution in the database
+   *
+   * @param version version
+   * @param status name of the {@link BatchStatus}
+   */
+  record ExecutionStatus(int version, String status) {}
+
+  /** Opens a change stream on the JobExecution collection */
+  interface ChangeStream {
+
+    /**
+     * Opens the change stream
+     *
+     * @param pipeline stages applied to the events
+     * @return cursor over the events
+     */
+    MongoChangeStreamCursor<ChangeStreamDocument<Document>> open(List<Document> pipeline);
+  }
+}
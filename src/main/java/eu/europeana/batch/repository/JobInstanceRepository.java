@@ -1,22 +1,48 @@
 package eu.europeana.batch.repository;
 
 import static dev.morphia.query.Sort.descending;
+import static dev.morphia.query.filters.Filters.all;
 import static dev.morphia.query.filters.Filters.eq;
+import static dev.morphia.query.filters.Filters.in;
 import static dev.morphia.query.filters.Filters.or;
-import static dev.morphia.query.filters.Filters.regex;
 import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
 import static eu.europeana.batch.BatchConstants.JOB_KEY_GENERATOR;
 import static eu.europeana.batch.BatchConstants.JOB_KEY_KEY;
 import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
-
+import static eu.europeana.batch.entity.JobNameEntity.TRIGRAMS_KEY;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import dev.morphia.Datastore;
 import dev.morphia.query.FindOptions;
+import dev.morphia.query.MorphiaCursor;
 import dev.morphia.query.Query;
+import dev.morphia.query.Sort;
 import dev.morphia.query.filters.Filter;
 
 import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.entity.JobNameEntity;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.Document;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
@@ -29,27 +55,84 @@ import org.springframework.util.StringUtils;
 
 public class JobInstanceRepository extends AbstractRepository implements JobInstanceDao {
 
+  private static final Log logger = LogFactory.getLog(JobInstanceRepository.class);
+
+  /** Wildcard in the job name of {@link #findJobInstancesByName} */
+  private static final String WILDCARD = "*";
+
+  /** Job names this JVM added to the job name registry, or found there */
+  private final Set<String> registeredJobNames = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Whether the job name registry holds the names of all job instances. Job instances created by
+   * this version always register their name, so none of them resets it.
+   */
+  private final BackfillState jobNameRegistry = new BackfillState(this::queryHasAllJobNames);
+
+  /** Whether job names are searched literally, with the job name registry */
+  private boolean jobNameRegistrySearch;
+
+  /** Whether the unique index on job name and key was found, or null if it wasn't checked yet */
+  private volatile Boolean uniqueJobKeyIndex;
+
+  /** Whether the warning about the missing unique index was logged */
+  private final AtomicBoolean missingUniqueJobKeyIndexLogged = new AtomicBoolean();
+
   public JobInstanceRepository(Datastore datastore) {
     super(datastore);
   }
 
+  /**
+   * Changes how {@link #findJobInstancesByName} matches the searched name. By default, it is a
+   * regular expression matched anywhere in the job name, as in earlier versions, which scans all
+   * job instances. With the registry search, it is matched literally with '*' as wildcard, and the
+   * matching job names are looked up in the job name registry once {@link #checkJobNameRegistry}
+   * or {@link #registerJobNames} found it complete. Searches using regular expression syntax then
+   * no longer match the same job names.
+   *
+   * @param jobNameRegistrySearch true to search literally with the job name registry
+   */
+  public void setJobNameRegistrySearch(boolean jobNameRegistrySearch) {
+    this.jobNameRegistrySearch = jobNameRegistrySearch;
+  }
+
+  /**
+   * Creates a job instance. Instead of looking up the job instance first, the insert relies on the
+   * unique index on job name and key, so concurrent creations by different nodes can't both
+   * succeed. Whether that index exists is checked by {@link #checkUniqueJobKeyIndex}, or else on
+   * the first creation. Without it, e.g. when indexes are not ensured on startup, the job instance
+   * is looked up first as before, which doesn't protect against concurrent creations.
+   *
+   * @throws IllegalStateException if a job instance with the same name and parameters exists
+   */
   @Override
   public JobInstance createJobInstance(final String jobName, final JobParameters jobParameters) {
     Assert.notNull(jobName, "Job name must not be null.");
     Assert.notNull(jobParameters, "JobParameters must not be null.");
-
+    Boolean uniqueIndex = uniqueJobKeyIndex;
+    if (uniqueIndex == null) {
+      uniqueIndex = checkUniqueJobKeyIndex();
+    }
     Assert.state(
-        getJobInstance(jobName, jobParameters) == null, "JobInstance must not already exist");
+        uniqueIndex || getJobInstance(jobName, jobParameters) == null,
+        "JobInstance must not already exist");
 
-    JobInstance jobInstance;
-    synchronized (this) {
-      long jobId = generateSequence(JobInstanceEntity.class.getSimpleName());
-      jobInstance = new JobInstance(jobId, jobName);
-    }
+    long jobId = generateSequence(JobInstanceEntity.class.getSimpleName());
+    JobInstance jobInstance = new JobInstance(jobId, jobName);
     jobInstance.incrementVersion();
 
+    // registered first, so every job instance can be found by a job name search
+    registerJobName(jobName);
+
     JobInstanceEntity jobInstanceEntity = JobInstanceEntity.toEntity(jobInstance, jobParameters);
-    getDataStore().save(jobInstanceEntity);
+    try {
+      getDataStore().insert(jobInstanceEntity);
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+        throw new IllegalStateException("JobInstance must not already exist", e);
+      }
+      throw e;
+    }
 
     return jobInstance;
   }
@@ -86,6 +169,34 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
     return getJobInstance(instanceId);
   }
 
+  /**
+   * Gets the job instances of several job executions with two queries, instead of two per job
+   * execution: one for the job instance ids, and one for the distinct job instances
+   *
+   * @param jobExecutions job executions
+   * @return job instances by job execution id
+   */
+  public Map<Long, JobInstance> getJobInstances(Collection<JobExecution> jobExecutions) {
+    Map<Long, Long> instanceIds =
+        getJobExecutionInstanceIds(jobExecutions.stream().map(JobExecution::getId).toList());
+
+    List<JobInstanceEntity> entities =
+        getDataStore()
+            .find(JobInstanceEntity.class)
+            .filter(in(JOB_INSTANCE_ID_KEY, new HashSet<>(instanceIds.values())))
+            .iterator()
+            .toList();
+    Map<Long, JobInstance> instancesById = new HashMap<>();
+    for (JobInstanceEntity entity : entities) {
+      instancesById.put(entity.getJobInstanceId(), JobInstanceEntity.fromEntity(entity));
+    }
+
+    Map<Long, JobInstance> instances = new HashMap<>();
+    instanceIds.forEach(
+        (executionId, instanceId) -> instances.put(executionId, instancesById.get(instanceId)));
+    return instances;
+  }
+
   /**
    * Fetch the last job instances with the provided name, sorted backwards by primary key.
    *
@@ -96,7 +207,7 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
    */
   @Override
   public List<JobInstance> getJobInstances(String jobName, int start, int count) {
-    return queryGetJobInstances(eq(JOB_NAME_KEY, jobName), start, count).stream()
+    return queryGetJobInstances(createJobNameFilter(jobName), start, count).stream()
         .map(JobInstanceEntity::fromEntity)
         .collect(Collectors.toList());
   }
@@ -107,8 +218,18 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
   }
 
   /**
-   * Fetch the last job instances with the provided name, sorted backwards by primary key, using a
-   * 'like' criteria
+   * Fetch the last job instances with the provided name, sorted backwards by primary key. By
+   * default, the name is a regular expression matched anywhere in the job name.
+   *
+   * <p>With the registry search, see {@link #setJobNameRegistrySearch}, the name is matched
+   * literally anywhere in the job name, and '*' matches any characters. Unlike the JDBC
+   * implementation, which requires an exact match without '*' and anchors its 'like' pattern with
+   * it, the match is never anchored: "import" also finds "daily-import-job". The matching job
+   * names are looked up in the job name registry, using the trigrams of the searched name. The job
+   * instances of these names are then read from the (jobName, jobInstanceId) index. Until the
+   * registry is known to hold all job names, see {@link #checkJobNameRegistry} and {@link
+   * #registerJobNames}, job instances are matched with a regular expression instead, which scans
+   * all of them.
    *
    * @param jobName {@link String} containing the name of the job.
    * @param start int containing the offset of where list of job instances results should begin.
@@ -118,13 +239,76 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
   @Override
   public List<JobInstance> findJobInstancesByName(
       String jobName, final int start, final int count) {
-    // create a regex pattern to match on *jobname*;
-    return queryGetJobInstances(regex(JOB_NAME_KEY).pattern(".*" + jobName + ".*"), start, count)
-        .stream()
+    if (!jobNameRegistrySearch) {
+      // create a regex pattern to match on *jobname*;
+      Filter regexFilter = eq(JOB_NAME_KEY, Pattern.compile(".*" + jobName + ".*"));
+      return queryGetJobInstances(regexFilter, start, count).stream()
+          .map(JobInstanceEntity::fromEntity)
+          .collect(Collectors.toList());
+    }
+
+    List<String> segments = new ArrayList<>();
+    for (String segment : jobName.split(Pattern.quote(WILDCARD))) {
+      if (!segment.isEmpty()) {
+        segments.add(segment);
+      }
+    }
+
+    Filter jobNameFilter;
+    if (jobNameRegistry.isComplete()) {
+      List<String> jobNames = queryFindJobNames(segments);
+      if (jobNames.isEmpty()) {
+        return new ArrayList<>();
+      }
+      jobNameFilter = createJobNamesFilter(jobNames);
+    } else {
+      // a pattern value is matched as a regular expression
+      jobNameFilter = eq(JOB_NAME_KEY, Pattern.compile(toPattern(segments)));
+    }
+
+    return queryGetJobInstances(jobNameFilter, start, count).stream()
         .map(JobInstanceEntity::fromEntity)
         .collect(Collectors.toList());
   }
 
+  /**
+   * Adds the names of all job instances to the job name registry, for job instances created by
+   * older versions. Until this completes, {@link #findJobInstancesByName} scans all job instances.
+   * The names are read from the job name index and written with one bulk write, so this can be
+   * called in the background while jobs are running. Job instances created by this version
+   * always register their name. See {@link BackfillState} for job names created by older versions
+   * afterwards.
+   */
+  public void registerJobNames() {
+    jobNameRegistry.update(
+        () -> {
+          List<String> jobNames = queryDistinctJobNames();
+          List<WriteModel<JobNameEntity>> upserts = new ArrayList<>();
+          for (String jobName : jobNames) {
+            upserts.add(createJobNameUpsert(jobName));
+          }
+          if (!upserts.isEmpty()) {
+            getDataStore()
+                .getCollection(JobNameEntity.class)
+                .bulkWrite(upserts, new BulkWriteOptions().ordered(false));
+          }
+          registeredJobNames.addAll(jobNames);
+          return true;
+        });
+  }
+
+  /**
+   * Enables the job name search with the job name registry without backfill if it holds the names
+   * of all job instances, e.g. on a new database, or disables it otherwise. The distinct job names
+   * are read from the job name index and counted in the registry, without writing anything, unlike
+   * {@link #registerJobNames}. It runs on the first search if neither ran before.
+   *
+   * @return true if the job name registry holds the names of all job instances
+   */
+  public boolean checkJobNameRegistry() {
+    return jobNameRegistry.check();
+  }
+
   @Override
   public long getJobInstanceCount(String jobName) throws NoSuchJobException {
     long count = queryCountJobInstances(jobName);
@@ -136,10 +320,120 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
     return count;
   }
 
+  /** Checks whether the job name registry holds the names of all job instances */
+  private boolean queryHasAllJobNames() {
+    List<String> jobNames = queryDistinctJobNames();
+    if (!jobNames.isEmpty()
+        && getDataStore().find(JobNameEntity.class).filter(in("_id", jobNames)).count()
+            < jobNames.size()) {
+      return false;
+    }
+    registeredJobNames.addAll(jobNames);
+    return true;
+  }
+
+  /**
+   * Checks whether the unique index on job name and key exists, and keeps the result for {@link
+   * #createJobInstance}. This is meant to be called once the indexes were ensured, e.g. at
+   * startup. A warning is logged the first time the index is found missing.
+   *
+   * @return true if the unique index exists
+   */
+  public boolean checkUniqueJobKeyIndex() {
+    boolean found = queryHasUniqueJobKeyIndex();
+    uniqueJobKeyIndex = found;
+    if (!found && missingUniqueJobKeyIndexLogged.compareAndSet(false, true)) {
+      logger.warn(
+          "The unique index on jobName and jobKey of the JobInstance collection is missing, so"
+              + " concurrent creations of the same job instance are not rejected. Create it with"
+              + " BatchIndexManager.ensureIndexes().");
+    }
+    return found;
+  }
+
+  private boolean queryHasUniqueJobKeyIndex() {
+    List<String> keys = List.of(JOB_NAME_KEY, JOB_KEY_KEY);
+    for (Document index : getDataStore().getCollection(JobInstanceEntity.class).listIndexes()) {
+      Document key = index.get("key", Document.class);
+      if (index.getBoolean("unique", false) && keys.equals(new ArrayList<>(key.keySet()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds the job name to the job name registry, unless this JVM already did */
+  private void registerJobName(String jobName) {
+    if (registeredJobNames.contains(jobName)) {
+      return;
+    }
+    UpdateOneModel<JobNameEntity> upsert = createJobNameUpsert(jobName);
+    getDataStore()
+        .getCollection(JobNameEntity.class)
+        .updateOne(upsert.getFilter(), upsert.getUpdate(), upsert.getOptions());
+    registeredJobNames.add(jobName);
+  }
+
+  private static UpdateOneModel<JobNameEntity> createJobNameUpsert(String jobName) {
+    return new UpdateOneModel<>(
+        Filters.eq("_id", jobName),
+        Updates.setOnInsert(TRIGRAMS_KEY, JobNameEntity.toTrigrams(jobName)),
+        new UpdateOptions().upsert(true));
+  }
+
+  /**
+   * Gets the registered job names that contain all segments, in order
+   *
+   * @param segments parts of the searched name between wildcards
+   * @return matching job names
+   */
+  private List<String> queryFindJobNames(List<String> segments) {
+    Set<String> trigrams = new LinkedHashSet<>();
+    for (String segment : segments) {
+      trigrams.addAll(JobNameEntity.toTrigrams(segment));
+    }
+
+    // names too short to have trigrams are matched against all registered names
+    Query<JobNameEntity> query = getDataStore().find(JobNameEntity.class);
+    if (!trigrams.isEmpty()) {
+      query.filter(createTrigramsFilter(trigrams));
+    }
+
+    List<String> jobNames = new ArrayList<>();
+    try (MorphiaCursor<JobNameEntity> cursor =
+        query.iterator(new FindOptions().projection().include("_id"))) {
+      while (cursor.hasNext()) {
+        String jobName = cursor.next().getJobName();
+        if (containsInOrder(jobName, segments)) {
+          jobNames.add(jobName);
+        }
+      }
+    }
+    return jobNames;
+  }
+
+  /** Checks whether the segments occur in the text, one after the other */
+  private static boolean containsInOrder(String text, List<String> segments) {
+    int from = 0;
+    for (String segment : segments) {
+      int index = text.indexOf(segment, from);
+      if (index < 0) {
+        return false;
+      }
+      from = index + segment.length();
+    }
+    return true;
+  }
+
+  /** Creates a regular expression matching the segments literally, one after the other */
+  private static String toPattern(List<String> segments) {
+    return segments.stream().map(Pattern::quote).collect(Collectors.joining(".*"));
+  }
+
   private JobInstanceEntity queryGetJobInstance(long jobInstanceId) {
     return getDataStore()
         .find(JobInstanceEntity.class)
-        .filter(eq(JOB_INSTANCE_ID_KEY, jobInstanceId))
+        .filter(createJobInstanceIdFilter(jobInstanceId))
         .first();
   }
 
@@ -156,20 +450,16 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
     return getDataStore()
         .find(JobInstanceEntity.class)
         .filter(jobNameFilter)
-        .iterator(new FindOptions().sort(descending(JOB_INSTANCE_ID_KEY)).skip(start).limit(count))
+        .iterator(new FindOptions().sort(createMostRecentFirstSort()).skip(start).limit(count))
         .toList();
   }
 
   private List<JobInstanceEntity> queryGetJobInstances(String jobName, String jobKey) {
-    final Query<JobInstanceEntity> query = getDataStore().find(JobInstanceEntity.class);
-
-    // if jobKey is empty, then return only jobs with an empty key
-    if (StringUtils.hasLength(jobKey)) {
-      query.filter(eq(JOB_KEY_KEY, jobKey));
-    } else {
-      query.filter(or(eq(JOB_KEY_KEY, jobKey), eq(JOB_KEY_KEY, null)));
-    }
-    return query.filter(eq(JOB_NAME_KEY, jobName)).iterator().toList();
+    return getDataStore()
+        .find(JobInstanceEntity.class)
+        .filter(createJobKeyFilters(jobName, jobKey))
+        .iterator()
+        .toList();
   }
 
   /**
@@ -181,7 +471,7 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
   @Override
   @Nullable
   public JobInstance getLastJobInstance(@NonNull String jobName) {
-    List<JobInstanceEntity> instances = queryGetJobInstances(eq(JOB_NAME_KEY, jobName), 0, 1);
+    List<JobInstanceEntity> instances = queryGetJobInstances(createJobNameFilter(jobName), 0, 1);
 
     if (instances == null || instances.isEmpty()) {
       return null;
@@ -201,6 +491,41 @@ public class JobInstanceRepository extends AbstractRepository implements JobInst
   }
 
   private long queryCountJobInstances(String jobName) {
-    return getDataStore().find(JobInstanceEntity.class).filter(eq(JOB_NAME_KEY, jobName)).count();
+    return getDataStore()
+        .find(JobInstanceEntity.class)
+        .filter(createJobNameFilter(jobName))
+        .count();
+  }
+
+  // Filters and sorts of the queries whose plans BatchIndexManager checks, see RepositoryQueries
+
+  static Filter createJobInstanceIdFilter(long jobInstanceId) {
+    return eq(JOB_INSTANCE_ID_KEY, jobInstanceId);
+  }
+
+  static Filter createJobNameFilter(String jobName) {
+    return eq(JOB_NAME_KEY, jobName);
+  }
+
+  static Filter createJobNamesFilter(Collection<String> jobNames) {
+    return in(JOB_NAME_KEY, jobNames);
+  }
+
+  /** Matches the job instance with the name and key. An empty key also matches a missing key. */
+  static Filter[] createJobKeyFilters(String jobName, String jobKey) {
+    Filter jobKeyFilter =
+        StringUtils.hasLength(jobKey)
+            ? eq(JOB_KEY_KEY, jobKey)
+            : or(eq(JOB_KEY_KEY, jobKey), eq(JOB_KEY_KEY, null));
+    return new Filter[] {eq(JOB_NAME_KEY, jobName), jobKeyFilter};
+  }
+
+  /** Matches the registered job names that have all the trigrams */
+  static Filter createTrigramsFilter(Collection<String> trigrams) {
+    return all(TRIGRAMS_KEY, new ArrayList<>(trigrams));
+  }
+
+  static Sort createMostRecentFirstSort() {
+    return descending(JOB_INSTANCE_ID_KEY);
   }
 }
@@ -0,0 +1,182 @@
+package eu.europeana.batch.repository;
+
+import static dev.morphia.query.Sort.ascending;
+import static dev.morphia.query.Sort.descending;
+import static dev.morphia.query.filters.Filters.eq;
+import static dev.morphia.query.filters.Filters.in;
+import static eu.europeana.batch.BatchConstants.DESCENDING_JOB_EXECUTION;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_ID_KEY;
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_TYPE_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
+import static eu.europeana.batch.BatchConstants.START_TIME_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_NAME_KEY;
+
+import dev.morphia.Datastore;
+import dev.morphia.query.FindOptions;
+import dev.morphia.query.Query;
+import eu.europeana.batch.entity.ExecutionContextEntity;
+import eu.europeana.batch.entity.ExecutionContextEntityType;
+import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.entity.JobNameEntity;
+import eu.europeana.batch.entity.StepExecutionEntity;
+import java.util.List;
+
+/**
+ * Shapes of the repository queries, whose plans {@link
+ * eu.europeana.batch.index.BatchIndexManager#checkQueryPlans()} checks. Finds are built with the
+ * filters and sorts the repositories use. Aggregations and the raw context queries are described
+ * by an equivalent find, with the filter of their leading {@code $match} and the keys of their
+ * {@code $sort}. Values are placeholders, only the plan matters.
+ */
+public final class RepositoryQueries {
+
+  private RepositoryQueries() {}
+
+  /**
+   * Creates the queries against the datastore
+   *
+   * @param datastore datastore of the repositories
+   * @return the queries, in the order of the repositories
+   */
+  public static List<RepositoryQuery> create(Datastore datastore) {
+    return List.of(
+        new RepositoryQuery(
+            "JobInstance by id",
+            datastore
+                .find(JobInstanceEntity.class)
+                .filter(JobInstanceRepository.createJobInstanceIdFilter(0L)),
+            new FindOptions()),
+        new RepositoryQuery(
+            "JobInstances by job name, most recent first",
+            datastore
+                .find(JobInstanceEntity.class)
+                .filter(JobInstanceRepository.createJobNameFilter("")),
+            new FindOptions().sort(JobInstanceRepository.createMostRecentFirstSort())),
+        new RepositoryQuery(
+            "JobInstance by job name and key",
+            datastore
+                .find(JobInstanceEntity.class)
+                .filter(JobInstanceRepository.createJobKeyFilters("", "key")),
+            new FindOptions()),
+        new RepositoryQuery(
+            "Job names by trigrams",
+            datastore
+                .find(JobNameEntity.class)
+                .filter(JobInstanceRepository.createTrigramsFilter(List.of("abc", "bcd"))),
+            new FindOptions()),
+        new RepositoryQuery(
+            "JobInstances of several job names, most recent first",
+            datastore
+                .find(JobInstanceEntity.class)
+                .filter(JobInstanceRepository.createJobNamesFilter(List.of("a", "b"))),
+            new FindOptions().sort(JobInstanceRepository.createMostRecentFirstSort())),
+        new RepositoryQuery(
+            "JobExecution by id",
+            datastore
+                .find(JobExecutionEntity.class)
+                .filter(JobExecutionRepository.createJobExecutionIdFilter(0L)),
+            new FindOptions()),
+        new RepositoryQuery(
+            "JobExecutions of a job instance, most recent first",
+            datastore
+                .find(JobExecutionEntity.class)
+                .filter(JobExecutionRepository.createJobInstanceFilter(0L)),
+            DESCENDING_JOB_EXECUTION),
+        new RepositoryQuery(
+            "Last JobExecution of a job instance",
+            datastore
+                .find(JobExecutionEntity.class)
+                .filter(JobExecutionRepository.createJobInstanceFilter(0L)),
+            new FindOptions().sort(JobExecutionRepository.createLastCreatedSort())),
+        new RepositoryQuery(
+            "Running JobExecutions of a job",
+            datastore
+                .find(JobExecutionEntity.class)
+                .filter(JobExecutionRepository.createRunningFilters("")),
+            DESCENDING_JOB_EXECUTION),
+        new RepositoryQuery(
+            "Running JobExecutions without running flag",
+            datastore
+                .find(JobExecutionEntity.class)
+                .filter(JobExecutionRepository.createWithoutRunningFlagFilters()),
+            new FindOptions()),
+        new RepositoryQuery(
+            "StepExecution by id",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createStepExecutionFilters(0L, 0L)),
+            new FindOptions()),
+        new RepositoryQuery(
+            "StepExecution without job instance id",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createWithoutJobInstanceIdFilter()),
+            new FindOptions()),
+        new RepositoryQuery(
+            "StepExecution update",
+            datastore.find(
+                StepExecutionEntity.class, StepExecutionRepository.createVersionFilter(0L, 0)),
+            new FindOptions()),
+        new RepositoryQuery(
+            "StepExecutions of a job execution",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createJobExecutionFilter(0L)),
+            new FindOptions().sort(StepExecutionRepository.createExecutionOrderSort())),
+        new RepositoryQuery(
+            "StepExecutions of several job executions",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createJobExecutionsFilter(List.of(0L, 1L))),
+            new FindOptions().sort(StepExecutionRepository.createExecutionOrderSort())),
+        new RepositoryQuery(
+            "Last StepExecution of a step in a job instance",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createStepFilters(0L, "")),
+            new FindOptions()
+                .sort(descending(START_TIME_KEY), descending(STEP_EXECUTION_ID_KEY))),
+        new RepositoryQuery(
+            "Last StepExecution of a step in job executions",
+            datastore
+                .find(StepExecutionEntity.class)
+                .filter(StepExecutionRepository.createStepFilters(List.of(0L, 1L), "")),
+            new FindOptions()
+                .sort(descending(START_TIME_KEY), descending(STEP_EXECUTION_ID_KEY))),
+        new RepositoryQuery(
+            "Step history of a job instance",
+            datastore.find(StepExecutionEntity.class).filter(eq(JOB_INSTANCE_ID_KEY, 0L)),
+            new FindOptions()
+                .sort(
+                    ascending(STEP_NAME_KEY),
+                    descending(START_TIME_KEY),
+                    descending(STEP_EXECUTION_ID_KEY))),
+        new RepositoryQuery(
+            "ExecutionContext by execution",
+            datastore
+                .find(ExecutionContextEntity.class)
+                .filter(
+                    eq(EXECUTION_CTX_ID_KEY, 0L),
+                    eq(EXECUTION_CTX_TYPE_KEY, ExecutionContextEntityType.JOB.toString())),
+            new FindOptions()),
+        new RepositoryQuery(
+            "ExecutionContexts of several executions",
+            datastore
+                .find(ExecutionContextEntity.class)
+                .filter(
+                    in(EXECUTION_CTX_ID_KEY, List.of(0L, 1L)),
+                    eq(EXECUTION_CTX_TYPE_KEY, ExecutionContextEntityType.STEP.toString())),
+            new FindOptions()));
+  }
+
+  /**
+   * Query of a repository
+   *
+   * @param description description of the query
+   * @param query query with its filters
+   * @param options options with the sort of the query
+   */
+  public record RepositoryQuery(String description, Query<?> query, FindOptions options) {}
+}
@@ -1,25 +1,45 @@
 package eu.europeana.batch.repository;
 
 import static dev.morphia.query.Sort.ascending;
-import static dev.morphia.query.Sort.descending;
 import static dev.morphia.query.filters.Filters.eq;
 import static dev.morphia.query.filters.Filters.in;
 import static eu.europeana.batch.BatchConstants.*;
 
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.result.UpdateResult;
 import dev.morphia.Datastore;
+import dev.morphia.query.CountOptions;
 import dev.morphia.query.FindOptions;
-import dev.morphia.query.updates.UpdateOperators;
+import dev.morphia.query.MorphiaCursor;
+import dev.morphia.query.Sort;
+import dev.morphia.query.filters.Filter;
 
+import eu.europeana.batch.BatchRepositoryUtils;
 import eu.europeana.batch.entity.JobExecutionEntity;
 import eu.europeana.batch.entity.StepExecutionEntity;
+import eu.europeana.batch.repository.StepHistorySnapshot.StepHistory;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.JobExecution;
 import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.NoSuchObjectException;
 import org.springframework.batch.core.repository.dao.StepExecutionDao;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.lang.NonNull;
@@ -28,32 +48,176 @@ import org.springframework.util.Assert;
 
 public class StepExecutionRepository extends AbstractRepository implements StepExecutionDao {
 
+  private static final Log logger = LogFactory.getLog(StepExecutionRepository.class);
+
+  /** Maximum number of step executions whose last written state is remembered */
+  private static final int MAX_TRACKED_STEP_EXECUTIONS = 10_000;
+
+  /** Maximum number of launches in progress whose step history is prefetched */
+  private static final int MAX_PREFETCHED_JOB_INSTANCES = 1_000;
+
+  /** Field holding a number of step executions in the result of an aggregation */
+  private static final String COUNT_FIELD = "count";
+
+  /** Field holding the job execution of a step execution looked up by an aggregation */
+  private static final String JOB_EXECUTION_FIELD = "jobExecution";
+
+  /** Field holding the last step execution of a step in the result of {@link #queryGetStepHistory} */
+  private static final String LAST_STEP_EXECUTION_FIELD = "lastStepExecution";
+
   public StepExecutionRepository(Datastore datastore) {
     super(datastore);
   }
 
+  private StepExecutionWriteBehind writeBehind;
+
+  private Map<Long, PersistedStepExecution> persistedStates;
+
+  private StepExecutionUpdateBatcher updateBatcher;
+
+  /** Whether all step executions store their job instance id */
+  private final BackfillState jobInstanceIds =
+      new BackfillState(() -> queryCountStepExecutionsWithoutJobInstanceId() == 0);
+
+  /** Whether the warning that prefetching has no effect was logged */
+  private final AtomicBoolean prefetchWarningLogged = new AtomicBoolean();
+
+  private boolean stepHistoryPrefetch;
+
+  /** Snapshots of the launches in progress, by id of the launching job execution */
+  private final Map<Long, StepHistorySnapshot> stepHistorySnapshots =
+      BatchRepositoryUtils.createLruMap(MAX_PREFETCHED_JOB_INSTANCES);
+
+  /** Id of the job execution launching each job instance, guarded by the snapshots */
+  private final Map<Long, Long> launchingJobExecutionIds =
+      BatchRepositoryUtils.createLruMap(MAX_PREFETCHED_JOB_INSTANCES);
+
+  /**
+   * Enables coalescing of updates of running step executions. See {@link
+   * StepExecutionWriteBehind}.
+   *
+   * @param writeBehind write-behind buffer, or null to write every update immediately
+   */
+  public void setWriteBehind(StepExecutionWriteBehind writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  /**
+   * Enables delta updates of step executions. The state last written for each running step
+   * execution is remembered, and updates only write the fields that changed since. Counts are
+   * incremented by the difference instead of being overwritten.
+   *
+   * @param deltaUpdates true to enable delta updates
+   */
+  public void setDeltaUpdates(boolean deltaUpdates) {
+    this.persistedStates =
+        deltaUpdates ? BatchRepositoryUtils.createLruMap(MAX_TRACKED_STEP_EXECUTIONS) : null;
+  }
+
+  /**
+   * Enables batching of concurrent step execution updates into bulk writes. See {@link
+   * StepExecutionUpdateBatcher}.
+   *
+   * @param updateBatcher batcher to use, or null to write every update on its own
+   */
+  public void setUpdateBatcher(StepExecutionUpdateBatcher updateBatcher) {
+    this.updateBatcher = updateBatcher;
+  }
+
+  /**
+   * Enables prefetching of the step history of launched jobs. The first lookup of the last step
+   * execution or of the number of step executions of a job instance, after a job execution was
+   * created for it by {@link #createStepHistorySnapshot}, reads the history of all its steps with
+   * one aggregation. Later lookups for the instance are answered from this snapshot until the job
+   * execution finishes, except for steps that were saved since. Prefetching starts once all step
+   * executions have their job instance id, see {@link #checkJobInstanceIds} and {@link
+   * #backfillJobInstanceIds}. Until then, it has no effect, and a warning is logged once.
+   *
+   * @param stepHistoryPrefetch true to enable prefetching
+   */
+  public void setStepHistoryPrefetch(boolean stepHistoryPrefetch) {
+    this.stepHistoryPrefetch = stepHistoryPrefetch;
+  }
+
+  /**
+   * Starts the step history snapshot of a launch. Any snapshot of an earlier launch of the same
+   * job instance is dropped. The snapshot is only loaded on the first lookup.
+   *
+   * @param jobExecution job execution just created for the launch
+   */
+  public void createStepHistorySnapshot(JobExecution jobExecution) {
+    if (!stepHistoryPrefetch) {
+      return;
+    }
+    long jobExecutionId = jobExecution.getId();
+    synchronized (stepHistorySnapshots) {
+      Long previous = launchingJobExecutionIds.put(jobExecution.getJobId(), jobExecutionId);
+      if (previous != null) {
+        stepHistorySnapshots.remove(previous);
+      }
+      stepHistorySnapshots.put(jobExecutionId, new StepHistorySnapshot(jobExecutionId));
+    }
+  }
+
+  /**
+   * Drops the step history snapshot of a launch, once its job execution has finished
+   *
+   * @param jobExecution job execution of the launch
+   */
+  public void dropStepHistorySnapshot(JobExecution jobExecution) {
+    if (!stepHistoryPrefetch) {
+      return;
+    }
+    Long jobExecutionId = jobExecution.getId();
+    synchronized (stepHistorySnapshots) {
+      if (stepHistorySnapshots.remove(jobExecutionId) != null) {
+        launchingJobExecutionIds.remove(jobExecution.getJobId(), jobExecutionId);
+      }
+    }
+  }
+
   @Override
   public void saveStepExecution(StepExecution stepExecution) {
     prepareForSaving(stepExecution);
+    invalidateStepHistory(stepExecution);
     StepExecutionEntity stepExecutionEntity = StepExecutionEntity.toEntity(stepExecution);
+    checkJobInstanceId(stepExecutionEntity);
     getDataStore().save(stepExecutionEntity);
+    rememberPersisted(stepExecutionEntity, stepExecutionEntity.getVersion());
   }
 
   @Override
   public void saveStepExecutions(Collection<StepExecution> stepExecutions) {
     Assert.notNull(stepExecutions, "Attempt to save an null collect of step executions");
 
-    // first generate IDs, increment versions, etc
-    // TODO: ID generation requires DB lookup for each stepExecution. See if there's an efficient
-    // way of doing this
+    if (stepExecutions.isEmpty()) {
+      return;
+    }
+
+    for (StepExecution stepExecution : stepExecutions) {
+      validateForSaving(stepExecution);
+    }
     for (StepExecution stepExecution : stepExecutions) {
-      prepareForSaving(stepExecution);
+      invalidateStepHistory(stepExecution);
+    }
+
+    // reserve all IDs with a single round-trip, instead of one per stepExecution
+    long[] ids =
+        generateSequences(StepExecutionEntity.class.getSimpleName(), stepExecutions.size());
+    int i = 0;
+    for (StepExecution stepExecution : stepExecutions) {
+      stepExecution.setId(ids[i++]);
+      stepExecution.incrementVersion();
     }
 
     List<StepExecutionEntity> entities =
         stepExecutions.stream().map(StepExecutionEntity::toEntity).collect(Collectors.toList());
+    entities.forEach(this::checkJobInstanceId);
 
     getDataStore().save(entities, BATCH_INSERT_OPTIONS);
+    for (StepExecutionEntity entity : entities) {
+      rememberPersisted(entity, entity.getVersion());
+    }
   }
 
   @Override
@@ -64,29 +228,126 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
         "StepExecution Id cannot be null. StepExecution must saved" + " before it can be updated.");
 
     synchronized (stepExecution) {
-      int nextVersion = stepExecution.getVersion() + 1;
-
-      UpdateResult result = queryUpdateStepExecution(stepExecution, nextVersion);
-
-      // Avoid concurrent modifications
-      if (result.getModifiedCount() == 0) {
-        int currentVersion = queryGetStepExecutionVersion(stepExecution.getId());
-        throw new OptimisticLockingFailureException(
-            "Attempt to update step execution id="
-                + stepExecution.getId()
-                + " with wrong version ("
-                + stepExecution.getVersion()
-                + "), where current version is "
-                + currentVersion);
+      if (writeBehind != null && stepExecution.getStatus().isRunning()) {
+        writeBehind.deferStepExecution(stepExecution);
+        return;
       }
 
+      int persistedVersion =
+          writeBehind != null
+              ? writeBehind.flushForUpdate(stepExecution)
+              : stepExecution.getVersion();
+      writeStepExecution(
+          StepExecutionEntity.toEntity(stepExecution),
+          persistedVersion,
+          stepExecution.getVersion() + 1);
+
       stepExecution.incrementVersion();
     }
   }
 
+  /**
+   * Writes the state of a step execution held by the entity, if the step execution still has the
+   * expected version in the database
+   *
+   * @param entity state to write
+   * @param expectedVersion version of the step execution in the database
+   * @param newVersion version to set
+   */
+  void writeStepExecution(StepExecutionEntity entity, int expectedVersion, int newVersion) {
+    Document update = createUpdate(entity, expectedVersion, newVersion);
+    boolean updated;
+    if (updateBatcher != null) {
+      updated = updateBatcher.update(entity, expectedVersion, update);
+    } else {
+      UpdateResult result =
+          queryUpdateStepExecution(entity.getStepExecutionId(), expectedVersion, update);
+      updated = result.getMatchedCount() > 0;
+    }
+
+    // Avoid concurrent modifications
+    if (!updated) {
+      if (persistedStates != null) {
+        persistedStates.remove(entity.getStepExecutionId());
+      }
+      // a single follow-up query tells a missing step execution from a stale version
+      Integer currentVersion = queryGetStepExecutionVersion(entity.getStepExecutionId());
+      if (currentVersion == null) {
+        throw new NoSuchObjectException(
+            "Invalid StepExecution, ID " + entity.getStepExecutionId() + " not found.");
+      }
+      throw new OptimisticLockingFailureException(
+          "Attempt to update step execution id="
+              + entity.getStepExecutionId()
+              + " with wrong version ("
+              + expectedVersion
+              + "), where current version is "
+              + currentVersion);
+    }
+
+    rememberPersisted(entity, newVersion);
+  }
+
+  /**
+   * Creates the update for writing the entity. With delta updates, only the fields that changed
+   * since the last write are updated, provided that the last write is the current version in the
+   * database. Otherwise all fields are updated, except the ones that never change after the step
+   * execution is saved.
+   */
+  private Document createUpdate(StepExecutionEntity entity, int expectedVersion, int newVersion) {
+    PersistedStepExecution previous =
+        persistedStates == null ? null : persistedStates.get(entity.getStepExecutionId());
+    StepExecutionEntity persisted =
+        previous != null && previous.version() == expectedVersion ? previous.entity() : null;
+
+    StepExecutionUpdate update = new StepExecutionUpdate(persisted, entity);
+    update.field(START_TIME_KEY, StepExecutionEntity::getStartTime);
+    update.field(END_TIME_KEY, StepExecutionEntity::getEndTime);
+    update.field(LAST_UPDATED_KEY, StepExecutionEntity::getLastUpdated);
+    update.field(STATUS_KEY, StepExecutionEntity::getStatus);
+    update.field(EXIT_CODE_KEY, StepExecutionEntity::getExitCode);
+    update.field(EXIT_MESSAGE_KEY, StepExecutionEntity::getExitMessage);
+    update.count(COMMIT_COUNT_KEY, StepExecutionEntity::getCommitCount);
+    update.count(READ_COUNT_KEY, StepExecutionEntity::getReadCount);
+    update.count(FILTER_COUNT_KEY, StepExecutionEntity::getFilterCount);
+    update.count(WRITE_COUNT_KEY, StepExecutionEntity::getWriteCount);
+    update.count(READ_SKIP_COUNT_KEY, StepExecutionEntity::getReadSkipCount);
+    update.count(WRITE_SKIP_COUNT_KEY, StepExecutionEntity::getWriteSkipCount);
+    update.count(PROCESS_SKIP_COUNT_KEY, StepExecutionEntity::getProcessSkipCount);
+    update.count(ROLLBACK_COUNT_KEY, StepExecutionEntity::getRollbackCount);
+    return update.toDocument(newVersion);
+  }
+
+  /**
+   * Stops the lookups by job instance id before a step execution without it is saved, e.g. one of
+   * a job execution without job instance
+   */
+  private void checkJobInstanceId(StepExecutionEntity entity) {
+    if (entity.getJobInstanceId() == null) {
+      jobInstanceIds.reset();
+    }
+  }
+
+  /**
+   * Remembers the state last written for a running step execution, so that the next update can
+   * be reduced to the changed fields
+   */
+  private void rememberPersisted(StepExecutionEntity entity, int version) {
+    if (persistedStates == null) {
+      return;
+    }
+    if (BatchStatus.valueOf(entity.getStatus()).isRunning()) {
+      persistedStates.put(entity.getStepExecutionId(), new PersistedStepExecution(entity, version));
+    } else {
+      // finished step executions are not updated anymore
+      persistedStates.remove(entity.getStepExecutionId());
+    }
+  }
+
   /**
    * Retrieve the last {@link StepExecution} for a given {@link JobInstance} ordered by starting
-   * time and then id.
+   * time and then id. The step execution and its job execution are fetched with a single
+   * aggregation.
    *
    * @param jobInstance the parent {@link JobInstance}
    * @param stepName the name of the step
@@ -95,43 +356,49 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
   @Nullable
   @Override
   public StepExecution getLastStepExecution(JobInstance jobInstance, String stepName) {
-    long jobInstanceId = jobInstance.getId();
-
-    // get all job executions for this jobInstance
-    List<JobExecutionEntity> jobExecutions = queryGetJobExecutions(jobInstanceId);
-
-    if (jobExecutions.isEmpty()) {
-      return null;
+    StepHistory prefetched = getPrefetchedStepHistory(jobInstance.getId(), stepName);
+    if (prefetched != null) {
+      if (prefetched.jobExecution() == null) {
+        return null;
+      }
+      return StepExecutionEntity.fromEntity(
+          prefetched.lastStepExecution(), JobExecutionEntity.fromEntity(prefetched.jobExecution()));
     }
 
-    // Map JobExecutionID to jobExecution, so we can retrieve the matching JobExecution later
-    Map<Long, JobExecutionEntity> jobExecutionMap =
-        jobExecutions.stream()
-            .collect(
-                Collectors.toMap(
-                    JobExecutionEntity::getJobExecutionId,
-                    jobExecutionEntity -> jobExecutionEntity));
-
-    List<StepExecutionEntity> stepExecutions =
-        queryGetStepExecutions(jobExecutionMap.keySet(), stepName);
-
-    if (stepExecutions.isEmpty()) {
+    BsonDocument stepExecution;
+    if (jobInstanceIds.isComplete()) {
+      stepExecution = queryGetLastStepExecution(jobInstance.getId(), stepName);
+    } else {
+      List<Long> jobExecutionIds = queryGetJobExecutionIds(jobInstance.getId());
+      stepExecution =
+          jobExecutionIds.isEmpty() ? null : queryGetLastStepExecution(jobExecutionIds, stepName);
+    }
+    if (stepExecution == null) {
       return null;
     }
-
-    // list is already sorted by most recent first
-    StepExecutionEntity stepExecution = stepExecutions.get(0);
-
-    JobExecutionEntity jobExecution = jobExecutionMap.get(stepExecution.getJobExecutionId());
+    BsonDocument jobExecution = stepExecution.remove(JOB_EXECUTION_FIELD).asDocument();
 
     return StepExecutionEntity.fromEntity(
-        stepExecution, JobExecutionEntity.fromEntity(jobExecution));
+        decode(StepExecutionEntity.class, stepExecution),
+        JobExecutionEntity.fromEntity(decode(JobExecutionEntity.class, jobExecution)));
   }
 
   @Override
   public long countStepExecutions(JobInstance jobInstance, String stepName) {
     long jobInstanceId = jobInstance.getId();
 
+    StepHistory prefetched = getPrefetchedStepHistory(jobInstanceId, stepName);
+    if (prefetched != null) {
+      return prefetched.count();
+    }
+
+    if (jobInstanceIds.isComplete()) {
+      return getDataStore()
+          .find(StepExecutionEntity.class)
+          .filter(createStepFilters(jobInstanceId, stepName))
+          .count();
+    }
+
     // get all job executionIds for this jobInstance
     List<Long> jobExecutionId = queryGetJobExecutionIds(jobInstanceId);
 
@@ -142,6 +409,97 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
     return queryCountStepExecutions(jobExecutionId, stepName);
   }
 
+  /**
+   * Gets the history of a step from the snapshot of the launch in progress for the job instance,
+   * which is loaded by the first lookup
+   *
+   * @return history of the step, or null if it has to be read from the database
+   */
+  private StepHistory getPrefetchedStepHistory(long jobInstanceId, String stepName) {
+    if (!stepHistoryPrefetch) {
+      return null;
+    }
+    if (!jobInstanceIds.isComplete()) {
+      if (prefetchWarningLogged.compareAndSet(false, true)) {
+        logger.warn(
+            "Step history prefetch has no effect until all step executions have their job"
+                + " instance id. Enable backfillStepExecutionJobInstanceIds to add it to step"
+                + " executions saved by earlier versions.");
+      }
+      return null;
+    }
+
+    StepHistorySnapshot snapshot;
+    synchronized (stepHistorySnapshots) {
+      Long jobExecutionId = launchingJobExecutionIds.get(jobInstanceId);
+      snapshot = jobExecutionId == null ? null : stepHistorySnapshots.get(jobExecutionId);
+    }
+    if (snapshot == null) {
+      return null;
+    }
+
+    // concurrent first lookups (e.g. of a split flow) wait for a single aggregation
+    synchronized (snapshot) {
+      if (!snapshot.isLoaded()) {
+        snapshot.load(queryGetStepHistory(jobInstanceId));
+      }
+    }
+    return snapshot.get(stepName);
+  }
+
+  /** Marks the step as stale in the snapshot of its launch, before it is saved */
+  private void invalidateStepHistory(StepExecution stepExecution) {
+    if (!stepHistoryPrefetch) {
+      return;
+    }
+    Long jobExecutionId = stepExecution.getJobExecutionId();
+    StepHistorySnapshot snapshot;
+    synchronized (stepHistorySnapshots) {
+      snapshot = jobExecutionId == null ? null : stepHistorySnapshots.get(jobExecutionId);
+    }
+    if (snapshot != null) {
+      snapshot.invalidate(stepExecution.getStepName());
+    }
+  }
+
+  /**
+   * Stores the job instance id on step executions saved by older versions, which don't have it.
+   * Until this completes, {@link #getLastStepExecution} and {@link #countStepExecutions} first
+   * look up the job executions of the instance. The ids are copied from the job executions by a
+   * single aggregation that runs on the server, so this can be called in the background while
+   * jobs are running. The aggregation merges into the collection it reads from, which requires
+   * MongoDB 4.4 or later. Step executions saved by this version always have the id. Step
+   * executions without job execution can't get the id, and are left as they are. See {@link
+   * BackfillState} for step executions saved by older versions afterwards.
+   *
+   * @return true if all step executions with a job execution now have their job instance id
+   */
+  public boolean backfillJobInstanceIds() {
+    if (jobInstanceIds.isComplete()) {
+      return true;
+    }
+    return jobInstanceIds.update(
+        () -> {
+          if (queryCountStepExecutionsToBackfill() == 0) {
+            return true;
+          }
+          queryMergeJobInstanceIds();
+          return queryCountStepExecutionsToBackfill() == 0;
+        });
+  }
+
+  /**
+   * Enables the lookups by job instance id without backfill if no step execution lacks the id,
+   * e.g. because all of them were saved by this version, or disables them otherwise. This is a
+   * single indexed query and doesn't write anything, unlike {@link #backfillJobInstanceIds}. It
+   * runs on the first lookup if neither ran before.
+   *
+   * @return true if all step executions have their job instance id
+   */
+  public boolean checkJobInstanceIds() {
+    return jobInstanceIds.check();
+  }
+
   @Nullable
   @Override
   public StepExecution getStepExecution(JobExecution jobExecution, @NonNull Long stepExecutionId) {
@@ -165,6 +523,32 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
     }
   }
 
+  /**
+   * Adds their step executions to several job executions, reading them with a single query
+   * instead of one query per job execution. As with {@link #addStepExecutions(JobExecution)}, the
+   * step executions of each job execution are added in order of their id.
+   *
+   * @param jobExecutions job executions, which must have different ids
+   */
+  public void addStepExecutions(Collection<JobExecution> jobExecutions) {
+    if (jobExecutions.isEmpty()) {
+      return;
+    }
+
+    Map<Long, JobExecution> jobExecutionsById = new HashMap<>();
+    for (JobExecution jobExecution : jobExecutions) {
+      jobExecutionsById.put(jobExecution.getId(), jobExecution);
+    }
+
+    try (MorphiaCursor<StepExecutionEntity> cursor =
+        queryGetStepExecutionsWithJobExecutionIds(jobExecutionsById.keySet())) {
+      while (cursor.hasNext()) {
+        StepExecutionEntity entity = cursor.next();
+        StepExecutionEntity.fromEntity(entity, jobExecutionsById.get(entity.getJobExecutionId()));
+      }
+    }
+  }
+
   private void validateStepExecution(StepExecution stepExecution) {
     Assert.notNull(stepExecution, "StepExecution cannot be null.");
     Assert.notNull(stepExecution.getStepName(), "StepExecution step name cannot be null.");
@@ -174,6 +558,13 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
   }
 
   private void prepareForSaving(StepExecution stepExecution) {
+    validateForSaving(stepExecution);
+
+    stepExecution.setId(generateSequence(StepExecutionEntity.class.getSimpleName()));
+    stepExecution.incrementVersion();
+  }
+
+  private void validateForSaving(StepExecution stepExecution) {
     Assert.isNull(
         stepExecution.getId(),
         "to-be-saved (not updated) StepExecution can't already have an id assigned");
@@ -182,11 +573,6 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
         "to-be-saved (not updated) StepExecution can't already have a version assigned");
 
     validateStepExecution(stepExecution);
-
-    synchronized (this) {
-      stepExecution.setId(generateSequence(StepExecutionEntity.class.getSimpleName()));
-    }
-    stepExecution.incrementVersion();
   }
 
   /**
@@ -195,23 +581,23 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
    * <p>TODO: similar to JobExecutionRepository.queryGetJobExecutionVersion(). Refactor
    *
    * @param stepExecutionId
-   * @return
+   * @return the version, or null if the StepExecution doesn't exist
    */
-  private int queryGetStepExecutionVersion(long stepExecutionId) {
-    return getDataStore()
-        .find(StepExecutionEntity.class)
-        .filter(eq(STEP_EXECUTION_ID_KEY, stepExecutionId))
-        .iterator(new FindOptions().projection().include(VERSION_KEY).limit(1))
-        .next()
-        .getVersion();
+  private Integer queryGetStepExecutionVersion(long stepExecutionId) {
+    StepExecutionEntity entity =
+        getDataStore()
+            .find(StepExecutionEntity.class)
+            .filter(eq(STEP_EXECUTION_ID_KEY, stepExecutionId))
+            .iterator(new FindOptions().projection().include(VERSION_KEY).limit(1))
+            .tryNext();
+    return entity == null ? null : entity.getVersion();
   }
 
   private List<StepExecutionEntity> queryGetStepExecutions(
       long jobExecutionId, long stepExecutionId) {
     return getDataStore()
         .find(StepExecutionEntity.class)
-        .filter(
-            eq(STEP_EXECUTION_ID_KEY, stepExecutionId), eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
+        .filter(createStepExecutionFilters(jobExecutionId, stepExecutionId))
         .iterator()
         .toList();
   }
@@ -219,57 +605,240 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
   private List<StepExecutionEntity> queryGetStepExecutionsWithJobExecutionId(long jobExecutionId) {
     return getDataStore()
         .find(StepExecutionEntity.class)
-        .filter(eq(JOB_EXECUTION_ID_KEY, jobExecutionId))
-        .iterator(new FindOptions().sort(ascending(STEP_EXECUTION_ID_KEY)))
+        .filter(createJobExecutionFilter(jobExecutionId))
+        .iterator(new FindOptions().sort(createExecutionOrderSort()))
         .toList();
   }
 
-  private UpdateResult queryUpdateStepExecution(StepExecution stepExecution, int newVersion) {
+  private MorphiaCursor<StepExecutionEntity> queryGetStepExecutionsWithJobExecutionIds(
+      Collection<Long> jobExecutionIds) {
     return getDataStore()
         .find(StepExecutionEntity.class)
-        .filter(
-            eq(STEP_EXECUTION_ID_KEY, stepExecution.getId()),
-            eq(VERSION_KEY, stepExecution.getVersion()))
-        .update(
-            UpdateOperators.set(STEP_EXECUTION_ID_KEY, stepExecution.getId()),
-            UpdateOperators.set(STEP_NAME_KEY, stepExecution.getStepName()),
-            UpdateOperators.set(JOB_EXECUTION_ID_KEY, stepExecution.getJobExecutionId()),
-            handleNullField(START_TIME_KEY, stepExecution.getStartTime()),
-            handleNullField(END_TIME_KEY, stepExecution.getEndTime()),
-            handleNullField(LAST_UPDATED_KEY, stepExecution.getLastUpdated()),
-            UpdateOperators.set(STATUS_KEY, stepExecution.getStatus().toString()),
-            UpdateOperators.set(COMMIT_COUNT_KEY, stepExecution.getCommitCount()),
-            UpdateOperators.set(READ_COUNT_KEY, stepExecution.getReadCount()),
-            UpdateOperators.set(FILTER_COUNT_KEY, stepExecution.getFilterCount()),
-            UpdateOperators.set(WRITE_COUNT_KEY, stepExecution.getWriteCount()),
-            UpdateOperators.set(EXIT_CODE_KEY, stepExecution.getExitStatus().getExitCode()),
-            UpdateOperators.set(
-                EXIT_MESSAGE_KEY, stepExecution.getExitStatus().getExitDescription()),
-            UpdateOperators.set(READ_SKIP_COUNT_KEY, stepExecution.getReadSkipCount()),
-            UpdateOperators.set(WRITE_SKIP_COUNT_KEY, stepExecution.getWriteSkipCount()),
-            UpdateOperators.set(PROCESS_SKIP_COUNT_KEY, stepExecution.getProcessSkipCount()),
-            UpdateOperators.set(ROLLBACK_COUNT_KEY, stepExecution.getRollbackCount()),
-            UpdateOperators.set(ROLLBACK_COUNT_KEY, stepExecution.getRollbackCount()),
-            handleNullField(VERSION_KEY, newVersion))
-        .execute();
+        .filter(createJobExecutionsFilter(jobExecutionIds))
+        .iterator(new FindOptions().sort(createExecutionOrderSort()));
+  }
+
+  private UpdateResult queryUpdateStepExecution(
+      long stepExecutionId, int expectedVersion, Document update) {
+    // Morphia can't express $inc by a computed delta together with $set and $unset as a document,
+    // so the update is sent through the driver, which still uses Morphia's codecs
+    return getDataStore()
+        .getCollection(StepExecutionEntity.class)
+        .updateOne(createVersionFilter(stepExecutionId, expectedVersion), update);
+  }
+
+  // Filters and sorts of the queries whose plans BatchIndexManager checks, see RepositoryQueries
+
+  /** Creates the filter matching a step execution only if it has the expected version */
+  static Document createVersionFilter(long stepExecutionId, int expectedVersion) {
+    return new Document(STEP_EXECUTION_ID_KEY, stepExecutionId)
+        .append(VERSION_KEY, expectedVersion);
+  }
+
+  static Filter[] createStepExecutionFilters(long jobExecutionId, long stepExecutionId) {
+    return new Filter[] {
+      eq(STEP_EXECUTION_ID_KEY, stepExecutionId), eq(JOB_EXECUTION_ID_KEY, jobExecutionId)
+    };
+  }
+
+  /** Matches the step executions of the job execution */
+  static Filter createJobExecutionFilter(long jobExecutionId) {
+    return eq(JOB_EXECUTION_ID_KEY, jobExecutionId);
+  }
+
+  /** Matches the step executions of the job executions */
+  static Filter createJobExecutionsFilter(Collection<Long> jobExecutionIds) {
+    return in(JOB_EXECUTION_ID_KEY, jobExecutionIds);
+  }
+
+  /** Sorts step executions in the order they were created */
+  static Sort createExecutionOrderSort() {
+    return ascending(STEP_EXECUTION_ID_KEY);
+  }
+
+  /** Matches the step executions saved by older versions, with the index on job instance id */
+  static Filter createWithoutJobInstanceIdFilter() {
+    return eq(JOB_INSTANCE_ID_KEY, null);
+  }
+
+  /** Matches the step executions of a step in the job instance */
+  static Filter[] createStepFilters(long jobInstanceId, String stepName) {
+    return new Filter[] {eq(JOB_INSTANCE_ID_KEY, jobInstanceId), eq(STEP_NAME_KEY, stepName)};
+  }
+
+  /** Matches the step executions of a step in the job executions */
+  static Filter[] createStepFilters(Collection<Long> jobExecutionIds, String stepName) {
+    return new Filter[] {eq(STEP_NAME_KEY, stepName), in(JOB_EXECUTION_ID_KEY, jobExecutionIds)};
   }
 
   /**
-   * Gets all StepExecutions for the given JobExecution Ids, with the step name. Results are sorted
-   * in descending order of StartTime and StepExecutionID
+   * Gets the most recent step execution with the given name in the job instance, with its job
+   * execution embedded in {@link #JOB_EXECUTION_FIELD}. Both are read with index seeks.
    *
-   * @param jobExecutionIds list of JobExecution Ids
+   * @param jobInstanceId job instance id
    * @param stepName step name
-   * @return list of StepExecution
+   * @return step execution document, or null if there is no step execution with the given name
    */
-  private List<StepExecutionEntity> queryGetStepExecutions(
-      Iterable<Long> jobExecutionIds, String stepName) {
+  private BsonDocument queryGetLastStepExecution(long jobInstanceId, String stepName) {
+    return queryGetLastStepExecution(
+        new Document(JOB_INSTANCE_ID_KEY, jobInstanceId).append(STEP_NAME_KEY, stepName));
+  }
+
+  /**
+   * Gets the most recent step execution with the given name in the job executions, with its job
+   * execution embedded in {@link #JOB_EXECUTION_FIELD}. Used until the job instance ids of step
+   * executions are backfilled. The step executions are read with the (stepName, jobExecutionId,
+   * startTime, stepExecutionId) index.
+   *
+   * @param jobExecutionIds ids of the job executions of the job instance
+   * @param stepName step name
+   * @return step execution document, or null if there is no step execution with the given name
+   */
+  private BsonDocument queryGetLastStepExecution(List<Long> jobExecutionIds, String stepName) {
+    return queryGetLastStepExecution(
+        new Document(STEP_NAME_KEY, stepName)
+            .append(JOB_EXECUTION_ID_KEY, new Document("$in", jobExecutionIds)));
+  }
+
+  private BsonDocument queryGetLastStepExecution(Document stepExecutionFilter) {
+    List<Document> pipeline =
+        List.of(
+            new Document("$match", stepExecutionFilter),
+            new Document(
+                "$sort", new Document(START_TIME_KEY, -1).append(STEP_EXECUTION_ID_KEY, -1)),
+            new Document("$limit", 1),
+            lookupJobExecution(JOB_EXECUTION_ID_KEY),
+            new Document("$unwind", "$" + JOB_EXECUTION_FIELD));
+
+    return getDataStore()
+        .getCollection(StepExecutionEntity.class)
+        .aggregate(pipeline, BsonDocument.class)
+        .first();
+  }
+
+  /**
+   * Gets the last step execution, with its job execution, and the number of step executions of
+   * every step of the job instance
+   *
+   * @param jobInstanceId job instance id
+   * @return history of each step, by step name
+   */
+  private Map<String, StepHistory> queryGetStepHistory(long jobInstanceId) {
+    List<Document> pipeline =
+        List.of(
+            new Document("$match", new Document(JOB_INSTANCE_ID_KEY, jobInstanceId)),
+            new Document(
+                "$sort",
+                new Document(STEP_NAME_KEY, 1)
+                    .append(START_TIME_KEY, -1)
+                    .append(STEP_EXECUTION_ID_KEY, -1)),
+            new Document(
+                "$group",
+                new Document("_id", "$" + STEP_NAME_KEY)
+                    .append(LAST_STEP_EXECUTION_FIELD, new Document("$first", "$$ROOT"))
+                    .append(COUNT_FIELD, new Document("$sum", 1))),
+            lookupJobExecution(LAST_STEP_EXECUTION_FIELD + "." + JOB_EXECUTION_ID_KEY));
+
+    Map<String, StepHistory> steps = new HashMap<>();
+    for (BsonDocument step :
+        getDataStore()
+            .getCollection(StepExecutionEntity.class)
+            .aggregate(pipeline, BsonDocument.class)) {
+      BsonArray jobExecutions = step.getArray(JOB_EXECUTION_FIELD);
+      steps.put(
+          step.getString("_id").getValue(),
+          new StepHistory(
+              decode(StepExecutionEntity.class, step.getDocument(LAST_STEP_EXECUTION_FIELD)),
+              jobExecutions.isEmpty()
+                  ? null
+                  : decode(JobExecutionEntity.class, jobExecutions.get(0).asDocument()),
+              step.getNumber(COUNT_FIELD).longValue()));
+    }
+    return steps;
+  }
+
+  /** Counts up to one step execution without job instance id, with the index on it */
+  private long queryCountStepExecutionsWithoutJobInstanceId() {
     return getDataStore()
         .find(StepExecutionEntity.class)
-        .filter(eq(STEP_NAME_KEY, stepName), in(JOB_EXECUTION_ID_KEY, jobExecutionIds))
-        .iterator(
-            new FindOptions().sort(descending(START_TIME_KEY), descending(STEP_EXECUTION_ID_KEY)))
-        .toList();
+        .filter(createWithoutJobInstanceIdFilter())
+        .count(new CountOptions().limit(1));
+  }
+
+  /**
+   * Counts the step executions without job instance id that belong to an existing job execution
+   */
+  private long queryCountStepExecutionsToBackfill() {
+    List<Document> pipeline = new ArrayList<>(jobInstanceIdBackfillStages());
+    pipeline.add(new Document("$count", COUNT_FIELD));
+
+    Document result =
+        getDataStore()
+            .getCollection(StepExecutionEntity.class)
+            .aggregate(pipeline, Document.class)
+            .first();
+    return result == null ? 0 : result.get(COUNT_FIELD, Number.class).longValue();
+  }
+
+  /** Copies the job instance id of their job execution onto step executions that don't have it */
+  private void queryMergeJobInstanceIds() {
+    MongoCollection<StepExecutionEntity> stepExecutions =
+        getDataStore().getCollection(StepExecutionEntity.class);
+
+    List<Document> pipeline = new ArrayList<>(jobInstanceIdBackfillStages());
+    pipeline.add(
+        new Document(
+            "$project",
+            new Document(
+                JOB_INSTANCE_ID_KEY, "$" + JOB_EXECUTION_FIELD + "." + JOB_INSTANCE_ID_KEY)));
+    pipeline.add(
+        new Document(
+            "$merge",
+            new Document("into", stepExecutions.getNamespace().getCollectionName())
+                .append("on", "_id")
+                .append("whenMatched", "merge")
+                .append("whenNotMatched", "discard")));
+
+    stepExecutions.aggregate(pipeline).toCollection();
+  }
+
+  /**
+   * Stages selecting the step executions without job instance id, with their job execution. Step
+   * executions whose job execution doesn't exist can't be found by job instance anyway, so they
+   * are left out.
+   */
+  private List<Document> jobInstanceIdBackfillStages() {
+    return List.of(
+        new Document("$match", new Document(JOB_INSTANCE_ID_KEY, new Document("$exists", false))),
+        lookupJobExecution(JOB_EXECUTION_ID_KEY),
+        new Document("$unwind", "$" + JOB_EXECUTION_FIELD));
+  }
+
+  /**
+   * Stage adding the job execution of a step execution as an array in JOB_EXECUTION_FIELD
+   *
+   * @param jobExecutionIdField field holding the job execution id
+   */
+  private Document lookupJobExecution(String jobExecutionIdField) {
+    return new Document(
+        "$lookup",
+        new Document(
+                "from",
+                getDataStore()
+                    .getCollection(JobExecutionEntity.class)
+                    .getNamespace()
+                    .getCollectionName())
+            .append("localField", jobExecutionIdField)
+            .append("foreignField", JOB_EXECUTION_ID_KEY)
+            .append("as", JOB_EXECUTION_FIELD));
+  }
+
+  /** Decodes a document with the codec Morphia uses for the entity */
+  private <T> T decode(Class<T> type, BsonDocument document) {
+    return getDataStore()
+        .getCodecRegistry()
+        .get(type)
+        .decode(new BsonDocumentReader(document), DecoderContext.builder().build());
   }
 
   /**
@@ -279,10 +848,73 @@ public class StepExecutionRepository extends AbstractRepository implements StepE
    * @param stepName step name
    * @return number of stepExecutions
    */
-  private long queryCountStepExecutions(Iterable<Long> jobExecutionIds, String stepName) {
+  private long queryCountStepExecutions(Collection<Long> jobExecutionIds, String stepName) {
     return getDataStore()
         .find(StepExecutionEntity.class)
-        .filter(eq(STEP_NAME_KEY, stepName), in(JOB_EXECUTION_ID_KEY, jobExecutionIds))
+        .filter(createStepFilters(jobExecutionIds, stepName))
         .count();
   }
+
+  /** State of a step execution as last written, with the version it was written with */
+  private record PersistedStepExecution(StepExecutionEntity entity, int version) {}
+
+  /**
+   * Builds the update document of a step execution. Fields are only included if they changed
+   * since the persisted state, or always if the persisted state is unknown.
+   */
+  private static final class StepExecutionUpdate {
+    private final StepExecutionEntity persisted;
+    private final StepExecutionEntity current;
+
+    private final Document set = new Document();
+    private final Document unset = new Document();
+    private final Document inc = new Document();
+
+    private StepExecutionUpdate(StepExecutionEntity persisted, StepExecutionEntity current) {
+      this.persisted = persisted;
+      this.current = current;
+    }
+
+    private void field(String fieldName, Function<StepExecutionEntity, Object> getter) {
+      Object value = getter.apply(current);
+      if (persisted != null && Objects.equals(getter.apply(persisted), value)) {
+        return;
+      }
+      if (value == null) {
+        unset.append(fieldName, "");
+      } else {
+        set.append(fieldName, value);
+      }
+    }
+
+    /**
+     * Counts only decrease when a failed chunk is rolled back, so they are usually incremented by
+     * the difference
+     */
+    private void count(String fieldName, ToLongFunction<StepExecutionEntity> getter) {
+      long value = getter.applyAsLong(current);
+      if (persisted == null) {
+        set.append(fieldName, value);
+        return;
+      }
+      long persistedValue = getter.applyAsLong(persisted);
+      if (value > persistedValue) {
+        inc.append(fieldName, value - persistedValue);
+      } else if (value < persistedValue) {
+        set.append(fieldName, value);
+      }
+    }
+
+    private Document toDocument(int newVersion) {
+      set.append(VERSION_KEY, newVersion);
+      Document update = new Document("$set", set);
+      if (!unset.isEmpty()) {
+        update.append("$unset", unset);
+      }
+      if (!inc.isEmpty()) {
+        update.append("$inc", inc);
+      }
+      return update;
+    }
+  }
 }
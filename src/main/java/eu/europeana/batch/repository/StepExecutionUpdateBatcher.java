@@ -0,0 +1,266 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.STEP_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.UPDATE_TOKEN_KEY;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import dev.morphia.Datastore;
+import eu.europeana.batch.entity.StepExecutionEntity;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Groups step execution updates issued concurrently by different threads, e.g. by the workers of
+ * a partitioned step, into unordered bulk writes.
+ *
+ * <p>The first thread to submit an update becomes the leader. It optionally waits for a short
+ * window, then writes all updates submitted so far with one bulk write. Updates submitted while
+ * a write is in progress are written by the next leader. Each update keeps its own version filter,
+ * and also sets a token unique to the update. If not all of them matched, a single query on the
+ * ids of the batch reads the tokens, which tell which ones were applied, so each caller gets its
+ * own optimistic locking result. The leader then removes the tokens, after handing over to the next
+ * leader.
+ */
+public class StepExecutionUpdateBatcher {
+
+  private static final Log logger = LogFactory.getLog(StepExecutionUpdateBatcher.class);
+
+  private static final Document UNSET_UPDATE_TOKEN =
+      new Document("$unset", new Document(UPDATE_TOKEN_KEY, ""));
+
+  private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+  private final Datastore datastore;
+  private final long windowNanos;
+
+  private final Object lock = new Object();
+  private List<PendingUpdate> queue = new ArrayList<>();
+  private boolean leaderActive;
+
+  /**
+   * Creates a batcher that writes updates as soon as no other write is in progress
+   *
+   * @param datastore Morphia datastore to use
+   */
+  public StepExecutionUpdateBatcher(Datastore datastore) {
+    this(datastore, Duration.ZERO);
+  }
+
+  /**
+   * Creates a batcher
+   *
+   * @param datastore Morphia datastore to use
+   * @param window time a leader waits for other updates before writing, which adds latency to
+   *     every update
+   */
+  public StepExecutionUpdateBatcher(Datastore datastore, Duration window) {
+    this.datastore = datastore;
+    this.windowNanos = window.toNanos();
+  }
+
+  /**
+   * Writes an update of a step execution, together with the updates submitted concurrently by
+   * other threads
+   *
+   * @param entity state of the step execution that is written
+   * @param expectedVersion version of the step execution in the database
+   * @param update update document, which must not be changed afterwards
+   * @return true if the update was applied, false if the step execution doesn't have the expected
+   *     version or doesn't exist
+   */
+  boolean update(StepExecutionEntity entity, int expectedVersion, Document update) {
+    PendingUpdate pending = new PendingUpdate(entity, expectedVersion, update);
+
+    boolean interrupted = false;
+    synchronized (lock) {
+      queue.add(pending);
+      // the update can't be withdrawn once submitted, so interrupts don't stop the wait
+      while (leaderActive && !pending.done) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (!pending.done) {
+        leaderActive = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (pending.done) {
+      return pending.getResult();
+    }
+
+    List<PendingUpdate> batch;
+    try {
+      if (windowNanos > 0) {
+        LockSupport.parkNanos(windowNanos);
+      }
+      synchronized (lock) {
+        batch = queue;
+        queue = new ArrayList<>();
+      }
+      write(batch);
+    } finally {
+      synchronized (lock) {
+        leaderActive = false;
+        lock.notifyAll();
+      }
+    }
+    removeUpdateTokens(batch);
+    return pending.getResult();
+  }
+
+  private void write(List<PendingUpdate> batch) {
+    List<WriteModel<StepExecutionEntity>> models = new ArrayList<>(batch.size());
+    for (PendingUpdate pending : batch) {
+      models.add(
+          new UpdateOneModel<>(
+              StepExecutionRepository.createVersionFilter(
+                  pending.entity.getStepExecutionId(), pending.expectedVersion),
+              withUpdateToken(pending.update, pending.token)));
+    }
+
+    List<PendingUpdate> unresolved = batch;
+    try {
+      BulkWriteResult result =
+          datastore.getCollection(StepExecutionEntity.class).bulkWrite(models, UNORDERED);
+      if (result.getMatchedCount() == batch.size()) {
+        batch.forEach(pending -> pending.complete(true, null));
+        return;
+      }
+    } catch (MongoBulkWriteException e) {
+      unresolved = new ArrayList<>(batch);
+      for (BulkWriteError error : e.getWriteErrors()) {
+        PendingUpdate failed = batch.get(error.getIndex());
+        failed.complete(false, e);
+        unresolved.remove(failed);
+      }
+    } catch (RuntimeException e) {
+      batch.forEach(pending -> pending.complete(false, e));
+      return;
+    }
+
+    try {
+      resolve(unresolved);
+    } catch (RuntimeException e) {
+      unresolved.forEach(pending -> pending.complete(false, e));
+    }
+  }
+
+  /**
+   * Copies the update, adding the token to its {@code $set}
+   *
+   * @param update update document
+   * @param token token unique to the update
+   */
+  private static Document withUpdateToken(Document update, ObjectId token) {
+    Document set = update.get("$set", Document.class);
+    set = set == null ? new Document() : new Document(set);
+    set.put(UPDATE_TOKEN_KEY, token);
+
+    Document copy = new Document(update);
+    copy.put("$set", set);
+    return copy;
+  }
+
+  /** Finds out which updates were applied, by checking if the step executions have their token */
+  private void resolve(List<PendingUpdate> updates) {
+    List<Long> ids = new ArrayList<>(updates.size());
+    for (PendingUpdate pending : updates) {
+      ids.add(pending.entity.getStepExecutionId());
+    }
+
+    Map<Long, Object> tokens = new HashMap<>();
+    for (Document stored :
+        datastore
+            .getCollection(StepExecutionEntity.class)
+            .withDocumentClass(Document.class)
+            .find(Filters.in(STEP_EXECUTION_ID_KEY, ids))
+            .projection(Projections.include(STEP_EXECUTION_ID_KEY, UPDATE_TOKEN_KEY))) {
+      tokens.put(stored.getLong(STEP_EXECUTION_ID_KEY), stored.get(UPDATE_TOKEN_KEY));
+    }
+
+    // a later update of the step execution would replace the token, but the thread owning the
+    // step execution only issues it once it has this result
+    for (PendingUpdate pending : updates) {
+      pending.complete(pending.token.equals(tokens.get(pending.entity.getStepExecutionId())), null);
+    }
+  }
+
+  /**
+   * Removes the tokens of a written batch, which are only needed until its results are known. A
+   * later update of a step execution sets another token, which is kept.
+   */
+  private void removeUpdateTokens(List<PendingUpdate> batch) {
+    List<Long> ids = new ArrayList<>(batch.size());
+    List<ObjectId> tokens = new ArrayList<>(batch.size());
+    for (PendingUpdate pending : batch) {
+      ids.add(pending.entity.getStepExecutionId());
+      tokens.add(pending.token);
+    }
+    try {
+      datastore
+          .getCollection(StepExecutionEntity.class)
+          .updateMany(
+              Filters.and(
+                  Filters.in(STEP_EXECUTION_ID_KEY, ids), Filters.in(UPDATE_TOKEN_KEY, tokens)),
+              UNSET_UPDATE_TOKEN);
+    } catch (RuntimeException e) {
+      // the updates were written, so a token that stays in a step execution is only overhead
+      logger.warn("Could not remove the update tokens of step executions " + ids, e);
+    }
+  }
+
+  /** Update submitted by a caller. Its result is guarded by the batcher's lock. */
+  private final class PendingUpdate {
+    private final StepExecutionEntity entity;
+    private final int expectedVersion;
+    private final Document update;
+    private final ObjectId token = new ObjectId();
+
+    private boolean done;
+    private boolean applied;
+    private RuntimeException failure;
+
+    private PendingUpdate(StepExecutionEntity entity, int expectedVersion, Document update) {
+      this.entity = entity;
+      this.expectedVersion = expectedVersion;
+      this.update = update;
+    }
+
+    private void complete(boolean applied, RuntimeException failure) {
+      synchronized (lock) {
+        this.applied = applied;
+        this.failure = failure;
+        this.done = true;
+      }
+    }
+
+    private boolean getResult() {
+      synchronized (lock) {
+        if (failure != null) {
+          throw failure;
+        }
+        return applied;
+      }
+    }
+  }
+}
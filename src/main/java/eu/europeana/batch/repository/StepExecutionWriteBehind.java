@@ -0,0 +1,273 @@
+package eu.europeana.batch.repository;
+
+import eu.europeana.batch.entity.StepExecutionEntity;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.util.Assert;
+
+/**
+ * Coalesces updates of running step executions and their execution contexts, so that a chunk
+ * commit doesn't need a round-trip to the database.
+ *
+ * <p>Updates are held in memory until a number of commits has been deferred, or until a delay has
+ * elapsed since the first deferred update, whichever comes first. The pending updates of a step
+ * execution are then written with the version the step execution has in the database, so
+ * concurrent modifications are still detected. Updates of step executions that are no longer
+ * running (completed, failed, stopped) are always written immediately, together with anything
+ * still pending.
+ *
+ * <p>If the JVM dies, at most one window of updates is lost, so a restart resumes from the last
+ * flushed commit. Readers of the database, such as a JobExplorer, see running step executions
+ * with the same delay.
+ */
+public class StepExecutionWriteBehind {
+
+  public static final int DEFAULT_MAX_COMMITS = 10;
+
+  public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(1);
+
+  private final StepExecutionRepository stepExecutionRepository;
+  private final ExecutionContextRepository executionContextRepository;
+
+  private final int maxCommits;
+  private final long maxDelayMillis;
+
+  private final Map<Long, PendingUpdate> pendingUpdates = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService flusher;
+
+  public StepExecutionWriteBehind(
+      StepExecutionRepository stepExecutionRepository,
+      ExecutionContextRepository executionContextRepository) {
+    this(
+        stepExecutionRepository,
+        executionContextRepository,
+        DEFAULT_MAX_COMMITS,
+        DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * Creates a write-behind buffer. It still needs to be set on both repositories.
+   *
+   * @param stepExecutionRepository repository used to write step executions
+   * @param executionContextRepository repository used to write execution contexts
+   * @param maxCommits number of commits after which the pending updates are written
+   * @param maxDelay time after the first deferred update after which pending updates are written
+   */
+  public StepExecutionWriteBehind(
+      StepExecutionRepository stepExecutionRepository,
+      ExecutionContextRepository executionContextRepository,
+      int maxCommits,
+      Duration maxDelay) {
+    Assert.isTrue(maxCommits > 0, "maxCommits must be greater than 0");
+    Assert.isTrue(maxDelay.toMillis() > 0, "maxDelay must be at least 1 millisecond");
+    this.stepExecutionRepository = stepExecutionRepository;
+    this.executionContextRepository = executionContextRepository;
+    this.maxCommits = maxCommits;
+    this.maxDelayMillis = maxDelay.toMillis();
+
+    this.flusher =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "step-execution-write-behind");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long period = Math.max(maxDelayMillis / 2, 1);
+    flusher.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Defers an update of a running step execution, and increments its version. Must be called
+   * while holding the monitor of the step execution.
+   *
+   * @param stepExecution step execution to update
+   */
+  void deferStepExecution(StepExecution stepExecution) {
+    PendingUpdate pending = getPendingUpdate(stepExecution);
+    if (pending.stepExecutionEntity == null) {
+      pending.persistedVersion = stepExecution.getVersion();
+    }
+    stepExecution.incrementVersion();
+    // taken now, so that the state written is the one at this commit
+    pending.stepExecutionEntity = StepExecutionEntity.toEntity(stepExecution);
+    pending.commits++;
+
+    if (pending.commits >= maxCommits || pending.isExpired(System.currentTimeMillis())) {
+      flush(pending);
+    }
+  }
+
+  /**
+   * Defers a context update of a running step execution. Must be called while holding the monitor
+   * of the step execution.
+   *
+   * @param stepExecution step execution whose context to update
+   */
+  void deferExecutionContext(StepExecution stepExecution) {
+    PendingUpdate pending = getPendingUpdate(stepExecution);
+    // copied, as the step keeps changing its context while the update is pending
+    pending.executionContext = new ExecutionContext(stepExecution.getExecutionContext());
+  }
+
+  /**
+   * Drops the pending context update of a step execution, because it is superseded by an update
+   * that is written immediately. Must be called while holding the monitor of the step execution.
+   *
+   * @param stepExecution step execution whose context is updated
+   */
+  void discardExecutionContext(StepExecution stepExecution) {
+    PendingUpdate pending = pendingUpdates.get(stepExecution.getId());
+    if (pending != null) {
+      pending.executionContext = null;
+      if (pending.stepExecutionEntity == null) {
+        pendingUpdates.remove(stepExecution.getId());
+      }
+    }
+  }
+
+  /**
+   * Writes the pending context update of a step execution and drops its pending step execution
+   * update, because it is superseded by an update that is written immediately. Must be called
+   * while holding the monitor of the step execution.
+   *
+   * @param stepExecution step execution that is updated
+   * @return version of the step execution in the database
+   */
+  int flushForUpdate(StepExecution stepExecution) {
+    PendingUpdate pending = pendingUpdates.remove(stepExecution.getId());
+    if (pending == null) {
+      return stepExecution.getVersion();
+    }
+    if (pending.executionContext != null) {
+      executionContextRepository.writeStepExecutionContext(
+          stepExecution.getId(), pending.executionContext);
+    }
+    return pending.stepExecutionEntity != null
+        ? pending.persistedVersion
+        : stepExecution.getVersion();
+  }
+
+  /**
+   * Writes all pending updates. Can be used before shutting down, to lose as little progress as
+   * possible. A failed write doesn't stop the updates of other step executions from being written.
+   *
+   * @throws RuntimeException the first failure, once all pending updates were attempted
+   */
+  public void flushAll() {
+    RuntimeException failure = null;
+    for (PendingUpdate pending : pendingUpdates.values()) {
+      synchronized (pending.stepExecution) {
+        if (pendingUpdates.get(pending.stepExecution.getId()) != pending) {
+          continue;
+        }
+        try {
+          flush(pending);
+        } catch (RuntimeException e) {
+          // the pending updates are kept, as when a background flush fails
+          if (failure == null) {
+            failure = e;
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** Stops the background flushing and writes all pending updates */
+  public void shutdown() {
+    flusher.shutdown();
+    flushAll();
+  }
+
+  public int getPendingCount() {
+    return pendingUpdates.size();
+  }
+
+  private PendingUpdate getPendingUpdate(StepExecution stepExecution) {
+    PendingUpdate pending =
+        pendingUpdates.computeIfAbsent(
+            stepExecution.getId(),
+            id -> new PendingUpdate(stepExecution, System.currentTimeMillis()));
+
+    // report a failed background flush to the step, which then fails as it would have without
+    // write-behind. The pending updates are kept, so they are written with its final update.
+    RuntimeException failure = pending.failure;
+    if (failure != null) {
+      pending.failure = null;
+      throw failure;
+    }
+    return pending;
+  }
+
+  /** Writes the pending updates. Must be called while holding the monitor of the step execution */
+  private void flush(PendingUpdate pending) {
+    Long stepExecutionId = pending.stepExecution.getId();
+    if (pending.executionContext != null) {
+      executionContextRepository.writeStepExecutionContext(
+          stepExecutionId, pending.executionContext);
+      pending.executionContext = null;
+    }
+    if (pending.stepExecutionEntity != null) {
+      stepExecutionRepository.writeStepExecution(
+          pending.stepExecutionEntity,
+          pending.persistedVersion,
+          pending.stepExecutionEntity.getVersion());
+      pending.stepExecutionEntity = null;
+    }
+    pendingUpdates.remove(stepExecutionId);
+  }
+
+  /** Writes the pending updates of steps that haven't committed for longer than the delay */
+  private void flushExpired() {
+    long now = System.currentTimeMillis();
+    for (PendingUpdate pending : pendingUpdates.values()) {
+      if (!pending.isExpired(now)) {
+        continue;
+      }
+      synchronized (pending.stepExecution) {
+        // the step may have written it in the meantime
+        if (pendingUpdates.get(pending.stepExecution.getId()) != pending) {
+          continue;
+        }
+        try {
+          flush(pending);
+        } catch (RuntimeException e) {
+          // retried on the next run; an exception here would cancel the scheduled flushing
+          pending.failure = e;
+        }
+      }
+    }
+  }
+
+  /** Updates of a step execution that are not written yet. Guarded by its monitor. */
+  private final class PendingUpdate {
+    private final StepExecution stepExecution;
+    private final long firstDeferredAt;
+
+    private StepExecutionEntity stepExecutionEntity;
+    private int persistedVersion;
+    private ExecutionContext executionContext;
+    private int commits;
+    private RuntimeException failure;
+
+    private PendingUpdate(StepExecution stepExecution, long firstDeferredAt) {
+      this.stepExecution = stepExecution;
+      this.firstDeferredAt = firstDeferredAt;
+    }
+
+    private boolean isExpired(long now) {
+      return now - firstDeferredAt >= maxDelayMillis;
+    }
+  }
+}
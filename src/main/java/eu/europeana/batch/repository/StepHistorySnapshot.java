@@ -0,0 +1,84 @@
+package eu.europeana.batch.repository;
+
+import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.entity.StepExecutionEntity;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last step execution and number of step executions of every step of a job instance, read with a
+ * single query. When a job is launched or restarted, the step executions of each of its steps are
+ * looked up before the step runs; the snapshot answers these lookups without a query per step.
+ *
+ * <p>A snapshot belongs to one launch: it is created with the job execution of the launch, loaded
+ * on the first lookup, and dropped when the job execution finishes. A step whose executions are
+ * saved after the snapshot was created is marked as stale, and is looked up in the database again.
+ * Steps that are not in the snapshot have no executions.
+ */
+final class StepHistorySnapshot {
+
+  private static final StepHistory NO_HISTORY = new StepHistory(null, null, 0);
+
+  private final long jobExecutionId;
+
+  private final Set<String> staleStepNames = ConcurrentHashMap.newKeySet();
+
+  /** Null until the snapshot is loaded */
+  private volatile Map<String, StepHistory> steps;
+
+  /**
+   * Creates an empty snapshot, which has to be loaded before it is used
+   *
+   * @param jobExecutionId id of the job execution launching the job
+   */
+  StepHistorySnapshot(long jobExecutionId) {
+    this.jobExecutionId = jobExecutionId;
+  }
+
+  long getJobExecutionId() {
+    return jobExecutionId;
+  }
+
+  boolean isLoaded() {
+    return steps != null;
+  }
+
+  void load(Map<String, StepHistory> steps) {
+    this.steps = steps;
+  }
+
+  /**
+   * Marks the step as stale. This has to happen before executions of the step are saved, so the
+   * snapshot never hides them, even while it is still loading.
+   *
+   * @param stepName name of the step
+   */
+  void invalidate(String stepName) {
+    staleStepNames.add(stepName);
+  }
+
+  /**
+   * Gets the history of a step
+   *
+   * @param stepName name of the step
+   * @return history of the step, or null if the snapshot isn't loaded yet or the step is stale
+   */
+  StepHistory get(String stepName) {
+    Map<String, StepHistory> loaded = steps;
+    if (loaded == null || staleStepNames.contains(stepName)) {
+      return null;
+    }
+    return loaded.getOrDefault(stepName, NO_HISTORY);
+  }
+
+  /**
+   * History of a step in a job instance
+   *
+   * @param lastStepExecution most recent step execution, or null if there is none
+   * @param jobExecution job execution of the most recent step execution, or null if there is none
+   * @param count number of step executions
+   */
+  record StepHistory(
+      StepExecutionEntity lastStepExecution, JobExecutionEntity jobExecution, long count) {}
+}
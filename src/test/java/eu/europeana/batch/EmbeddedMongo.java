@@ -0,0 +1,37 @@
+package eu.europeana.batch;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import dev.morphia.Datastore;
+import dev.morphia.Morphia;
+import java.net.InetSocketAddress;
+
+/**
+ * In-memory server speaking the Mongo wire protocol, so repositories can be tested through the
+ * real driver and Morphia mapping. Change streams aren't supported.
+ */
+public final class EmbeddedMongo implements AutoCloseable {
+
+  private final MongoServer server;
+  private final MongoClient client;
+  private final Datastore datastore;
+
+  public EmbeddedMongo() {
+    server = new MongoServer(new MemoryBackend());
+    InetSocketAddress address = server.bind();
+    client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+    datastore = Morphia.createDatastore(client, "batch");
+  }
+
+  public Datastore getDatastore() {
+    return datastore;
+  }
+
+  @Override
+  public void close() {
+    client.close();
+    server.shutdownNow();
+  }
+}
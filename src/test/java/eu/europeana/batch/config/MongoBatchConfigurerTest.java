@@ -0,0 +1,65 @@
+package eu.europeana.batch.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.repository.StepExecutionRepository;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.task.SyncTaskExecutor;
+
+class MongoBatchConfigurerTest {
+
+  private EmbeddedMongo mongo;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void pendingStepExecutionUpdatesAreWrittenWhenTheContextCloses() throws Exception {
+    MongoBatchSettings settings = new MongoBatchSettings();
+    settings.setStepWriteBehind(true);
+    settings.setStepWriteBehindMaxCommits(10);
+    settings.setStepWriteBehindMaxDelay(Duration.ofHours(1));
+    GenericApplicationContext context = new GenericApplicationContext();
+    context.registerBean(
+        MongoBatchConfigurer.class,
+        () -> new MongoBatchConfigurer(mongo.getDatastore(), new SyncTaskExecutor(), settings));
+    context.refresh();
+
+    MongoBatchConfigurer configurer = context.getBean(MongoBatchConfigurer.class);
+    JobRepository jobRepository = configurer.getJobRepository();
+    JobExecution jobExecution = jobRepository.createJobExecution("job", new JobParameters());
+    StepExecution stepExecution = jobExecution.createStepExecution("step");
+    stepExecution.setStartTime(LocalDateTime.now());
+    jobRepository.add(stepExecution);
+    stepExecution.setStatus(BatchStatus.STARTED);
+    stepExecution.setCommitCount(1);
+    jobRepository.update(stepExecution);
+    assertEquals(1, configurer.getStepExecutionWriteBehind().getPendingCount());
+
+    context.close();
+
+    assertEquals(0, configurer.getStepExecutionWriteBehind().getPendingCount());
+    StepExecution stored =
+        new StepExecutionRepository(mongo.getDatastore())
+            .getStepExecution(jobExecution, stepExecution.getId());
+    assertEquals(1, stored.getCommitCount());
+  }
+}
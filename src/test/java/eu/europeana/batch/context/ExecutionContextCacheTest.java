@@ -0,0 +1,79 @@
+package eu.europeana.batch.context;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.item.ExecutionContext;
+
+class ExecutionContextCacheTest {
+
+  @Test
+  void leastRecentlyUsedContextIsEvictedAboveMaxEntries() {
+    ExecutionContextCache cache = new ExecutionContextCache(2);
+    cache.put("a", createContext("a"));
+    cache.put("b", createContext("b"));
+    cache.get("a");
+
+    cache.put("c", createContext("c"));
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  void contextsAreEvictedAboveMaxWeight() {
+    ExecutionContextCache cache = new ExecutionContextCache(10, 1000);
+    cache.put("a", createContext("x".repeat(300)));
+    long weight = cache.getWeight();
+
+    cache.put("b", createContext("y".repeat(300)));
+    assertEquals(1, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals(weight, cache.getWeight());
+
+    // heavier than the whole cache: not cached, and nothing else is evicted
+    cache.put("c", createContext("z".repeat(1000)));
+    assertNull(cache.get("c"));
+    assertNotNull(cache.get("b"));
+  }
+
+  @Test
+  void replacingAndInvalidatingKeepTheWeight() {
+    ExecutionContextCache cache = new ExecutionContextCache(10);
+    cache.put("a", createContext("a"));
+    long weight = cache.getWeight();
+
+    cache.put("a", createContext("b"));
+    assertEquals(weight, cache.getWeight());
+    assertEquals("b", cache.get("a").getString("value"));
+
+    cache.invalidate("a");
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test
+  void cachedContextCantBeModifiedByCallers() {
+    ExecutionContextCache cache = new ExecutionContextCache(10);
+    ExecutionContext executionContext = createContext("a");
+    cache.put("a", executionContext);
+
+    executionContext.putString("value", "changed");
+    cache.get("a").putString("value", "changed");
+
+    assertEquals("a", cache.get("a").getString("value"));
+  }
+
+  private static ExecutionContext createContext(String value) {
+    ExecutionContext executionContext = new ExecutionContext();
+    executionContext.putString("value", value);
+    return executionContext;
+  }
+}
@@ -0,0 +1,81 @@
+package eu.europeana.batch.context;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+import org.springframework.batch.item.ExecutionContext;
+
+class ExecutionContextCodecTest {
+
+  private final ExecutionContextCodec codec =
+      new ExecutionContextCodec(new Jackson2ExecutionContextStringSerializer());
+
+  @Test
+  void keysAreEscapedIntoValidFieldNames() {
+    ExecutionContext executionContext = new ExecutionContext();
+    executionContext.putString("reader.position", "a");
+    executionContext.putString("$total", "b");
+    executionContext.putString("100%", "c");
+    // already looks escaped, so it must not be read back as "reader.position"
+    executionContext.putString("reader%2Eposition", "d");
+
+    BsonDocument document = codec.toBsonDocument(executionContext);
+
+    for (String fieldName : document.keySet()) {
+      assertTrue(fieldName.indexOf('.') < 0 && !fieldName.startsWith("$"), fieldName);
+    }
+    ExecutionContext decoded = codec.fromBsonDocument(document);
+    assertEquals(4, decoded.size());
+    assertEquals("a", decoded.getString("reader.position"));
+    assertEquals("b", decoded.getString("$total"));
+    assertEquals("c", decoded.getString("100%"));
+    assertEquals("d", decoded.getString("reader%2Eposition"));
+  }
+
+  @Test
+  void valuesAreReadBackWithTheirType() {
+    ArrayList<String> list = new ArrayList<>(List.of("x", "y"));
+    ExecutionContext executionContext = new ExecutionContext();
+    executionContext.put("string", "value");
+    executionContext.put("int", 1);
+    executionContext.put("long", 2L);
+    executionContext.put("double", 3.5d);
+    executionContext.put("boolean", true);
+    executionContext.put("date", new Date(1000L));
+    executionContext.put("bytes", new byte[] {1, 2});
+    executionContext.put("float", 4.5f);
+    executionContext.put("short", (short) 5);
+    executionContext.put("byte", (byte) 6);
+    executionContext.put("char", 'c');
+    executionContext.put("bigDecimal", new BigDecimal("1.10"));
+    executionContext.put("bigInteger", new BigInteger("123456789012345678901234567890"));
+    executionContext.put("list", list);
+
+    ExecutionContext decoded = codec.fromBsonDocument(codec.toBsonDocument(executionContext));
+
+    assertEquals("value", decoded.get("string"));
+    assertEquals(1, decoded.get("int"));
+    assertEquals(2L, decoded.get("long"));
+    assertEquals(3.5d, decoded.get("double"));
+    assertEquals(true, decoded.get("boolean"));
+    assertEquals(new Date(1000L), decoded.get("date"));
+    assertArrayEquals(new byte[] {1, 2}, (byte[]) decoded.get("bytes"));
+    assertEquals(4.5f, decoded.get("float"));
+    assertEquals((short) 5, decoded.get("short"));
+    assertEquals((byte) 6, decoded.get("byte"));
+    assertEquals('c', decoded.get("char"));
+    // the scale is kept
+    assertEquals(new BigDecimal("1.10"), decoded.get("bigDecimal"));
+    assertEquals(new BigInteger("123456789012345678901234567890"), decoded.get("bigInteger"));
+    assertEquals(list, decoded.get("list"));
+  }
+}
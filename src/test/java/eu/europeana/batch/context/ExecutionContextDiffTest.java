@@ -0,0 +1,47 @@
+package eu.europeana.batch.context;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+class ExecutionContextDiffTest {
+
+  @Test
+  void changedKeysAreSetAndRemovedKeysUnset() {
+    BsonDocument previous = BsonDocument.parse("{a: 1, b: 2, c: 3, d: 4, e: 5, g: 7, h: 8}");
+    BsonDocument current = BsonDocument.parse("{a: 1, b: 20, c: 3, d: 4, f: 6, g: 7, h: 8}");
+
+    BsonDocument update = ExecutionContextDiff.createUpdate(previous, current, "context");
+
+    assertEquals(
+        BsonDocument.parse(
+            "{$set: {'context.b': 20, 'context.f': 6}, $unset: {'context.e': ''}}"),
+        update);
+  }
+
+  @Test
+  void unchangedContextGivesAnEmptyUpdate() {
+    BsonDocument context = BsonDocument.parse("{a: 1, b: {c: 'x'}}");
+
+    assertTrue(ExecutionContextDiff.createUpdate(context, context.clone(), "context").isEmpty());
+  }
+
+  @Test
+  void contextIsReplacedWhenMostKeysChanged() {
+    BsonDocument previous = BsonDocument.parse("{a: 1, b: 2, c: 3, d: 4}");
+
+    // half of the keys changed: still a field-level update
+    assertEquals(
+        BsonDocument.parse("{$set: {'context.a': 10, 'context.b': 20}}"),
+        ExecutionContextDiff.createUpdate(
+            previous, BsonDocument.parse("{a: 10, b: 20, c: 3, d: 4}"), "context"));
+    // more than half: replace the whole context
+    assertNull(
+        ExecutionContextDiff.createUpdate(
+            previous, BsonDocument.parse("{a: 10, b: 20, c: 30, d: 4}"), "context"));
+    assertNull(ExecutionContextDiff.createUpdate(previous, new BsonDocument(), "context"));
+  }
+}
@@ -0,0 +1,111 @@
+package eu.europeana.batch.context;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.repository.ExecutionContextSerializer;
+import org.springframework.batch.core.repository.dao.Jackson2ExecutionContextStringSerializer;
+import org.springframework.batch.item.ExecutionContext;
+
+class ExecutionContextPayloadTest {
+
+  private final ExecutionContextSerializer serializer =
+      new Jackson2ExecutionContextStringSerializer();
+
+  @Test
+  void headerHoldsMagicFormatAndCodec() {
+    byte[] json = serializeJson(createContext());
+
+    byte[] compressed =
+        ExecutionContextPayload.compress(ExecutionContextFormat.JSON, json, 0, json.length);
+    assertArrayEquals(new byte[] {'E', 'C', 0, 1}, Arrays.copyOf(compressed, 4));
+
+    byte[] bson = serializeBson(createContext());
+    byte[] wrapped =
+        ExecutionContextPayload.wrap(ExecutionContextFormat.BSON, bson, 0, bson.length);
+    assertArrayEquals(new byte[] {'E', 'C', 1, 0}, Arrays.copyOf(wrapped, 4));
+    assertEquals(4 + bson.length, wrapped.length);
+  }
+
+  @Test
+  void compressedJsonContextRoundTrip() {
+    byte[] json = serializeJson(createContext());
+    // the payload only covers the serialized context, not the rest of the buffer
+    byte[] buffer = new byte[json.length + 10];
+    System.arraycopy(json, 0, buffer, 5, json.length);
+
+    byte[] payload =
+        ExecutionContextPayload.compress(ExecutionContextFormat.JSON, buffer, 5, json.length);
+
+    assertTrue(payload.length < json.length);
+    assertEquals(createContext(), ExecutionContextPayload.decode(payload, serializer));
+  }
+
+  @Test
+  void compressedBsonContextRoundTrip() {
+    byte[] bson = serializeBson(createContext());
+
+    byte[] payload =
+        ExecutionContextPayload.compress(ExecutionContextFormat.BSON, bson, 0, bson.length);
+
+    assertTrue(payload.length < bson.length);
+    assertEquals(createContext(), ExecutionContextPayload.decode(payload, serializer));
+  }
+
+  @Test
+  void contextIsStoredUncompressedWhenDeflateDoesNotHelp() {
+    ExecutionContext executionContext = new ExecutionContext();
+    executionContext.putString("k", "v");
+    byte[] json = serializeJson(executionContext);
+
+    byte[] payload =
+        ExecutionContextPayload.compress(ExecutionContextFormat.JSON, json, 0, json.length);
+
+    assertEquals(0, payload[3]);
+    assertEquals(executionContext, ExecutionContextPayload.decode(payload, serializer));
+  }
+
+  @Test
+  void invalidHeaderIsRejected() {
+    byte[] payload = "{\"k\":\"v\"}".getBytes(StandardCharsets.UTF_8);
+
+    assertThrows(
+        IllegalArgumentException.class, () -> ExecutionContextPayload.decode(payload, serializer));
+  }
+
+  private static ExecutionContext createContext() {
+    ExecutionContext executionContext = new ExecutionContext();
+    for (int i = 0; i < 100; i++) {
+      executionContext.putString("key" + i, "a repetitive value that compresses well");
+    }
+    executionContext.putLong("count", 42L);
+    return executionContext;
+  }
+
+  private byte[] serializeJson(ExecutionContext executionContext) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      serializer.serialize(new HashMap<>(executionContext.toMap()), out);
+    } catch (IOException ioe) {
+      throw new IllegalStateException(ioe);
+    }
+    return out.toByteArray();
+  }
+
+  private byte[] serializeBson(ExecutionContext executionContext) {
+    BsonDocument document = new ExecutionContextCodec(serializer).toBsonDocument(executionContext);
+    RawBsonDocument raw = new RawBsonDocument(document, new BsonDocumentCodec());
+    return Arrays.copyOf(raw.getByteBuffer().array(), raw.getByteBuffer().remaining());
+  }
+}
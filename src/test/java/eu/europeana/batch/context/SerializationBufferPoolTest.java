@@ -0,0 +1,39 @@
+package eu.europeana.batch.context;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+class SerializationBufferPoolTest {
+
+  @Test
+  void bufferGivenBackIsReusedEmpty() {
+    SerializationBufferPool pool = new SerializationBufferPool();
+    SerializationBufferPool.Buffer buffer = pool.take();
+    buffer.write(new byte[1000], 0, 1000);
+    pool.giveBack(buffer);
+    assertEquals(buffer.getCapacity(), pool.getPooledCapacity());
+
+    SerializationBufferPool.Buffer reused = pool.take();
+    assertSame(buffer, reused);
+    assertEquals(0, reused.size());
+    assertEquals(0, pool.getPooledCapacity());
+  }
+
+  @Test
+  void buffersBeyondTheMaximumCapacityAreDropped() {
+    SerializationBufferPool pool = new SerializationBufferPool(1500);
+    SerializationBufferPool.Buffer small = pool.take();
+    SerializationBufferPool.Buffer large = pool.take();
+    large.write(new byte[2000], 0, 2000);
+
+    pool.giveBack(large);
+    pool.giveBack(small);
+    assertEquals(small.getCapacity(), pool.getPooledCapacity());
+
+    assertSame(small, pool.take());
+    assertNotSame(large, pool.take());
+  }
+}
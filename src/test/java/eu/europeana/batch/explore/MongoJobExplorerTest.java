@@ -0,0 +1,91 @@
+package eu.europeana.batch.explore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.repository.ExecutionContextRepository;
+import eu.europeana.batch.repository.JobExecutionRepository;
+import eu.europeana.batch.repository.JobInstanceRepository;
+import eu.europeana.batch.repository.StepExecutionRepository;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+
+class MongoJobExplorerTest {
+
+  private EmbeddedMongo mongo;
+  private JobInstanceRepository jobInstanceRepository;
+  private JobExecutionRepository jobExecutionRepository;
+  private MongoJobExplorer explorer;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    jobInstanceRepository = new JobInstanceRepository(mongo.getDatastore());
+    jobExecutionRepository = new JobExecutionRepository(mongo.getDatastore());
+    explorer =
+        new MongoJobExplorer(
+            jobInstanceRepository,
+            jobExecutionRepository,
+            new StepExecutionRepository(mongo.getDatastore()),
+            new ExecutionContextRepository(mongo.getDatastore()));
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void jobExecutionsOfAnInstanceGetThatInstance() {
+    JobInstance jobInstance = createJobInstance("job", 1);
+    createJobExecution(jobInstance);
+    createJobExecution(jobInstance);
+
+    List<JobExecution> jobExecutions = explorer.getJobExecutions(jobInstance);
+
+    assertEquals(2, jobExecutions.size());
+    for (JobExecution jobExecution : jobExecutions) {
+      assertSame(jobInstance, jobExecution.getJobInstance());
+    }
+    assertSame(jobInstance, explorer.getLastJobExecution(jobInstance).getJobInstance());
+  }
+
+  @Test
+  void jobExecutionsOfDifferentInstancesGetTheirOwnInstance() {
+    JobInstance first = createJobInstance("job", 1);
+    JobInstance second = createJobInstance("job", 2);
+    JobExecution firstExecution = createJobExecution(first);
+    JobExecution secondExecution = createJobExecution(second);
+
+    Set<JobExecution> running = explorer.findRunningJobExecutions("job");
+
+    assertEquals(2, running.size());
+    for (JobExecution jobExecution : running) {
+      JobInstance expected =
+          jobExecution.getId().equals(firstExecution.getId()) ? first : second;
+      assertEquals(expected.getId(), jobExecution.getJobInstance().getId());
+    }
+    assertEquals(
+        second.getId(),
+        explorer.getJobExecution(secondExecution.getId()).getJobInstance().getId());
+  }
+
+  private JobInstance createJobInstance(String jobName, long run) {
+    JobParameters parameters = new JobParametersBuilder().addLong("run", run).toJobParameters();
+    return jobInstanceRepository.createJobInstance(jobName, parameters);
+  }
+
+  private JobExecution createJobExecution(JobInstance jobInstance) {
+    JobExecution jobExecution = new JobExecution(jobInstance, new JobParameters());
+    jobExecutionRepository.saveJobExecution(jobExecution);
+    return jobExecution;
+  }
+}
@@ -0,0 +1,115 @@
+package eu.europeana.batch.id;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import eu.europeana.batch.EmbeddedMongo;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PooledSequenceGeneratorTest {
+
+  private EmbeddedMongo mongo;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void defaultBlockSizeBehavesLikeASequence() {
+    PooledSequenceGenerator generator = new PooledSequenceGenerator(mongo.getDatastore());
+
+    assertEquals(1, generator.nextId("JobExecution"));
+    assertEquals(2, generator.nextId("JobExecution"));
+    assertEquals(1, generator.nextId("StepExecution"));
+    assertEquals(2, getSequenceValue("JobExecution"));
+  }
+
+  @Test
+  void generatorsSharingTheSequenceReserveSeparateBlocks() {
+    PooledSequenceGenerator first = new PooledSequenceGenerator(mongo.getDatastore(), 10);
+    PooledSequenceGenerator second = new PooledSequenceGenerator(mongo.getDatastore(), 10);
+
+    assertEquals(1, first.nextId("JobExecution"));
+    assertEquals(11, second.nextId("JobExecution"));
+    assertEquals(2, first.nextId("JobExecution"));
+    assertEquals(12, second.nextId("JobExecution"));
+    assertEquals(20, getSequenceValue("JobExecution"));
+
+    // the next block of the first generator starts after the block of the second
+    for (int i = 3; i <= 10; i++) {
+      assertEquals(i, first.nextId("JobExecution"));
+    }
+    assertEquals(21, first.nextId("JobExecution"));
+  }
+
+  @Test
+  void rangesAreTakenFromTheBlockWhenItHasEnoughIds() {
+    PooledSequenceGenerator generator = new PooledSequenceGenerator(mongo.getDatastore(), 10);
+    assertEquals(1, generator.nextId("StepExecution"));
+
+    assertArrayEquals(new long[] {2, 3, 4, 5, 6}, generator.nextIds("StepExecution", 5));
+    // too large for the block, so reserved on its own
+    long[] range = generator.nextIds("StepExecution", 20);
+    assertEquals(11, range[0]);
+    assertEquals(30, range[19]);
+    // the rest of the block is still handed out
+    assertEquals(7, generator.nextId("StepExecution"));
+  }
+
+  @Test
+  void concurrentCallersNeverGetTheSameId() throws Exception {
+    // the embedded server doesn't apply concurrent findAndModify commands atomically, unlike
+    // MongoDB, so the callers share one generator; generators sharing the sequence are tested above
+    PooledSequenceGenerator generator = new PooledSequenceGenerator(mongo.getDatastore(), 7);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<Long>>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  List<Long> ids = new ArrayList<>();
+                  for (int i = 0; i < 100; i++) {
+                    ids.add(generator.nextId("StepExecution"));
+                  }
+                  return ids;
+                }));
+      }
+
+      Set<Long> ids = new HashSet<>();
+      for (Future<List<Long>> future : futures) {
+        ids.addAll(future.get());
+      }
+      assertEquals(800, ids.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long getSequenceValue(String internalType) {
+    Document sequence =
+        mongo
+            .getDatastore()
+            .getDatabase()
+            .getCollection("Sequence")
+            .find(new Document("_id", internalType))
+            .first();
+    return sequence.get("value", Number.class).longValue();
+  }
+}
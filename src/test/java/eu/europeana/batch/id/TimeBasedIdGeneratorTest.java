@@ -0,0 +1,130 @@
+package eu.europeana.batch.id;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mongodb.client.MongoCollection;
+import eu.europeana.batch.EmbeddedMongo;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TimeBasedIdGeneratorTest {
+
+  /** 2020-01-01T00:00:00Z */
+  private static final long EPOCH_MILLIS = 1577836800000L;
+
+  private EmbeddedMongo mongo;
+  private MongoCollection<Document> leases;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    leases = mongo.getDatastore().getDatabase().getCollection("NodeLease");
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void idsHoldTimestampNodeIdAndCounter() {
+    TimeBasedIdGenerator generator = new TimeBasedIdGenerator(mongo.getDatastore());
+
+    long before = System.currentTimeMillis() - EPOCH_MILLIS;
+    long[] ids = generator.nextIds("test", 3);
+    long after = System.currentTimeMillis() - EPOCH_MILLIS;
+
+    for (long id : ids) {
+      long timestamp = id >>> 22;
+      assertTrue(timestamp >= before && timestamp <= after + 1, "timestamp of " + id);
+      assertEquals(generator.getNodeId(), (int) ((id >>> 12) & 0x3FF));
+    }
+    assertTrue(ids[0] < ids[1] && ids[1] < ids[2]);
+    // within the same millisecond, only the counter moves
+    if (ids[0] >>> 22 == ids[1] >>> 22) {
+      assertEquals((ids[0] & 0xFFF) + 1, ids[1] & 0xFFF);
+    }
+  }
+
+  @Test
+  void nodeIdsLeasedByOtherNodesAreSkipped() {
+    long expiresAt = System.currentTimeMillis() + Duration.ofHours(1).toMillis();
+    List<Document> held = new ArrayList<>();
+    for (int nodeId = 0; nodeId < 1024; nodeId++) {
+      if (nodeId != 512) {
+        held.add(lease(nodeId, "other", expiresAt));
+      }
+    }
+    leases.insertMany(held);
+
+    assertEquals(512, new TimeBasedIdGenerator(mongo.getDatastore()).getNodeId());
+    assertThrows(
+        IllegalStateException.class, () -> new TimeBasedIdGenerator(mongo.getDatastore()));
+  }
+
+  @Test
+  void expiredLeaseIsTakenOver() {
+    leases.insertOne(lease(0, "crashed", System.currentTimeMillis() - 1));
+    long expiresAt = System.currentTimeMillis() + Duration.ofHours(1).toMillis();
+    List<Document> held = new ArrayList<>();
+    for (int nodeId = 1; nodeId < 1024; nodeId++) {
+      held.add(lease(nodeId, "other", expiresAt));
+    }
+    leases.insertMany(held);
+
+    assertEquals(0, new TimeBasedIdGenerator(mongo.getDatastore()).getNodeId());
+  }
+
+  @Test
+  void nodeLeasesANewIdWhenItsLeaseWasTakenOver() throws InterruptedException {
+    TimeBasedIdGenerator generator =
+        new TimeBasedIdGenerator(mongo.getDatastore(), Duration.ofMillis(100));
+    int nodeId = generator.getNodeId();
+    long lastId = generator.nextId("test");
+
+    // the lease expired while the node was paused, and another node took it over
+    leases.updateOne(
+        eq("_id", nodeId),
+        combine(
+            set("owner", "other"),
+            set("expiresAt", System.currentTimeMillis() + Duration.ofHours(1).toMillis())));
+    Thread.sleep(60);
+
+    long id = generator.nextId("test");
+    assertNotEquals(nodeId, generator.getNodeId());
+    assertEquals(generator.getNodeId(), (int) ((id >>> 12) & 0x3FF));
+    assertTrue(id > lastId);
+  }
+
+  @Test
+  void idsAreRefusedWhileTheClockIsBehindItsLastReading() {
+    AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    TimeBasedIdGenerator generator =
+        new TimeBasedIdGenerator(mongo.getDatastore(), Duration.ofMinutes(10), clock::get);
+    long lastId = generator.nextId("test");
+
+    clock.addAndGet(-5);
+    assertThrows(IllegalStateException.class, () -> generator.nextId("test"));
+
+    clock.addAndGet(5);
+    long id = generator.nextId("test");
+    assertTrue(id > lastId);
+    assertEquals(clock.get() - EPOCH_MILLIS, id >>> 22);
+  }
+
+  private static Document lease(int nodeId, String owner, long expiresAt) {
+    return new Document("_id", nodeId).append("owner", owner).append("expiresAt", expiresAt);
+  }
+}
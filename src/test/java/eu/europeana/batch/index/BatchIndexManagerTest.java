@@ -0,0 +1,123 @@
+package eu.europeana.batch.index;
+
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_KEY_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
+import static eu.europeana.batch.BatchConstants.RUNNING_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mongodb.client.model.IndexModel;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.repository.RepositoryQueries;
+import eu.europeana.batch.repository.RepositoryQueries.RepositoryQuery;
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BatchIndexManagerTest {
+
+  private EmbeddedMongo mongo;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void indexesAreBuiltFromTheAnnotations() {
+    List<IndexModel> indexes =
+        BatchIndexManager.getIndexModels(
+            mongo.getDatastore().getMapper().getEntityModel(JobExecutionEntity.class));
+
+    IndexModel running =
+        findIndex(indexes, new Document(JOB_NAME_KEY, 1).append(JOB_EXECUTION_ID_KEY, -1));
+    assertEquals(
+        new Document(RUNNING_KEY, true).toBsonDocument(),
+        running.getOptions().getPartialFilterExpression().toBsonDocument());
+
+    // declared with @Indexed on the property
+    IndexModel jobExecutionId = findIndex(indexes, new Document(JOB_EXECUTION_ID_KEY, 1));
+    assertNull(jobExecutionId.getOptions().getPartialFilterExpression());
+  }
+
+  @Test
+  void missingIndexesAreCreated() {
+    assertTrue(new BatchIndexManager(mongo.getDatastore()).ensureIndexes());
+
+    List<Document> indexes =
+        mongo
+            .getDatastore()
+            .getCollection(JobInstanceEntity.class)
+            .listIndexes()
+            .into(new ArrayList<>());
+
+    Document jobKey =
+        findIndexDocument(indexes, new Document(JOB_NAME_KEY, 1).append(JOB_KEY_KEY, 1));
+    assertTrue(jobKey.getBoolean("unique"));
+    findIndexDocument(indexes, new Document(JOB_INSTANCE_ID_KEY, 1));
+  }
+
+  @Test
+  void conflictingIndexDoesNotStopTheOtherIndexes() {
+    // created by an earlier version with the same keys, but not unique
+    mongo
+        .getDatastore()
+        .getCollection(JobInstanceEntity.class)
+        .createIndex(new Document(JOB_NAME_KEY, 1).append(JOB_KEY_KEY, 1));
+
+    assertFalse(new BatchIndexManager(mongo.getDatastore()).ensureIndexes());
+
+    List<Document> jobInstanceIndexes =
+        mongo
+            .getDatastore()
+            .getCollection(JobInstanceEntity.class)
+            .listIndexes()
+            .into(new ArrayList<>());
+    findIndexDocument(jobInstanceIndexes, new Document(JOB_INSTANCE_ID_KEY, 1));
+    List<Document> jobExecutionIndexes =
+        mongo
+            .getDatastore()
+            .getCollection(JobExecutionEntity.class)
+            .listIndexes()
+            .into(new ArrayList<>());
+    findIndexDocument(jobExecutionIndexes, new Document(JOB_EXECUTION_ID_KEY, 1));
+  }
+
+  @Test
+  void repositoryQueriesAreValid() {
+    List<RepositoryQuery> queries = RepositoryQueries.create(mongo.getDatastore());
+
+    assertEquals(20, queries.size());
+    for (RepositoryQuery query : queries) {
+      assertTrue(query.query().iterator(query.options()).toList().isEmpty(), query.description());
+    }
+  }
+
+  private static IndexModel findIndex(List<IndexModel> indexes, Document keys) {
+    return indexes.stream()
+        .filter(index -> index.getKeys().toBsonDocument().equals(keys.toBsonDocument()))
+        .findFirst()
+        .orElseThrow();
+  }
+
+  private static Document findIndexDocument(List<Document> indexes, Document keys) {
+    return indexes.stream()
+        .filter(index -> index.get("key", Document.class).equals(keys))
+        .findFirst()
+        .orElseThrow();
+  }
+}
@@ -0,0 +1,405 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.EXECUTION_CTX_FILES_BUCKET;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.context.ExecutionContextCache;
+import eu.europeana.batch.context.ExecutionContextFormat;
+import eu.europeana.batch.entity.ExecutionContextEntity;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.item.ExecutionContext;
+
+class ExecutionContextRepositoryTest {
+
+  private EmbeddedMongo mongo;
+  private ExecutionContextRepository repository;
+  private JobExecution jobExecution;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    repository = new ExecutionContextRepository(mongo.getDatastore());
+    jobExecution = new JobExecution(new JobInstance(1L, "job"), 10L, new JobParameters());
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void jsonContextRoundTrip() {
+    jobExecution.getExecutionContext().putString("name", "contexte été 中");
+    jobExecution.getExecutionContext().putLong("count", 42L);
+    repository.saveExecutionContext(jobExecution);
+
+    ExecutionContext read = repository.getExecutionContext(jobExecution);
+    assertEquals("contexte été 中", read.getString("name"));
+    assertEquals(42L, read.getLong("count"));
+  }
+
+  @Test
+  void jsonContextIsStoredAsMorphiaWritesIt() {
+    jobExecution.getExecutionContext().putString("name", "value");
+    repository.saveExecutionContext(jobExecution);
+
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNotNull(entity);
+    assertEquals(10L, entity.getExecutionId());
+    assertTrue(entity.getSerializedContext().contains("\"name\":\"value\""));
+  }
+
+  @Test
+  void updateReplacesContextOfAnotherFormat() {
+    jobExecution.getExecutionContext().putString("name", "json");
+    repository.saveExecutionContext(jobExecution);
+
+    repository.setFormat(ExecutionContextFormat.BSON);
+    jobExecution.getExecutionContext().putString("name", "bson");
+    jobExecution.getExecutionContext().put("amount", new BigDecimal("1.50"));
+    repository.updateExecutionContext(jobExecution);
+
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNull(entity.getSerializedContext());
+    assertNotNull(entity.getContext());
+
+    ExecutionContext read = repository.getExecutionContext(jobExecution);
+    assertEquals("bson", read.getString("name"));
+    assertEquals(new BigDecimal("1.50"), read.get("amount"));
+  }
+
+  @Test
+  void compressedContextRoundTrip() {
+    repository.setCompressionThreshold(16);
+    jobExecution.getExecutionContext().putString("name", "x".repeat(1000));
+    repository.saveExecutionContext(jobExecution);
+
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNotNull(entity.getCompressedContext());
+    assertEquals(
+        "x".repeat(1000), repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void bsonContextAboveCompressionThresholdRoundTrip() {
+    repository.setFormat(ExecutionContextFormat.BSON);
+    repository.setCompressionThreshold(16);
+    jobExecution.getExecutionContext().putString("name", "x".repeat(1000));
+    repository.saveExecutionContext(jobExecution);
+
+    jobExecution.getExecutionContext().putString("name", "y".repeat(1000));
+    repository.updateExecutionContext(jobExecution);
+
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNotNull(entity.getCompressedContext());
+    assertNull(entity.getContext());
+    assertEquals(
+        "y".repeat(1000), repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void contextsLargerThanTheReusedBufferRoundTrip() {
+    String large = "z".repeat(300 * 1024);
+    jobExecution.getExecutionContext().putString("name", large);
+    repository.saveExecutionContext(jobExecution);
+    assertEquals(large, repository.getExecutionContext(jobExecution).getString("name"));
+
+    // the next context is encoded in a new buffer
+    jobExecution.getExecutionContext().putString("name", "small");
+    repository.updateExecutionContext(jobExecution);
+    assertEquals("small", repository.getExecutionContext(jobExecution).getString("name"));
+
+    repository.setFormat(ExecutionContextFormat.BSON);
+    jobExecution.getExecutionContext().putString("name", large);
+    repository.updateExecutionContext(jobExecution);
+    assertEquals(large, repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void bsonKeysThatNeedEscapingRoundTrip() {
+    assertEscapedKeysRoundTrip(false);
+  }
+
+  @Test
+  void bsonKeysThatNeedEscapingRoundTripWithFieldLevelUpdates() {
+    assertEscapedKeysRoundTrip(true);
+  }
+
+  private void assertEscapedKeysRoundTrip(boolean fieldLevelUpdates) {
+    repository.setFormat(ExecutionContextFormat.BSON);
+    repository.setFieldLevelUpdates(fieldLevelUpdates);
+    ExecutionContext context = jobExecution.getExecutionContext();
+    context.putString("reader.position", "1");
+    context.putString("$total", "2");
+    context.putString("100%", "3");
+    for (int i = 0; i < 10; i++) {
+      context.putInt("key" + i, i);
+    }
+    repository.saveExecutionContext(jobExecution);
+
+    context.putString("reader.position", "4");
+    context.putString("$total", "5");
+    repository.updateExecutionContext(jobExecution);
+
+    ExecutionContext read = repository.getExecutionContext(jobExecution);
+    assertEquals("4", read.getString("reader.position"));
+    assertEquals("5", read.getString("$total"));
+    assertEquals("3", read.getString("100%"));
+    assertEquals(9, read.getInt("key9"));
+    assertEquals(13, read.size());
+  }
+
+  @Test
+  void bsonContextAboveOffloadThresholdRoundTrip() {
+    repository.setFormat(ExecutionContextFormat.BSON);
+    repository.setOffloadThreshold(16);
+    jobExecution.getExecutionContext().putString("name", "x".repeat(100));
+    repository.saveExecutionContext(jobExecution);
+
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNotNull(entity.getContextFileId());
+    assertEquals("x".repeat(100), repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void offloadedContextRoundTripAndReplacedFileIsDeleted() {
+    repository.setOffloadThreshold(16);
+    jobExecution.getExecutionContext().putString("name", "first".repeat(10));
+    repository.saveExecutionContext(jobExecution);
+    ObjectId firstFile =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first().getContextFileId();
+    assertNotNull(firstFile);
+
+    jobExecution.getExecutionContext().putString("name", "second".repeat(10));
+    repository.updateExecutionContext(jobExecution);
+
+    assertEquals(
+        "second".repeat(10), repository.getExecutionContext(jobExecution).getString("name"));
+    assertEquals(
+        0,
+        mongo
+            .getDatastore()
+            .getDatabase()
+            .getCollection(EXECUTION_CTX_FILES_BUCKET + ".files")
+            .countDocuments(new Document("_id", firstFile)));
+  }
+
+  @Test
+  void onlyContextsAboveTheOffloadThresholdAreStoredInAFile() {
+    repository.setOffloadThreshold(200);
+    jobExecution.getExecutionContext().putString("name", "x".repeat(100));
+    repository.saveExecutionContext(jobExecution);
+    ExecutionContextEntity entity =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNull(entity.getContextFileId());
+    assertNotNull(entity.getSerializedContext());
+
+    jobExecution.getExecutionContext().putString("name", "x".repeat(300));
+    repository.updateExecutionContext(jobExecution);
+    ObjectId file =
+        mongo.getDatastore().find(ExecutionContextEntity.class).first().getContextFileId();
+    assertNotNull(file);
+    assertEquals(1, countContextFiles());
+
+    // back below the threshold, so the context is inline again and its file is deleted
+    jobExecution.getExecutionContext().putString("name", "x".repeat(100));
+    repository.updateExecutionContext(jobExecution);
+    entity = mongo.getDatastore().find(ExecutionContextEntity.class).first();
+    assertNull(entity.getContextFileId());
+    assertEquals("x".repeat(100), repository.getExecutionContext(jobExecution).getString("name"));
+    assertEquals(0, countContextFiles());
+  }
+
+  @Test
+  void stepContextsRoundTripInBulk() {
+    repository.setInsertChunkSize(2);
+    List<StepExecution> stepExecutions =
+        List.of(
+            new StepExecution("a", jobExecution, 20L),
+            new StepExecution("b", jobExecution, 21L),
+            new StepExecution("c", jobExecution, 22L));
+    for (StepExecution stepExecution : stepExecutions) {
+      stepExecution.getExecutionContext().putString("step", stepExecution.getStepName());
+    }
+    repository.saveExecutionContexts(stepExecutions);
+
+    Map<Long, ExecutionContext> read = repository.getStepExecutionContexts(stepExecutions);
+    assertEquals("a", read.get(20L).getString("step"));
+    assertEquals("b", read.get(21L).getString("step"));
+    assertEquals("c", read.get(22L).getString("step"));
+  }
+
+  @Test
+  void stepContextsAreSerializedInParallelFromTheThreshold() {
+    AtomicInteger tasks = new AtomicInteger();
+    repository.setSerializationExecutor(
+        task -> {
+          tasks.incrementAndGet();
+          task.run();
+        });
+    repository.setParallelSerializationThreshold(3);
+
+    repository.saveExecutionContexts(createStepExecutions(100, 2));
+    assertEquals(0, tasks.get());
+
+    List<StepExecution> stepExecutions = createStepExecutions(200, 3);
+    repository.saveExecutionContexts(stepExecutions);
+    assertEquals(3, tasks.get());
+
+    Map<Long, ExecutionContext> read = repository.getStepExecutionContexts(stepExecutions);
+    for (StepExecution stepExecution : stepExecutions) {
+      assertEquals(stepExecution.getId(), read.get(stepExecution.getId()).getLong("id"));
+    }
+  }
+
+  @Test
+  void largeBulkReadsAreDeserializedOnTheSerializationExecutor() {
+    AtomicInteger tasks = new AtomicInteger();
+    repository.setSerializationExecutor(
+        task -> {
+          tasks.incrementAndGet();
+          task.run();
+        });
+    List<StepExecution> stepExecutions = new ArrayList<>();
+    for (long id = 100; id < 120; id++) {
+      StepExecution stepExecution = new StepExecution("step" + id, jobExecution, id);
+      stepExecution.getExecutionContext().putLong("id", id);
+      stepExecutions.add(stepExecution);
+    }
+    repository.saveExecutionContexts(stepExecutions);
+    tasks.set(0);
+
+    Map<Long, ExecutionContext> read = repository.getStepExecutionContexts(stepExecutions);
+    assertEquals(20, tasks.get());
+    assertEquals(20, read.size());
+    for (long id = 100; id < 120; id++) {
+      assertEquals(id, read.get(id).getLong("id"));
+    }
+  }
+
+  @Test
+  void jobContextsAreReadInBulkAndMissingOnesAreEmpty() {
+    repository.setCache(new ExecutionContextCache(10));
+    jobExecution.getExecutionContext().putString("name", "first");
+    jobExecution.setStatus(BatchStatus.COMPLETED);
+    repository.saveExecutionContext(jobExecution);
+    JobExecution withoutContext =
+        new JobExecution(new JobInstance(2L, "job"), 11L, new JobParameters());
+
+    Map<Long, ExecutionContext> read =
+        repository.getJobExecutionContexts(List.of(jobExecution, withoutContext));
+    assertEquals("first", read.get(10L).getString("name"));
+    assertTrue(read.get(11L).isEmpty());
+
+    // the context of the finished execution is now served from the cache
+    repository.getJobExecutionContexts(List.of(jobExecution));
+    assertEquals(1, repository.getCache().getHitCount());
+  }
+
+  @Test
+  void unchangedContextIsNotWrittenAgain() {
+    repository.setSkipUnchangedWrites(true);
+    jobExecution.getExecutionContext().putString("name", "value");
+    repository.saveExecutionContext(jobExecution);
+    // changed behind the repository's back, so a write would be visible
+    mongo
+        .getDatastore()
+        .getDatabase()
+        .getCollection("ExecutionContext")
+        .updateOne(new Document(), new Document("$set", new Document("marker", true)));
+
+    repository.updateExecutionContext(jobExecution);
+    assertEquals(1, repository.getSkippedWriteCount());
+    assertEquals(
+        1,
+        mongo
+            .getDatastore()
+            .getDatabase()
+            .getCollection("ExecutionContext")
+            .countDocuments(new Document("marker", true)));
+
+    jobExecution.getExecutionContext().putString("name", "changed");
+    repository.updateExecutionContext(jobExecution);
+    assertEquals(1, repository.getSkippedWriteCount());
+    assertEquals("changed", repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void emptyFieldLevelUpdateIsNotCountedAsSkippedWrite() {
+    repository.setFormat(ExecutionContextFormat.BSON);
+    repository.setFieldLevelUpdates(true);
+    jobExecution.getExecutionContext().putString("name", "value");
+    repository.saveExecutionContext(jobExecution);
+
+    repository.updateExecutionContext(jobExecution);
+    assertEquals(0, repository.getSkippedWriteCount());
+    assertEquals("value", repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void onlyContextsOfFinishedExecutionsAreCached() {
+    repository.setCache(new ExecutionContextCache(10));
+    jobExecution.getExecutionContext().putString("name", "before");
+    repository.saveExecutionContext(jobExecution);
+
+    // running: always read from the database
+    repository.getExecutionContext(jobExecution);
+    assertEquals(0, repository.getCache().size());
+
+    jobExecution.setStatus(BatchStatus.COMPLETED);
+    repository.getExecutionContext(jobExecution);
+    assertEquals("before", repository.getExecutionContext(jobExecution).getString("name"));
+    assertEquals(1, repository.getCache().getHitCount());
+
+    // an update evicts the cached context
+    jobExecution.getExecutionContext().putString("name", "after");
+    repository.updateExecutionContext(jobExecution);
+    assertEquals("after", repository.getExecutionContext(jobExecution).getString("name"));
+  }
+
+  @Test
+  void missingContextIsEmpty() {
+    assertTrue(repository.getExecutionContext(jobExecution).isEmpty());
+  }
+
+  private List<StepExecution> createStepExecutions(long firstId, int count) {
+    List<StepExecution> stepExecutions = new ArrayList<>();
+    for (long id = firstId; id < firstId + count; id++) {
+      StepExecution stepExecution = new StepExecution("step" + id, jobExecution, id);
+      stepExecution.getExecutionContext().putLong("id", id);
+      stepExecutions.add(stepExecution);
+    }
+    return stepExecutions;
+  }
+
+  private long countContextFiles() {
+    return mongo
+        .getDatastore()
+        .getDatabase()
+        .getCollection(EXECUTION_CTX_FILES_BUCKET + ".files")
+        .countDocuments();
+  }
+}
@@ -0,0 +1,193 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_NAME_KEY;
+import static eu.europeana.batch.BatchConstants.RUNNING_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mongodb.client.MongoCollection;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.entity.JobExecutionEntity;
+import eu.europeana.batch.index.BatchIndexManager;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.repository.dao.NoSuchObjectException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+class JobExecutionRepositoryTest {
+
+  private EmbeddedMongo mongo;
+  private JobExecutionRepository repository;
+  private JobInstance jobInstance;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    repository = new JobExecutionRepository(mongo.getDatastore());
+    jobInstance =
+        new JobInstanceRepository(mongo.getDatastore())
+            .createJobInstance("job", new JobParameters());
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void runningJobExecutionsHaveAPartialIndex() {
+    new BatchIndexManager(mongo.getDatastore()).ensureIndexes();
+
+    assertTrue(
+        mongo
+            .getDatastore()
+            .getCollection(JobExecutionEntity.class)
+            .listIndexes()
+            .into(new ArrayList<>())
+            .stream()
+            .anyMatch(
+                index ->
+                    new Document(RUNNING_KEY, true)
+                        .equals(index.get("partialFilterExpression", Document.class))));
+  }
+
+  @Test
+  void jobNameAndRunningFlagAreStoredWithTheJobExecution() {
+    JobExecution jobExecution = launch();
+    Document stored = getStoredJobExecution(jobExecution);
+    assertEquals("job", stored.getString(JOB_NAME_KEY));
+    assertEquals(true, stored.getBoolean(RUNNING_KEY));
+
+    finish(jobExecution);
+
+    stored = getStoredJobExecution(jobExecution);
+    assertEquals("job", stored.getString(JOB_NAME_KEY));
+    assertFalse(stored.containsKey(RUNNING_KEY));
+  }
+
+  @Test
+  void runningJobExecutionsAreFoundByJobName() {
+    JobExecution running = launch();
+    finish(launch());
+    repository.backfillRunningFlags();
+
+    assertEquals(Set.of(running.getId()), findRunningJobExecutionIds());
+  }
+
+  @Test
+  void runningJobExecutionsOfOlderVersionsAreFoundBeforeAndAfterTheBackfill() {
+    JobExecution legacy = launch();
+    JobExecution finishedLegacy = launch();
+    finish(finishedLegacy);
+    unsetStoredFields(legacy);
+    unsetStoredFields(finishedLegacy);
+    JobExecution running = launch();
+
+    // found through the job instances with the job name until the backfill completes
+    assertEquals(Set.of(legacy.getId(), running.getId()), findRunningJobExecutionIds());
+
+    assertTrue(repository.backfillRunningFlags());
+
+    Document stored = getStoredJobExecution(legacy);
+    assertEquals("job", stored.getString(JOB_NAME_KEY));
+    assertEquals(true, stored.getBoolean(RUNNING_KEY));
+    assertFalse(getStoredJobExecution(finishedLegacy).containsKey(RUNNING_KEY));
+    assertEquals(Set.of(legacy.getId(), running.getId()), findRunningJobExecutionIds());
+  }
+
+  @Test
+  void runningJobExecutionsSavedByOlderVersionsAfterTheCheckAreFoundOnceItRunsAgain() {
+    JobExecution running = launch();
+    assertTrue(repository.checkRunningFlags());
+    assertEquals(Set.of(running.getId()), findRunningJobExecutionIds());
+
+    // saved meanwhile by a node still running an older version
+    JobExecution legacy = launch();
+    unsetStoredFields(legacy);
+
+    // the verified state is kept, so the lookup by job name misses it
+    assertEquals(Set.of(running.getId()), findRunningJobExecutionIds());
+
+    assertFalse(repository.checkRunningFlags());
+    assertEquals(Set.of(running.getId(), legacy.getId()), findRunningJobExecutionIds());
+
+    assertTrue(repository.backfillRunningFlags());
+    assertEquals(Set.of(running.getId(), legacy.getId()), findRunningJobExecutionIds());
+  }
+
+  @Test
+  void updateOfAStaleVersionIsRejected() {
+    JobExecution jobExecution = launch();
+    JobExecution concurrent = repository.getJobExecution(jobExecution.getId());
+    concurrent.setJobInstance(jobInstance);
+    repository.updateJobExecution(concurrent);
+
+    jobExecution.setStatus(BatchStatus.STOPPING);
+    OptimisticLockingFailureException e =
+        assertThrows(
+            OptimisticLockingFailureException.class,
+            () -> repository.updateJobExecution(jobExecution));
+    assertTrue(e.getMessage().endsWith("current version is 1"));
+    assertEquals(0, jobExecution.getVersion());
+    assertEquals(
+        BatchStatus.STARTING, repository.getJobExecution(jobExecution.getId()).getStatus());
+  }
+
+  @Test
+  void updateOfAMissingJobExecutionIsRejected() {
+    JobExecution jobExecution = new JobExecution(jobInstance, 404L, new JobParameters());
+    jobExecution.setVersion(0);
+
+    assertThrows(
+        NoSuchObjectException.class, () -> repository.updateJobExecution(jobExecution));
+  }
+
+  private Set<Long> findRunningJobExecutionIds() {
+    return repository.findRunningJobExecutions("job").stream()
+        .map(JobExecution::getId)
+        .collect(Collectors.toSet());
+  }
+
+  private MongoCollection<Document> getJobExecutions() {
+    return mongo.getDatastore().getDatabase().getCollection("JobExecution");
+  }
+
+  private Document getStoredJobExecution(JobExecution jobExecution) {
+    return getJobExecutions()
+        .find(new Document(JOB_EXECUTION_ID_KEY, jobExecution.getId()))
+        .first();
+  }
+
+  /** Makes the job execution look like one saved by a version without job name and flag */
+  private void unsetStoredFields(JobExecution jobExecution) {
+    getJobExecutions()
+        .updateOne(
+            new Document(JOB_EXECUTION_ID_KEY, jobExecution.getId()),
+            new Document("$unset", new Document(JOB_NAME_KEY, "").append(RUNNING_KEY, "")));
+  }
+
+  private JobExecution launch() {
+    JobExecution jobExecution = new JobExecution(jobInstance, new JobParameters());
+    repository.saveJobExecution(jobExecution);
+    return jobExecution;
+  }
+
+  private void finish(JobExecution jobExecution) {
+    jobExecution.setStatus(BatchStatus.COMPLETED);
+    jobExecution.setEndTime(LocalDateTime.now());
+    repository.updateJobExecution(jobExecution);
+  }
+}
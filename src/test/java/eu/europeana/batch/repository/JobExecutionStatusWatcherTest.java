@@ -0,0 +1,285 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.STATUS_KEY;
+import static eu.europeana.batch.BatchConstants.VERSION_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.repository.JobExecutionStatusWatcher.ExecutionStatus;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Simulates the change stream, which the embedded server doesn't support */
+class JobExecutionStatusWatcherTest {
+
+  private static final ExecutionStatus STARTED = new ExecutionStatus(1, "STARTED");
+  private static final ExecutionStatus STOPPING = new ExecutionStatus(2, "STOPPING");
+  private static final Duration RETRY_DELAY = Duration.ofMillis(1);
+
+  private EmbeddedMongo mongo;
+  private JobExecutionStatusWatcher watcher;
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    // not started, so events are simulated
+    watcher = new JobExecutionStatusWatcher(mongo.getDatastore());
+  }
+
+  @AfterEach
+  void tearDown() {
+    watcher.shutdown();
+    mongo.close();
+  }
+
+  @Test
+  void statusesAreReadFromTheDatabaseWhileTheStreamIsClosed() {
+    assertFalse(watcher.isStreamOpen());
+
+    assertEquals(STARTED, getStatus(STARTED));
+    assertEquals(STARTED, getStatus(STARTED));
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void statusIsReadOnceThenFollowedFromTheStream() {
+    watcher.setStreamOpen(true);
+
+    assertEquals(STARTED, getStatus(STARTED));
+    watcher.update(1L, STOPPING);
+    assertEquals(STOPPING, getStatus(STARTED));
+    // events received out of order don't go back to an older version
+    watcher.update(1L, STARTED);
+    assertEquals(STOPPING, getStatus(STARTED));
+
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void statusReadWhileTheStreamIsReopenedIsNotKept() {
+    watcher.setStreamOpen(true);
+
+    // the stream drops and reopens during the read, so the change to STOPPING may be missed
+    ExecutionStatus status =
+        watcher.getStatus(
+            1L,
+            id -> {
+              loads.incrementAndGet();
+              watcher.setStreamOpen(false);
+              watcher.setStreamOpen(true);
+              return STARTED;
+            });
+    assertEquals(STARTED, status);
+
+    assertEquals(STOPPING, getStatus(STOPPING));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void statusesAreDroppedWhenTheStreamCloses() {
+    watcher.setStreamOpen(true);
+    getStatus(STARTED);
+
+    watcher.setStreamOpen(false);
+    watcher.setStreamOpen(true);
+
+    assertEquals(STOPPING, getStatus(STOPPING));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void eventsOfTheStreamUpdateTheStatuses() {
+    List<List<Document>> pipelines = new ArrayList<>();
+    List<ExecutionStatus> statuses = new ArrayList<>();
+    watcher =
+        new JobExecutionStatusWatcher(
+            pipeline -> {
+              pipelines.add(pipeline);
+              // the job execution of the second update was deleted before it was looked up
+              return new EventCursor(
+                  List.of(event(STOPPING), event(null)),
+                  () -> {
+                    statuses.add(getStatus(STARTED));
+                    watcher.shutdown();
+                  });
+            },
+            RETRY_DELAY);
+
+    watcher.watch();
+
+    assertEquals(List.of(STOPPING), statuses);
+    assertEquals(0, loads.get());
+    assertFalse(watcher.isStreamOpen());
+    // only the fields read from the job executions looked up for updates are kept
+    assertEquals(
+        new Document("fullDocument." + JOB_EXECUTION_ID_KEY, 1)
+            .append("fullDocument." + VERSION_KEY, 1)
+            .append("fullDocument." + STATUS_KEY, 1),
+        pipelines.get(0).get(1).get("$project"));
+  }
+
+  @Test
+  void streamIsReopenedAfterAnError() {
+    AtomicInteger opens = new AtomicInteger();
+    List<ExecutionStatus> statuses = new ArrayList<>();
+    watcher =
+        new JobExecutionStatusWatcher(
+            pipeline -> {
+              if (opens.incrementAndGet() == 1) {
+                throw new MongoException("connection reset");
+              }
+              return new EventCursor(
+                  List.of(event(STOPPING)),
+                  () -> {
+                    statuses.add(getStatus(STARTED));
+                    watcher.shutdown();
+                  });
+            },
+            RETRY_DELAY);
+
+    watcher.watch();
+
+    assertEquals(2, opens.get());
+    assertEquals(List.of(STOPPING), statuses);
+  }
+
+  @Test
+  void watcherStopsIfChangeStreamsAreNotSupported() {
+    AtomicInteger opens = new AtomicInteger();
+    watcher =
+        new JobExecutionStatusWatcher(
+            pipeline -> {
+              opens.incrementAndGet();
+              throw changeStreamsNotSupported();
+            },
+            RETRY_DELAY);
+
+    assertTimeoutPreemptively(Duration.ofSeconds(5), watcher::watch);
+
+    assertEquals(1, opens.get());
+    assertFalse(watcher.isStreamOpen());
+    assertEquals(STARTED, getStatus(STARTED));
+  }
+
+  @Test
+  void watcherIsStartedOnce() {
+    watcher =
+        new JobExecutionStatusWatcher(
+            pipeline -> {
+              throw changeStreamsNotSupported();
+            },
+            RETRY_DELAY);
+
+    watcher.start();
+
+    assertThrows(IllegalStateException.class, watcher::start);
+  }
+
+  private static ChangeStreamDocument<Document> event(ExecutionStatus status) {
+    Document jobExecution =
+        status == null
+            ? null
+            : new Document(JOB_EXECUTION_ID_KEY, 1L)
+                .append(VERSION_KEY, status.version())
+                .append(STATUS_KEY, status.status());
+    return new ChangeStreamDocument<>(
+        "update", null, null, null, jobExecution, null, null, null, null, null, null, null, null,
+        null);
+  }
+
+  private static MongoCommandException changeStreamsNotSupported() {
+    return new MongoCommandException(
+        new BsonDocument("ok", new BsonInt32(0))
+            .append("code", new BsonInt32(40573))
+            .append("errmsg", new BsonString("$changeStream is only supported on replica sets")),
+        new ServerAddress());
+  }
+
+  private ExecutionStatus getStatus(ExecutionStatus inDatabase) {
+    return watcher.getStatus(
+        1L,
+        id -> {
+          loads.incrementAndGet();
+          return inDatabase;
+        });
+  }
+
+  /** Returns the events, then calls back once there are no more */
+  private static class EventCursor
+      implements MongoChangeStreamCursor<ChangeStreamDocument<Document>> {
+
+    private final Iterator<ChangeStreamDocument<Document>> events;
+    private final Runnable onEnd;
+
+    EventCursor(List<ChangeStreamDocument<Document>> events, Runnable onEnd) {
+      this.events = events.iterator();
+      this.onEnd = onEnd;
+    }
+
+    @Override
+    public ChangeStreamDocument<Document> tryNext() {
+      if (events.hasNext()) {
+        return events.next();
+      }
+      onEnd.run();
+      return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return events.hasNext();
+    }
+
+    @Override
+    public ChangeStreamDocument<Document> next() {
+      return events.next();
+    }
+
+    @Override
+    public int available() {
+      return 0;
+    }
+
+    @Override
+    public BsonDocument getResumeToken() {
+      return null;
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+      return null;
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      // nothing to release
+    }
+  }
+}
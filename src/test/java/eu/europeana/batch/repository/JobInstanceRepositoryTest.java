@@ -0,0 +1,228 @@
+package eu.europeana.batch.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mongodb.MongoWriteException;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.entity.JobInstanceEntity;
+import eu.europeana.batch.index.BatchIndexManager;
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+
+class JobInstanceRepositoryTest {
+
+  private EmbeddedMongo mongo;
+  private JobInstanceRepository repository;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    repository = new JobInstanceRepository(mongo.getDatastore());
+    repository.setJobNameRegistrySearch(true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void duplicateJobInstanceIsRejectedWithoutUniqueIndex() {
+    JobParameters parameters = new JobParametersBuilder().addString("file", "a").toJobParameters();
+    repository.createJobInstance("import", parameters);
+
+    assertThrows(
+        IllegalStateException.class, () -> repository.createJobInstance("import", parameters));
+    assertEquals(1, repository.getJobInstances("import", 0, 10).size());
+  }
+
+  @Test
+  void duplicateJobInstanceIsRejectedByUniqueIndex() {
+    new BatchIndexManager(mongo.getDatastore()).ensureIndexes();
+    assertTrue(
+        mongo
+            .getDatastore()
+            .getCollection(JobInstanceEntity.class)
+            .listIndexes()
+            .into(new ArrayList<>())
+            .stream()
+            .anyMatch(index -> index.getBoolean("unique", false)));
+    JobParameters parameters = new JobParametersBuilder().addString("file", "a").toJobParameters();
+    repository.createJobInstance("import", parameters);
+
+    assertThrows(
+        IllegalStateException.class, () -> repository.createJobInstance("import", parameters));
+    assertEquals(1, repository.getJobInstances("import", 0, 10).size());
+  }
+
+  @Test
+  void uniqueIndexBuiltAfterTheFirstCreationIsUsedOnceChecked() {
+    JobParameters parameters = new JobParametersBuilder().addString("file", "a").toJobParameters();
+    repository.createJobInstance("import", parameters);
+    IllegalStateException lookedUp =
+        assertThrows(
+            IllegalStateException.class, () -> repository.createJobInstance("import", parameters));
+    assertNull(lookedUp.getCause());
+
+    // e.g. when indexes are ensured in the background at startup
+    new BatchIndexManager(mongo.getDatastore()).ensureIndexes();
+    IllegalStateException stillLookedUp =
+        assertThrows(
+            IllegalStateException.class, () -> repository.createJobInstance("import", parameters));
+    assertNull(stillLookedUp.getCause());
+
+    assertTrue(repository.checkUniqueJobKeyIndex());
+    IllegalStateException inserted =
+        assertThrows(
+            IllegalStateException.class, () -> repository.createJobInstance("import", parameters));
+    assertInstanceOf(MongoWriteException.class, inserted.getCause());
+    assertEquals(1, repository.getJobInstances("import", 0, 10).size());
+  }
+
+  @Test
+  void searchMatchesARegularExpressionWithoutTheRegistrySearch() {
+    repository.setJobNameRegistrySearch(false);
+    repository.createJobInstance("import-records", new JobParameters());
+    repository.createJobInstance("export-records", new JobParameters());
+    repository.registerJobNames();
+
+    assertEquals(List.of("import-records"), findJobNames("im.ort"));
+    assertEquals(List.of("export-records", "import-records"), findJobNames("rec.rds"));
+    assertEquals(List.of(), findJobNames("import*rec"));
+  }
+
+  @Test
+  void registryOfANewDatabaseIsUsedAfterTheCheck() {
+    assertTrue(repository.checkJobNameRegistry());
+    repository.createJobInstance("import-records", new JobParameters());
+    assertEquals(List.of("import-records"), findJobNames("import"));
+
+    // only found through the registry
+    deleteRegisteredJobName("import-records");
+    assertEquals(List.of(), findJobNames("import"));
+    assertFalse(repository.checkJobNameRegistry());
+    assertEquals(List.of("import-records"), findJobNames("import"));
+  }
+
+  @Test
+  void searchMatchesLiteralSegmentsWithWildcards() {
+    repository.createJobInstance("import-records", new JobParameters());
+    repository.createJobInstance("export-records", new JobParameters());
+    repository.createJobInstance("import.data", new JobParameters());
+    repository.registerJobNames();
+
+    assertEquals(List.of("import-records"), findJobNames("mport-rec*s"));
+    assertEquals(List.of("import-records", "import.data"), findJobNames("import*"));
+    // '.' is not a regular expression
+    assertEquals(List.of("import.data"), findJobNames("t.d"));
+  }
+
+  @Test
+  void searchFindsNamesRegisteredByOtherNodes() {
+    repository.createJobInstance("import-records", new JobParameters());
+    repository.registerJobNames();
+
+    new JobInstanceRepository(mongo.getDatastore())
+        .createJobInstance("import-data", new JobParameters());
+
+    assertEquals(List.of("import-data", "import-records"), findJobNames("import"));
+  }
+
+  @Test
+  void searchWithOnlyWildcardsFindsAllJobNames() {
+    repository.createJobInstance("import-records", new JobParameters());
+    repository.createJobInstance("export", new JobParameters());
+    List<String> allJobNames = List.of("export", "import-records");
+
+    assertEquals(allJobNames, findJobNames("*"));
+    assertEquals(allJobNames, findJobNames("**"));
+    repository.registerJobNames();
+    assertEquals(allJobNames, findJobNames("*"));
+    assertEquals(allJobNames, findJobNames("**"));
+  }
+
+  @Test
+  void searchMatchesNamesTooShortForTrigrams() {
+    repository.createJobInstance("import-records", new JobParameters());
+    repository.createJobInstance("export", new JobParameters());
+    repository.createJobInstance("ab", new JobParameters());
+    repository.registerJobNames();
+
+    assertEquals(List.of("export", "import-records"), findJobNames("or"));
+    assertEquals(List.of("ab"), findJobNames("ab"));
+    assertEquals(List.of("export"), findJobNames("e*t"));
+    assertEquals(List.of(), findJobNames("x*e"));
+  }
+
+  @Test
+  void searchFindsNamesMissingFromTheRegistryOnceTheyAreRegistered() {
+    repository.createJobInstance("import-records", new JobParameters());
+    // matched with a regular expression until the registry is backfilled
+    assertEquals(List.of("import-records"), findJobNames("import"));
+    repository.registerJobNames();
+
+    // created by a node running an older version, which doesn't register the name
+    new JobInstanceRepository(mongo.getDatastore())
+        .createJobInstance("import-data", new JobParameters());
+    deleteRegisteredJobName("import-data");
+
+    // the registry is not checked again on every search
+    assertEquals(List.of("import-records"), findJobNames("import"));
+    repository.registerJobNames();
+    assertEquals(List.of("import-data", "import-records"), findJobNames("import"));
+  }
+
+  @Test
+  void searchPagesThroughMostRecentJobInstancesFirst() {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      String jobName = i % 2 == 0 ? "import" : "import-data";
+      JobParameters parameters =
+          new JobParametersBuilder().addLong("run", (long) i).toJobParameters();
+      ids.add(repository.createJobInstance(jobName, parameters).getId());
+    }
+    List<Long> mostRecentFirst = ids.reversed();
+
+    assertEquals(mostRecentFirst, findJobInstanceIdsInPages("import"));
+    repository.registerJobNames();
+    assertEquals(mostRecentFirst, findJobInstanceIdsInPages("import"));
+  }
+
+  private void deleteRegisteredJobName(String jobName) {
+    mongo
+        .getDatastore()
+        .getDatabase()
+        .getCollection("JobName")
+        .deleteOne(new Document("_id", jobName));
+  }
+
+  /** Finds the job instances two at a time */
+  private List<Long> findJobInstanceIdsInPages(String jobName) {
+    List<Long> ids = new ArrayList<>();
+    for (int start = 0; start < 6; start += 2) {
+      List<JobInstance> page = repository.findJobInstancesByName(jobName, start, 2);
+      assertTrue(page.size() <= 2);
+      page.forEach(jobInstance -> ids.add(jobInstance.getId()));
+    }
+    return ids;
+  }
+
+  private List<String> findJobNames(String jobName) {
+    return repository.findJobInstancesByName(jobName, 0, 10).stream()
+        .map(JobInstance::getJobName)
+        .sorted()
+        .toList();
+  }
+}
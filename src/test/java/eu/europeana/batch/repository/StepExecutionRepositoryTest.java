@@ -0,0 +1,407 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.EXIT_MESSAGE_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.JOB_INSTANCE_ID_KEY;
+import static eu.europeana.batch.BatchConstants.READ_COUNT_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_EXECUTION_ID_KEY;
+import static eu.europeana.batch.BatchConstants.STEP_NAME_KEY;
+import static eu.europeana.batch.BatchConstants.VERSION_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.mongodb.client.MongoCollection;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.id.PooledSequenceGenerator;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.repository.dao.NoSuchObjectException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+class StepExecutionRepositoryTest {
+
+  private EmbeddedMongo mongo;
+  private JobExecutionRepository jobExecutionRepository;
+  private StepExecutionRepository stepExecutionRepository;
+
+  /** Writes step executions behind the back of the prefetching repository */
+  private StepExecutionRepository otherStepExecutionRepository;
+
+  private JobInstance jobInstance;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    jobExecutionRepository = new JobExecutionRepository(mongo.getDatastore());
+    stepExecutionRepository = new StepExecutionRepository(mongo.getDatastore());
+    stepExecutionRepository.setStepHistoryPrefetch(true);
+    jobExecutionRepository.setStepExecutionRepository(stepExecutionRepository);
+    otherStepExecutionRepository = new StepExecutionRepository(mongo.getDatastore());
+
+    jobInstance =
+        new JobInstanceRepository(mongo.getDatastore())
+            .createJobInstance("job", new JobParameters());
+    JobExecution first = launch();
+    saveStepExecution(otherStepExecutionRepository, first);
+    finish(first);
+    assertTrue(stepExecutionRepository.backfillJobInstanceIds());
+  }
+
+  @AfterEach
+  void tearDown() {
+    mongo.close();
+  }
+
+  @Test
+  void lookupsOfALaunchAreAnsweredFromItsSnapshot() {
+    launch();
+    assertEquals(1, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+
+    // a step execution the snapshot doesn't know about, e.g. saved by another JVM
+    JobExecution other = new JobExecution(jobInstance, new JobParameters());
+    new JobExecutionRepository(mongo.getDatastore()).saveJobExecution(other);
+    saveStepExecution(otherStepExecutionRepository, other);
+
+    assertEquals(1, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+  }
+
+  @Test
+  void stepsSavedDuringTheLaunchAreReadAgain() {
+    JobExecution restart = launch();
+    assertEquals(1, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+
+    StepExecution stepExecution = saveStepExecution(stepExecutionRepository, restart);
+
+    assertEquals(2, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+    assertEquals(
+        stepExecution.getId(),
+        stepExecutionRepository.getLastStepExecution(jobInstance, "step").getId());
+  }
+
+  @Test
+  void snapshotIsDroppedWhenTheLaunchFinishes() {
+    JobExecution restart = launch();
+    assertEquals(1, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+    saveStepExecution(otherStepExecutionRepository, restart);
+
+    finish(restart);
+
+    assertEquals(2, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+  }
+
+  @Test
+  void snapshotIsNotSharedWithTheNextLaunch() {
+    JobExecution restart = launch();
+    assertEquals(1, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+    saveStepExecution(otherStepExecutionRepository, restart);
+
+    // the restart crashed without finishing, and the job instance is launched again
+    launch();
+
+    assertEquals(2, stepExecutionRepository.countStepExecutions(jobInstance, "step"));
+  }
+
+  @Test
+  void stepExecutionsOfAllJobExecutionsAreCounted() {
+    saveStepExecution(otherStepExecutionRepository, launch());
+    saveStepExecution(otherStepExecutionRepository, launch());
+
+    // before the backfill, through the job executions of the instance, and after it
+    StepExecutionRepository notBackfilled = new StepExecutionRepository(mongo.getDatastore());
+    StepExecutionRepository backfilled = new StepExecutionRepository(mongo.getDatastore());
+    assertTrue(backfilled.backfillJobInstanceIds());
+    for (StepExecutionRepository repository : List.of(notBackfilled, backfilled)) {
+      assertEquals(3, repository.countStepExecutions(jobInstance, "step"));
+      assertEquals(0, repository.countStepExecutions(jobInstance, "other"));
+    }
+  }
+
+  @Test
+  void lastStepExecutionIsTheMostRecentlyStartedOfAllJobExecutions() {
+    LocalDateTime start = LocalDateTime.now().plusHours(1);
+    saveStepExecution(otherStepExecutionRepository, launch(), start.plusHours(1));
+    // of the job execution launched last, but started earlier
+    saveStepExecution(otherStepExecutionRepository, launch(), start);
+    // started at the same time as the first, the highest id wins
+    JobExecution last = launch();
+    StepExecution expected =
+        saveStepExecution(otherStepExecutionRepository, last, start.plusHours(1));
+
+    // before the backfill, through the job executions of the instance, and after it
+    StepExecutionRepository notBackfilled = new StepExecutionRepository(mongo.getDatastore());
+    StepExecutionRepository backfilled = new StepExecutionRepository(mongo.getDatastore());
+    assertTrue(backfilled.backfillJobInstanceIds());
+    for (StepExecutionRepository repository : List.of(notBackfilled, backfilled)) {
+      StepExecution found = repository.getLastStepExecution(jobInstance, "step");
+      assertEquals(expected.getId(), found.getId());
+      assertEquals(last.getId(), found.getJobExecution().getId());
+      assertNull(repository.getLastStepExecution(jobInstance, "other"));
+    }
+  }
+
+  @Test
+  void updateOfAMissingStepExecutionIsRejected() {
+    StepExecution stepExecution = new StepExecution("step", launch(), 404L);
+    stepExecution.setVersion(0);
+
+    assertThrows(
+        NoSuchObjectException.class,
+        () -> stepExecutionRepository.updateStepExecution(stepExecution));
+  }
+
+  @Test
+  void stepExecutionsSavedTogetherGetAContiguousRangeOfIds() {
+    AtomicInteger reservations = new AtomicInteger();
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+    repository.setIdGenerator(
+        new PooledSequenceGenerator(mongo.getDatastore()) {
+          @Override
+          protected long reserve(String internalType, int count) {
+            reservations.incrementAndGet();
+            return super.reserve(internalType, count);
+          }
+        });
+    JobExecution jobExecution = launch();
+    List<StepExecution> stepExecutions = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      StepExecution stepExecution = jobExecution.createStepExecution("partition" + i);
+      stepExecution.setStartTime(LocalDateTime.now());
+      stepExecutions.add(stepExecution);
+    }
+
+    repository.saveStepExecutions(stepExecutions);
+
+    assertEquals(1, reservations.get());
+    long firstId = stepExecutions.get(0).getId();
+    JobExecution read = new JobExecution(jobExecution.getId());
+    repository.addStepExecutions(read);
+    for (int i = 0; i < 5; i++) {
+      StepExecution stepExecution = stepExecutions.get(i);
+      assertEquals(firstId + i, stepExecution.getId());
+      assertEquals(0, stepExecution.getVersion());
+      assertEquals(
+          "partition" + i,
+          repository.getStepExecution(read, stepExecution.getId()).getStepName());
+    }
+    assertEquals(5, read.getStepExecutions().size());
+  }
+
+  @Test
+  void prefetchStartsOnceAllStepExecutionsHaveTheirJobInstanceId() {
+    // stored by an older version, without job instance id
+    getStepExecutions()
+        .updateMany(new Document(), new Document("$unset", new Document(JOB_INSTANCE_ID_KEY, "")));
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+    repository.setStepHistoryPrefetch(true);
+    jobExecutionRepository.setStepExecutionRepository(repository);
+
+    // the check on the first lookup finds it, so lookups are not answered from a snapshot
+    JobExecution restart = launch();
+    assertEquals(1, repository.countStepExecutions(jobInstance, "step"));
+    saveStepExecution(otherStepExecutionRepository, restart);
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    finish(restart);
+
+    assertTrue(repository.backfillJobInstanceIds());
+
+    JobExecution next = launch();
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    saveStepExecution(otherStepExecutionRepository, next);
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+  }
+
+  @Test
+  void stepExecutionsOfOlderVersionsAreFoundBeforeAndAfterTheBackfill() {
+    JobExecution restart = launch();
+    StepExecution legacy = saveStepExecution(otherStepExecutionRepository, restart);
+    finish(restart);
+    // stored by an older version, without job instance id
+    getStepExecutions()
+        .updateOne(
+            new Document(STEP_EXECUTION_ID_KEY, legacy.getId()),
+            new Document("$unset", new Document(JOB_INSTANCE_ID_KEY, "")));
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+
+    assertFalse(repository.checkJobInstanceIds());
+    // found through the job executions of the instance until the backfill completes
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    assertEquals(legacy.getId(), repository.getLastStepExecution(jobInstance, "step").getId());
+
+    assertTrue(repository.backfillJobInstanceIds());
+
+    assertEquals(
+        jobInstance.getId().longValue(),
+        getStoredStepExecution(legacy).getLong(JOB_INSTANCE_ID_KEY));
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    assertEquals(legacy.getId(), repository.getLastStepExecution(jobInstance, "step").getId());
+  }
+
+  @Test
+  void firstLookupChecksTheJobInstanceIdsAndKeepsTheResult() {
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+    assertEquals(1, repository.countStepExecutions(jobInstance, "step"));
+
+    // stored meanwhile by an older version, without job instance id
+    getStepExecutions()
+        .updateMany(new Document(), new Document("$unset", new Document(JOB_INSTANCE_ID_KEY, "")));
+
+    // not checked again, so the lookups by job instance id miss it
+    assertEquals(0, repository.countStepExecutions(jobInstance, "step"));
+  }
+
+  @Test
+  void stepExecutionsSavedByOlderVersionsAfterTheCheckAreFoundOnceItRunsAgain() {
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+    assertTrue(repository.checkJobInstanceIds());
+
+    JobExecution restart = launch();
+    StepExecution legacy = saveStepExecution(otherStepExecutionRepository, restart);
+    // saved meanwhile by a node still running an older version
+    getStepExecutions()
+        .updateOne(
+            new Document(STEP_EXECUTION_ID_KEY, legacy.getId()),
+            new Document("$unset", new Document(JOB_INSTANCE_ID_KEY, "")));
+
+    // the verified state is kept, so the lookups by job instance id miss it
+    assertEquals(1, repository.countStepExecutions(jobInstance, "step"));
+
+    assertFalse(repository.checkJobInstanceIds());
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    assertEquals(legacy.getId(), repository.getLastStepExecution(jobInstance, "step").getId());
+
+    assertTrue(repository.backfillJobInstanceIds());
+    assertEquals(2, repository.countStepExecutions(jobInstance, "step"));
+    assertEquals(legacy.getId(), repository.getLastStepExecution(jobInstance, "step").getId());
+  }
+
+  @Test
+  void savingAStepExecutionWithoutJobInstanceIdStopsTheLookupsByIt() {
+    StepExecutionRepository repository = new StepExecutionRepository(mongo.getDatastore());
+    assertTrue(repository.checkJobInstanceIds());
+
+    StepExecution orphan = new JobExecution(-1L).createStepExecution("step");
+    repository.saveStepExecution(orphan);
+    assertEquals(1, repository.countStepExecutions(jobInstance, "step"));
+
+    assertFalse(repository.checkJobInstanceIds());
+    assertTrue(repository.backfillJobInstanceIds());
+  }
+
+  @Test
+  void deltaUpdateIncrementsCountsByTheirDifference() {
+    stepExecutionRepository.setDeltaUpdates(true);
+    StepExecution stepExecution = saveStepExecution(stepExecutionRepository, launch());
+    // changed behind the repository's back, so an overwrite would be visible
+    setStoredField(stepExecution, READ_COUNT_KEY, 100L);
+    setStoredField(stepExecution, EXIT_MESSAGE_KEY, "elsewhere");
+
+    stepExecution.setReadCount(5);
+    stepExecutionRepository.updateStepExecution(stepExecution);
+
+    Document stored = getStoredStepExecution(stepExecution);
+    assertEquals(105L, stored.getLong(READ_COUNT_KEY));
+    assertEquals("elsewhere", stored.getString(EXIT_MESSAGE_KEY));
+    assertEquals(stepExecution.getVersion(), stored.getInteger(VERSION_KEY));
+  }
+
+  @Test
+  void stepExecutionWithoutRememberedStateIsWrittenInFull() {
+    stepExecutionRepository.setDeltaUpdates(true);
+    StepExecution stepExecution = saveStepExecution(stepExecutionRepository, launch());
+    // the remembered states are dropped, as when the LRU evicts one
+    stepExecutionRepository.setDeltaUpdates(true);
+    // stored by an older version, without job instance id
+    getStepExecutions()
+        .updateOne(
+            new Document(STEP_EXECUTION_ID_KEY, stepExecution.getId()),
+            new Document("$unset", new Document(JOB_INSTANCE_ID_KEY, "")));
+    setStoredField(stepExecution, READ_COUNT_KEY, 100L);
+
+    stepExecution.setReadCount(5);
+    stepExecutionRepository.updateStepExecution(stepExecution);
+
+    Document stored = getStoredStepExecution(stepExecution);
+    assertEquals(5L, stored.getLong(READ_COUNT_KEY));
+    assertEquals("step", stored.getString(STEP_NAME_KEY));
+    assertEquals(
+        stepExecution.getJobExecutionId().longValue(), stored.getLong(JOB_EXECUTION_ID_KEY));
+  }
+
+  @Test
+  void deltaUpdateOfAStaleVersionIsRejected() {
+    stepExecutionRepository.setDeltaUpdates(true);
+    JobExecution jobExecution = launch();
+    StepExecution stepExecution = saveStepExecution(stepExecutionRepository, jobExecution);
+    StepExecution concurrent =
+        otherStepExecutionRepository.getStepExecution(jobExecution, stepExecution.getId());
+    concurrent.setReadCount(3);
+    otherStepExecutionRepository.updateStepExecution(concurrent);
+
+    stepExecution.setReadCount(5);
+    assertThrows(
+        OptimisticLockingFailureException.class,
+        () -> stepExecutionRepository.updateStepExecution(stepExecution));
+
+    // the remembered state was dropped, so the refreshed step execution is written in full
+    stepExecution.setVersion(concurrent.getVersion());
+    stepExecution.setReadCount(7);
+    stepExecutionRepository.updateStepExecution(stepExecution);
+    assertEquals(7L, getStoredStepExecution(stepExecution).getLong(READ_COUNT_KEY));
+  }
+
+  private MongoCollection<Document> getStepExecutions() {
+    return mongo.getDatastore().getDatabase().getCollection("StepExecution");
+  }
+
+  private Document getStoredStepExecution(StepExecution stepExecution) {
+    return getStepExecutions()
+        .find(new Document(STEP_EXECUTION_ID_KEY, stepExecution.getId()))
+        .first();
+  }
+
+  private void setStoredField(StepExecution stepExecution, String fieldName, Object value) {
+    getStepExecutions()
+        .updateOne(
+            new Document(STEP_EXECUTION_ID_KEY, stepExecution.getId()),
+            new Document("$set", new Document(fieldName, value)));
+  }
+
+  private JobExecution launch() {
+    JobExecution jobExecution = new JobExecution(jobInstance, new JobParameters());
+    jobExecutionRepository.saveJobExecution(jobExecution);
+    return jobExecution;
+  }
+
+  private void finish(JobExecution jobExecution) {
+    jobExecution.setStatus(BatchStatus.COMPLETED);
+    jobExecution.setEndTime(LocalDateTime.now());
+    jobExecutionRepository.updateJobExecution(jobExecution);
+  }
+
+  private static StepExecution saveStepExecution(
+      StepExecutionRepository repository, JobExecution jobExecution) {
+    return saveStepExecution(repository, jobExecution, LocalDateTime.now());
+  }
+
+  private static StepExecution saveStepExecution(
+      StepExecutionRepository repository, JobExecution jobExecution, LocalDateTime startTime) {
+    StepExecution stepExecution = jobExecution.createStepExecution("step");
+    stepExecution.setStartTime(startTime);
+    repository.saveStepExecution(stepExecution);
+    return stepExecution;
+  }
+}
@@ -0,0 +1,192 @@
+package eu.europeana.batch.repository;
+
+import static eu.europeana.batch.BatchConstants.UPDATE_TOKEN_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.mongodb.client.model.Filters;
+import eu.europeana.batch.EmbeddedMongo;
+import eu.europeana.batch.entity.StepExecutionEntity;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+class StepExecutionUpdateBatcherTest {
+
+  private static final int THREADS = 8;
+
+  private EmbeddedMongo mongo;
+  private StepExecutionRepository repository;
+  private JobExecution jobExecution;
+  private ExecutorService executor;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    repository = new StepExecutionRepository(mongo.getDatastore());
+    JobInstance jobInstance =
+        new JobInstanceRepository(mongo.getDatastore())
+            .createJobInstance("job", new JobParameters());
+    jobExecution = new JobExecution(jobInstance, new JobParameters());
+    new JobExecutionRepository(mongo.getDatastore()).saveJobExecution(jobExecution);
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+    mongo.close();
+  }
+
+  @Test
+  void concurrentUpdatesAreAllWritten() throws Exception {
+    repository.setUpdateBatcher(new StepExecutionUpdateBatcher(mongo.getDatastore()));
+    List<StepExecution> stepExecutions = saveStepExecutions();
+
+    // updates submitted while a batch is written are handed over to the next leader
+    List<Object> results =
+        runTogether(
+            stepExecutions,
+            stepExecution -> {
+              for (int i = 0; i < 20; i++) {
+                stepExecution.setWriteCount(i + 1);
+                stepExecution.setLastUpdated(LocalDateTime.now());
+                repository.updateStepExecution(stepExecution);
+              }
+            });
+
+    for (int i = 0; i < THREADS; i++) {
+      assertNull(results.get(i));
+      StepExecution stored =
+          repository.getStepExecution(jobExecution, stepExecutions.get(i).getId());
+      assertEquals(20, stored.getVersion());
+      assertEquals(20, stored.getWriteCount());
+    }
+    assertEquals(0, countUpdateTokens());
+  }
+
+  @Test
+  void eachUpdateOfABatchGetsItsOwnResult() throws Exception {
+    // long enough for all updates to join the first batch
+    repository.setUpdateBatcher(
+        new StepExecutionUpdateBatcher(mongo.getDatastore(), Duration.ofMillis(200)));
+    List<StepExecution> stepExecutions = saveStepExecutions();
+    // updated by another JVM, so the next update of this JVM is stale
+    StepExecution stale = stepExecutions.get(3);
+    repository.updateStepExecution(copy(stale));
+
+    List<Object> results =
+        runTogether(
+            stepExecutions,
+            stepExecution -> {
+              stepExecution.setLastUpdated(LocalDateTime.now());
+              repository.updateStepExecution(stepExecution);
+            });
+
+    for (int i = 0; i < THREADS; i++) {
+      StepExecution stepExecution = stepExecutions.get(i);
+      if (stepExecution == stale) {
+        assertInstanceOf(OptimisticLockingFailureException.class, results.get(i));
+      } else {
+        assertNull(results.get(i));
+        assertEquals(
+            1, repository.getStepExecution(jobExecution, stepExecution.getId()).getVersion());
+      }
+    }
+    // the tokens read to resolve the results are removed as well
+    assertEquals(0, countUpdateTokens());
+  }
+
+  @Test
+  void staleUpdateSettingTheSameVersionAndTimeIsRejected() {
+    repository.setUpdateBatcher(new StepExecutionUpdateBatcher(mongo.getDatastore()));
+    StepExecution stepExecution = saveStepExecutions().get(0);
+    StepExecution concurrent = copy(stepExecution);
+    repository.updateStepExecution(concurrent);
+
+    // the stale update sets the version and last updated time the concurrent one already set
+    stepExecution.setLastUpdated(concurrent.getLastUpdated());
+    assertThrows(
+        OptimisticLockingFailureException.class,
+        () -> repository.updateStepExecution(stepExecution));
+  }
+
+  private List<StepExecution> saveStepExecutions() {
+    List<StepExecution> stepExecutions = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      StepExecution stepExecution = jobExecution.createStepExecution("step" + i);
+      stepExecution.setStartTime(LocalDateTime.now());
+      stepExecutions.add(stepExecution);
+    }
+    repository.saveStepExecutions(stepExecutions);
+    return stepExecutions;
+  }
+
+  private long countUpdateTokens() {
+    return mongo
+        .getDatastore()
+        .getCollection(StepExecutionEntity.class)
+        .countDocuments(Filters.exists(UPDATE_TOKEN_KEY));
+  }
+
+  private static StepExecution copy(StepExecution stepExecution) {
+    StepExecution copy =
+        new StepExecution(
+            stepExecution.getStepName(), stepExecution.getJobExecution(), stepExecution.getId());
+    copy.setVersion(stepExecution.getVersion());
+    copy.setStartTime(stepExecution.getStartTime());
+    copy.setLastUpdated(LocalDateTime.now());
+    return copy;
+  }
+
+  /**
+   * Runs the action on every step execution, each on its own thread, starting together
+   *
+   * @return null for each action that succeeded, or the exception it threw
+   */
+  private List<Object> runTogether(List<StepExecution> stepExecutions, StepAction action)
+      throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Object>> futures = new ArrayList<>();
+    for (StepExecution stepExecution : stepExecutions) {
+      Callable<Object> task =
+          () -> {
+            start.await();
+            try {
+              action.run(stepExecution);
+              return null;
+            } catch (RuntimeException e) {
+              return e;
+            }
+          };
+      futures.add(executor.submit(task));
+    }
+    start.countDown();
+
+    List<Object> results = new ArrayList<>();
+    for (Future<Object> future : futures) {
+      results.add(future.get());
+    }
+    return results;
+  }
+
+  private interface StepAction {
+    void run(StepExecution stepExecution);
+  }
+}
@@ -0,0 +1,185 @@
+package eu.europeana.batch.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import eu.europeana.batch.EmbeddedMongo;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+class StepExecutionWriteBehindTest {
+
+  private EmbeddedMongo mongo;
+  private StepExecutionRepository stepExecutionRepository;
+  private ExecutionContextRepository executionContextRepository;
+  private StepExecutionWriteBehind writeBehind;
+
+  /** Reads and writes the database directly, like another JVM */
+  private StepExecutionRepository otherStepExecutionRepository;
+
+  private StepExecution stepExecution;
+
+  @BeforeEach
+  void setUp() {
+    mongo = new EmbeddedMongo();
+    stepExecutionRepository = new StepExecutionRepository(mongo.getDatastore());
+    executionContextRepository = new ExecutionContextRepository(mongo.getDatastore());
+    otherStepExecutionRepository = new StepExecutionRepository(mongo.getDatastore());
+
+    JobInstance jobInstance =
+        new JobInstanceRepository(mongo.getDatastore())
+            .createJobInstance("job", new JobParameters());
+    JobExecution jobExecution = new JobExecution(jobInstance, new JobParameters());
+    new JobExecutionRepository(mongo.getDatastore()).saveJobExecution(jobExecution);
+    stepExecution = jobExecution.createStepExecution("step");
+    stepExecution.setStartTime(LocalDateTime.now());
+    stepExecutionRepository.saveStepExecution(stepExecution);
+    executionContextRepository.saveExecutionContext(stepExecution);
+    stepExecution.setStatus(BatchStatus.STARTED);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (writeBehind != null) {
+      writeBehind.shutdown();
+    }
+    mongo.close();
+  }
+
+  @Test
+  void commitsAreWrittenAfterMaxCommits() {
+    createWriteBehind(3, Duration.ofHours(1));
+
+    commit(1);
+    commit(2);
+    assertEquals(0, readStepExecution().getVersion());
+    assertEquals(1, writeBehind.getPendingCount());
+
+    commit(3);
+    StepExecution stored = readStepExecution();
+    assertEquals(3, stored.getVersion());
+    assertEquals(3, stored.getCommitCount());
+    assertEquals(3, readContextCount());
+    assertEquals(0, writeBehind.getPendingCount());
+  }
+
+  @Test
+  void finalUpdateWritesThePendingCommits() {
+    createWriteBehind(10, Duration.ofHours(1));
+    commit(1);
+    commit(2);
+
+    stepExecution.setStatus(BatchStatus.COMPLETED);
+    stepExecution.setEndTime(LocalDateTime.now());
+    stepExecutionRepository.updateStepExecution(stepExecution);
+
+    StepExecution stored = readStepExecution();
+    assertEquals(BatchStatus.COMPLETED, stored.getStatus());
+    assertEquals(3, stored.getVersion());
+    assertEquals(2, stored.getCommitCount());
+    assertEquals(2, readContextCount());
+    assertEquals(0, writeBehind.getPendingCount());
+  }
+
+  @Test
+  void commitsAreWrittenAfterMaxDelay() throws InterruptedException {
+    createWriteBehind(10, Duration.ofMillis(50));
+    commit(1);
+
+    awaitFlush();
+    assertEquals(1, readStepExecution().getVersion());
+    assertEquals(1, readContextCount());
+  }
+
+  @Test
+  void failedBackgroundWriteFailsTheNextCommit() throws InterruptedException {
+    createWriteBehind(10, Duration.ofMillis(50));
+    commit(1);
+
+    // the step execution was stopped by another JVM, so the pending version is stale
+    StepExecution stopped = readStepExecution();
+    stopped.setStatus(BatchStatus.STOPPING);
+    stopped.setLastUpdated(LocalDateTime.now());
+    otherStepExecutionRepository.updateStepExecution(stopped);
+    Thread.sleep(200);
+
+    assertThrows(OptimisticLockingFailureException.class, () -> commit(2));
+    // the pending commits are kept, and fail the final update
+    assertEquals(1, writeBehind.getPendingCount());
+    stepExecution.setStatus(BatchStatus.FAILED);
+    assertThrows(
+        OptimisticLockingFailureException.class,
+        () -> stepExecutionRepository.updateStepExecution(stepExecution));
+    assertEquals(0, writeBehind.getPendingCount());
+  }
+
+  @Test
+  void failedWriteDoesNotStopFlushingTheOtherSteps() {
+    createWriteBehind(10, Duration.ofHours(1));
+    StepExecution other = stepExecution.getJobExecution().createStepExecution("other");
+    other.setStartTime(LocalDateTime.now());
+    stepExecutionRepository.saveStepExecution(other);
+    other.setStatus(BatchStatus.STARTED);
+    commit(1);
+    other.setCommitCount(1);
+    stepExecutionRepository.updateStepExecution(other);
+
+    StepExecution stopped = readStepExecution();
+    stopped.setStatus(BatchStatus.STOPPING);
+    stopped.setLastUpdated(LocalDateTime.now());
+    otherStepExecutionRepository.updateStepExecution(stopped);
+
+    assertThrows(OptimisticLockingFailureException.class, writeBehind::flushAll);
+    StepExecution stored =
+        otherStepExecutionRepository.getStepExecution(other.getJobExecution(), other.getId());
+    assertEquals(1, stored.getVersion());
+    assertEquals(1, stored.getCommitCount());
+    // shutting down would fail again on the stale step
+    writeBehind = null;
+  }
+
+  private void createWriteBehind(int maxCommits, Duration maxDelay) {
+    writeBehind =
+        new StepExecutionWriteBehind(
+            stepExecutionRepository, executionContextRepository, maxCommits, maxDelay);
+    stepExecutionRepository.setWriteBehind(writeBehind);
+    executionContextRepository.setWriteBehind(writeBehind);
+  }
+
+  /** Updates the context and the step execution, as Spring Batch does on a chunk commit */
+  private void commit(int count) {
+    stepExecution.getExecutionContext().putInt("count", count);
+    executionContextRepository.updateExecutionContext(stepExecution);
+    stepExecution.setCommitCount(count);
+    stepExecution.setLastUpdated(LocalDateTime.now());
+    stepExecutionRepository.updateStepExecution(stepExecution);
+  }
+
+  private void awaitFlush() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (writeBehind.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, writeBehind.getPendingCount());
+  }
+
+  private StepExecution readStepExecution() {
+    return otherStepExecutionRepository.getStepExecution(
+        stepExecution.getJobExecution(), stepExecution.getId());
+  }
+
+  private int readContextCount() {
+    return executionContextRepository
+        .getExecutionContext(stepExecution)
+        .getInt("count", 0);
+  }
+}